@@ -0,0 +1,165 @@
+import bench.Internals;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Default-package side of {@link Internals}. */
+public class BenchInternals implements Internals {
+
+    @Override
+    public Dispatcher newDispatcher(int workers) {
+        UpdateDispatcher d = new UpdateDispatcher(workers);
+        return new Dispatcher() {
+            @Override public void dispatch(long chatId, Runnable task) { d.dispatch(chatId, task); }
+            @Override public void shutdown() { d.shutdown(); }
+        };
+    }
+
+    @Override
+    public Journal openJournal(Path file) throws IOException {
+        SessionStore store = new SessionStore(0, Integer.MAX_VALUE);
+        SessionJournal journal = SessionJournal.openManual(file);
+        journal.restore(store);
+        store.attach(journal);
+        return new Journal() {
+            @Override
+            public void update(long chatId, String topic, String article) {
+                TelegramArticleBot.UserState st = new TelegramArticleBot.UserState();
+                st.channel = TelegramArticleBot.ChannelType.TG;
+                st.action = TelegramArticleBot.ActionType.GENERATE;
+                st.topic = topic;
+                store.putState(chatId, st);
+                if (article != null) store.putResult(chatId, new TelegramArticleBot.ArticleResult(article, ""));
+                store.commit(chatId);
+            }
+
+            @Override
+            public int recover() throws IOException {
+                try (SessionJournal j = SessionJournal.openManual(file)) {
+                    return j.restore(new SessionStore(0, Integer.MAX_VALUE));
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                journal.close();
+            }
+        };
+    }
+
+    @Override
+    public Archive openArchive(Path file) throws IOException {
+        ArticleArchive archive = new ArticleArchive(file);
+        return new Archive() {
+            @Override
+            public long record(long chatId, String topic, String text) throws IOException {
+                return archive.record(chatId, TelegramArticleBot.ChannelType.TG, topic,
+                        new TelegramArticleBot.ArticleResult(text, "")).archiveId;
+            }
+
+            @Override
+            public long[] search(long chatId, String query, int limit) {
+                return ids(archive.search(chatId, query, limit));
+            }
+
+            @Override
+            public long[] history(long chatId, int limit) {
+                return ids(archive.history(chatId, limit));
+            }
+
+            @Override
+            public String open(long id) throws IOException {
+                return archive.open(archive.entry(id)).text;
+            }
+
+            @Override
+            public void close() throws IOException {
+                archive.close();
+            }
+        };
+    }
+
+    private static long[] ids(List<ArticleArchive.Entry> entries) {
+        long[] ids = new long[entries.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = entries.get(i).id;
+        return ids;
+    }
+
+    @Override
+    public Codec codec() {
+        return new Codec() {
+            @Override
+            public void writeGenerate(long chatId, String topic, String description, BufferedSink sink)
+                    throws IOException {
+                N8nCodec.generate(chatId, TelegramArticleBot.ChannelType.TG,
+                        TelegramArticleBot.ActionType.GENERATE, topic, description).writeTo(sink);
+            }
+
+            @Override
+            public String[] readSite(BufferedSource source) throws IOException {
+                TelegramArticleBot.ArticleResult ar = N8nCodec.readArticle(source, TelegramArticleBot.ChannelType.SITE);
+                return ar == null ? null : new String[]{ar.text, ar.picture, ar.zenDocumentId};
+            }
+
+            @Override
+            public String[] readTg(BufferedSource source) throws IOException {
+                TelegramArticleBot.ArticleResult ar = N8nCodec.readArticle(source, TelegramArticleBot.ChannelType.TG);
+                return ar == null ? null : new String[]{ar.text, ar.picture};
+            }
+        };
+    }
+
+    @Override
+    public Bot newBot(Path dataDir) throws IOException {
+        LongAdder executed = new LongAdder();
+        TelegramArticleBot bot = new TelegramArticleBot(new DefaultBotOptions(), dataDir,
+                Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE) {
+            @Override
+            public <T extends Serializable, Method extends BotApiMethod<T>> T execute(Method method) {
+                executed.increment();
+                return null;
+            }
+        };
+        return new Bot() {
+            @Override public void handle(Update update) { bot.handleUpdate(update); }
+            @Override public long executed() { return executed.sum(); }
+        };
+    }
+
+    @Override
+    public InlineKeyboardMarkup platformKeyboard() {
+        return Rendering.platforms();
+    }
+
+    @Override
+    public InlineKeyboardMarkup actionKeyboard() {
+        return Rendering.actions();
+    }
+
+    @Override
+    public Renderer renderer() {
+        String prefix = "https://docs.google.com/document/d/";
+        return new Renderer() {
+            @Override public ReplyKeyboard platforms() { return Rendering.PLATFORMS; }
+            @Override public ReplyKeyboard buildDocument(String id) { return Rendering.documentMarkup(prefix + id); }
+            @Override public ReplyKeyboard document(String id) { return Rendering.document(prefix + id); }
+
+            @Override
+            public List<String> split(String text, boolean photo) {
+                return Rendering.split(text, photo ? Rendering.CAPTION_MAX : Rendering.MESSAGE_MAX,
+                        Rendering.MESSAGE_MAX);
+            }
+        };
+    }
+}
@@ -0,0 +1,141 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * /search, /history and reopening an article against an archive of many
+ * articles from many chats, plus archiving one article and opening the
+ * archive at startup.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ArchiveBenchmark {
+
+    private static final int CHATS = 500;
+    private static final String[] WORDS = {
+            "продвижение", "сайта", "контент", "поисковые", "системы", "ссылки", "семантика", "ядро",
+            "конверсия", "реклама", "аудитория", "заголовок", "структура", "скорость", "мобильная",
+            "версия", "аналитика", "метрика", "трафик", "позиции", "запросы", "статья", "блог",
+            "маркетплейс", "доставка", "магазин", "отзывы", "кейс", "стратегия", "бюджет"};
+
+    @State(Scope.Benchmark)
+    public static class Filled {
+        @Param({"20000"})
+        public int articles;
+
+        Path dir;
+        Internals.Archive archive;
+        long lastId;
+        long seq;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("archive-bench");
+            archive = Internals.get().openArchive(dir.resolve("articles.log"));
+            fill(archive, articles);
+            lastId = articles;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            archive.close();
+            Texts.deleteTree(dir);
+        }
+    }
+
+    static void fill(Internals.Archive archive, int articles) throws IOException {
+        Random rnd = new Random(42);
+        String body = Texts.article(3000);
+        for (int i = 0; i < articles; i++) {
+            StringBuilder sb = new StringBuilder(body.length() + 200);
+            for (int w = 0; w < 20; w++) sb.append(WORDS[rnd.nextInt(WORDS.length)]).append(' ');
+            sb.append("артикул").append(i).append('\n').append(body);
+            archive.record(i % CHATS, "Тема " + WORDS[rnd.nextInt(WORDS.length)] + " " + i, sb.toString());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long[] searchTwoWords(Filled s) {
+        return s.archive.search(s.seq++ % CHATS, "продвиж стратегия", 10);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long[] searchRare(Filled s) {
+        long n = s.seq++ % s.articles;
+        return s.archive.search(n % CHATS, "артикул" + n, 10);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long[] history(Filled s) {
+        return s.archive.history(s.seq++ % CHATS, 10);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String open(Filled s) throws IOException {
+        return s.archive.open(1 + s.seq++ % s.lastId);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long record(Filled s) throws IOException {
+        return s.archive.record(s.seq++ % CHATS, "Новая тема", "Новая статья про контент и трафик");
+    }
+
+    @State(Scope.Benchmark)
+    public static class OnDisk {
+        @Param({"20000"})
+        public int articles;
+
+        Path dir;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("archive-bench");
+            try (Internals.Archive a = Internals.get().openArchive(dir.resolve("articles.log"))) {
+                fill(a, articles);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Texts.deleteTree(dir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void openAtStartup(OnDisk s) throws IOException {
+        Internals.get().openArchive(s.dir.resolve("articles.log")).close();
+    }
+
+    /** Until the first search can be answered, which waits for the index. */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public long[] openAndSearch(OnDisk s) throws IOException {
+        try (Internals.Archive a = Internals.get().openArchive(s.dir.resolve("articles.log"))) {
+            return a.search(1, "продвиж", 10);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import okio.Buffer;
+import okio.ByteString;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * n8n payload encoding and response parsing: the streaming {@code N8nCodec}
+ * against the previous String.format + escape() / String + org.json path.
+ * Run with {@code -prof gc} to compare allocation per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"5000", "50000", "200000"})
+    public int articleChars;
+
+    private Internals.Codec codec;
+    private String article;
+    private ByteString siteResponse;
+    private ByteString tgResponse;
+
+    @Setup
+    public void setUp() {
+        codec = Internals.get().codec();
+        article = Texts.article(articleChars);
+        JSONObject output = new JSONObject().put("text", article).put("picture", "https://example.com/p.jpg");
+        siteResponse = ByteString.encodeUtf8(new JSONArray()
+                .put(new JSONObject().put("output", output).put("documentId", "1AbCdEf")).toString());
+        tgResponse = ByteString.encodeUtf8(output.toString());
+    }
+
+    @Benchmark
+    public long encodeLegacy() throws IOException {
+        Buffer sink = new Buffer();
+        LegacyN8n.writeGenerate(42L, "SEO в 2025 году", article, sink);
+        return sink.size();
+    }
+
+    @Benchmark
+    public long encodeStreaming() throws IOException {
+        Buffer sink = new Buffer();
+        codec.writeGenerate(42L, "SEO в 2025 году", article, sink);
+        return sink.size();
+    }
+
+    @Benchmark
+    public String[] parseSiteLegacy() throws IOException {
+        return LegacyN8n.readSite(new Buffer().write(siteResponse));
+    }
+
+    @Benchmark
+    public String[] parseSiteStreaming() throws IOException {
+        return codec.readSite(new Buffer().write(siteResponse));
+    }
+
+    @Benchmark
+    public String[] parseTgLegacy() throws IOException {
+        return LegacyN8n.readTg(new Buffer().write(tgResponse));
+    }
+
+    @Benchmark
+    public String[] parseTgStreaming() throws IOException {
+        return codec.readTg(new Buffer().write(tgResponse));
+    }
+}
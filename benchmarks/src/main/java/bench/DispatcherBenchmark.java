@@ -0,0 +1,78 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * N chats each send a few updates whose handler blocks like a slow n8n call.
+ * With per-chat dispatch the whole batch should take about
+ * {@code updatesPerChat * backendMillis}, independent of the number of chats
+ * (as long as {@code chats <= workers}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DispatcherBenchmark {
+
+    @Param({"1", "8", "16"})
+    public int chats;
+
+    @Param({"2"})
+    public int updatesPerChat;
+
+    @Param({"200"})
+    public long backendMillis;
+
+    @Param({"16"})
+    public int workers;
+
+    private Internals.Dispatcher dispatcher;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dispatcher = Internals.get().newDispatcher(workers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public int concurrentChats() throws InterruptedException {
+        int total = chats * updatesPerChat;
+        CountDownLatch done = new CountDownLatch(total);
+        AtomicInteger outOfOrder = new AtomicInteger();
+        for (int c = 0; c < chats; c++) {
+            int[] last = {-1};
+            for (int u = 0; u < updatesPerChat; u++) {
+                int seq = u;
+                dispatcher.dispatch(c, () -> {
+                    if (last[0] != seq - 1) outOfOrder.incrementAndGet();
+                    last[0] = seq;
+                    sleep(backendMillis);
+                    done.countDown();
+                });
+            }
+        }
+        done.await();
+        if (outOfOrder.get() != 0) {
+            throw new IllegalStateException(outOfOrder.get() + " updates ran out of order");
+        }
+        return total;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package bench;
+
+/**
+ * The bot lives in the default package, which JMH benchmarks (and any other
+ * named package) can't reference. {@code BenchInternals} sits in the default
+ * package next to the bot and exposes the pieces under test through this interface.
+ */
+public interface Internals {
+
+    static Internals get() {
+        try {
+            return (Internals) Class.forName("BenchInternals").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchInternals is missing from the classpath", e);
+        }
+    }
+
+    interface Dispatcher {
+        void dispatch(long chatId, Runnable task);
+        void shutdown();
+    }
+
+    Dispatcher newDispatcher(int workers);
+
+    interface Journal extends AutoCloseable {
+        /** Updates the chat's dialog state and article, then journals the session. */
+        void update(long chatId, String topic, String article);
+        /** Replays the journal into a fresh session store and returns the session count. */
+        int recover() throws java.io.IOException;
+        @Override void close() throws java.io.IOException;
+    }
+
+    Journal openJournal(java.nio.file.Path file) throws java.io.IOException;
+
+    interface Archive extends AutoCloseable {
+        /** Archives a TG article and returns its id. */
+        long record(long chatId, String topic, String text) throws java.io.IOException;
+        /** Ids of the chat's matching articles, newest first. */
+        long[] search(long chatId, String query, int limit);
+        long[] history(long chatId, int limit);
+        /** Reads the article text back. */
+        String open(long id) throws java.io.IOException;
+        @Override void close() throws java.io.IOException;
+    }
+
+    Archive openArchive(java.nio.file.Path file) throws java.io.IOException;
+
+    interface Codec {
+        void writeGenerate(long chatId, String topic, String description, okio.BufferedSink sink)
+                throws java.io.IOException;
+        /** Returns {text, picture, documentId}, or null if the shape doesn't match. */
+        String[] readSite(okio.BufferedSource source) throws java.io.IOException;
+        /** Returns {text, picture}, or null if the shape doesn't match. */
+        String[] readTg(okio.BufferedSource source) throws java.io.IOException;
+    }
+
+    Codec codec();
+
+    interface Bot {
+        /** Runs the update handler synchronously, as an update worker would. */
+        void handle(org.telegram.telegrambots.meta.api.objects.Update update);
+        /** Telegram calls that reached the stubbed {@code execute()}. */
+        long executed();
+    }
+
+    /** A bot whose Telegram calls return immediately and whose rate limits are lifted. */
+    Bot newBot(java.nio.file.Path dataDir) throws java.io.IOException;
+
+    org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup platformKeyboard();
+
+    org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup actionKeyboard();
+
+    interface Renderer {
+        /** The platform menu as the bot sends it, serialised in advance. */
+        org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard platforms();
+        /** The Google Docs keyboard for {@code documentId}, built from scratch. */
+        org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard buildDocument(String documentId);
+        /** The Google Docs keyboard for {@code documentId} as the bot sends it. */
+        org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard document(String documentId);
+        /** The article cut into a caption (if {@code photo}) and messages. */
+        java.util.List<String> split(String text, boolean photo);
+    }
+
+    Renderer renderer();
+}
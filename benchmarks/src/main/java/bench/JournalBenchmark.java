@@ -0,0 +1,87 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of journaling one session change on the update path, and time to
+ * restore a journal of 100k sessions at startup.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JournalBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Append {
+        @Param({"0", "5000"})
+        public int articleChars;
+
+        Path dir;
+        Internals.Journal journal;
+        String article;
+        long seq;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("journal-bench");
+            journal = Internals.get().openJournal(dir.resolve("sessions.journal"));
+            article = articleChars == 0 ? null : Texts.article(articleChars);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            journal.close();
+            Texts.deleteTree(dir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void appendPerUpdate(Append s) {
+        long n = s.seq++;
+        s.journal.update(n % 1000, "Тема " + n, s.article);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Recover {
+        @Param({"100000"})
+        public int sessions;
+
+        @Param({"0", "500"})
+        public int articleChars;
+
+        Path dir;
+        Internals.Journal journal;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("journal-bench");
+            journal = Internals.get().openJournal(dir.resolve("sessions.journal"));
+            String article = articleChars == 0 ? null : Texts.article(articleChars);
+            for (int i = 0; i < sessions; i++) {
+                journal.update(i, "Тема " + i, article);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            journal.close();
+            Texts.deleteTree(dir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 10)
+    public int recover(Recover s) throws IOException {
+        return s.journal.recover();
+    }
+}
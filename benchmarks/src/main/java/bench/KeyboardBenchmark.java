@@ -0,0 +1,73 @@
+package bench;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inline keyboards built for every menu the bot shows, and a menu message
+ * serialised the way the Bot API client does it: with the keyboard built for
+ * each send (as before) or prerendered by {@code Rendering}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyboardBenchmark {
+
+    private static final String DOCUMENT_ID = "1AbCdEfGhIjKlMnOpQrStUvWxYz0123456789_-xyz";
+
+    private Internals internals;
+    private Internals.Renderer renderer;
+    private ObjectMapper json;
+
+    @Setup
+    public void setUp() {
+        internals = Internals.get();
+        renderer = internals.renderer();
+        json = new ObjectMapper();
+    }
+
+    @Benchmark
+    public InlineKeyboardMarkup platformChoice() {
+        return internals.platformKeyboard();
+    }
+
+    @Benchmark
+    public InlineKeyboardMarkup actionMenu() {
+        return internals.actionKeyboard();
+    }
+
+    @Benchmark
+    public String sendMenuBuilt() throws JsonProcessingException {
+        return send("Выбери площадку:", internals.platformKeyboard());
+    }
+
+    @Benchmark
+    public String sendMenuPrerendered() throws JsonProcessingException {
+        return send("Выбери площадку:", renderer.platforms());
+    }
+
+    @Benchmark
+    public String sendDocumentBuilt() throws JsonProcessingException {
+        return send("✅ Статья готова! Вы можете:", renderer.buildDocument(DOCUMENT_ID));
+    }
+
+    @Benchmark
+    public String sendDocumentPrerendered() throws JsonProcessingException {
+        return send("✅ Статья готова! Вы можете:", renderer.document(DOCUMENT_ID));
+    }
+
+    private String send(String text, ReplyKeyboard kb) throws JsonProcessingException {
+        SendMessage m = new SendMessage("123456789", text);
+        m.setReplyMarkup(kb);
+        return json.writeValueAsString(m);
+    }
+}
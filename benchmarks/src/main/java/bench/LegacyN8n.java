@@ -0,0 +1,57 @@
+package bench;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Frozen copy of the n8n request/response handling before the streaming
+ * codec, kept as the baseline for {@link CodecBenchmark}.
+ */
+final class LegacyN8n {
+
+    private LegacyN8n() {}
+
+    static void writeGenerate(long chat, String topic, String description, BufferedSink sink) throws IOException {
+        String payload = String.format(Locale.ROOT,
+                "{\"chat_id\":%d,\"channel\":\"%s\",\"action\":\"%s\"," +
+                        "\"topic\":\"%s\",\"description\":\"%s\"}",
+                chat, "tg", "generate",
+                escape(topic), escape(description)
+        );
+        RequestBody body = RequestBody.create(payload, MediaType.parse("application/json; charset=utf-8"));
+        body.writeTo(sink);
+    }
+
+    static String[] readSite(BufferedSource source) throws IOException {
+        String s = source.readUtf8();
+        if (s.startsWith("[")) {
+            JSONArray arr = new JSONArray(s);
+            if (arr.length() > 0) {
+                JSONObject j = arr.getJSONObject(0);
+                if (j.has("output")) {
+                    JSONObject output = j.getJSONObject("output");
+                    return new String[]{output.optString("text"), output.optString("picture"), j.optString("documentId")};
+                }
+            }
+        }
+        return null;
+    }
+
+    static String[] readTg(BufferedSource source) throws IOException {
+        String s = source.readUtf8();
+        if (s.startsWith("[")) return null;
+        JSONObject j = new JSONObject(s);
+        return new String[]{j.optString("text"), j.optString("picture")};
+    }
+
+    static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,24 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar: JMH's own launcher with the GC profiler on
+ * by default, so every run reports allocation per operation next to the
+ * timings. Pass any {@code -prof} option to choose profilers explicitly.
+ */
+public final class Main {
+
+    private Main() {}
+
+    public static void main(String[] args) throws Exception {
+        List<String> argv = new ArrayList<>(Arrays.asList(args));
+        if (!argv.contains("-prof") && !argv.contains("-h") && !argv.contains("-l")) {
+            argv.add("-prof");
+            argv.add("gc");
+        }
+        org.openjdk.jmh.Main.main(argv.toArray(new String[0]));
+    }
+}
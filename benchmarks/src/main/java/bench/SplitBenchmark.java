@@ -0,0 +1,45 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cutting an article with a picture into a caption and messages: the
+ * boundary-aware {@code Rendering.split} against the previous fixed cut at
+ * 1024 characters (which left the rest as one message, however long).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SplitBenchmark {
+
+    @Param({"3000", "12000"})
+    public int articleChars;
+
+    private Internals.Renderer renderer;
+    private String article;
+
+    @Setup
+    public void setUp() {
+        renderer = Internals.get().renderer();
+        article = Texts.article(articleChars);
+    }
+
+    @Benchmark
+    public int splitLegacy() {
+        String caption = article.length() <= 1024 ? article : article.substring(0, 1024);
+        String rest = article.length() > 1024 ? article.substring(1024) : "";
+        return caption.length() + rest.length();
+    }
+
+    @Benchmark
+    public int split() {
+        List<String> parts = renderer.split(article, true);
+        return parts.size();
+    }
+}
@@ -0,0 +1,31 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/** Shared fixtures for benchmarks. */
+final class Texts {
+
+    private static final String PARAGRAPH =
+            "Продвижение сайта начинается с понятной структуры и полезного контента. "
+            + "Поисковые системы ценят страницы, которые отвечают на вопрос пользователя \"здесь и сейчас\".\n\n";
+
+    private Texts() {}
+
+    /** Russian article text of exactly {@code chars} characters. */
+    static String article(int chars) {
+        StringBuilder sb = new StringBuilder(chars + PARAGRAPH.length());
+        while (sb.length() < chars) sb.append(PARAGRAPH);
+        sb.setLength(chars);
+        return sb.toString();
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
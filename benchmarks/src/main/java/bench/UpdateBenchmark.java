@@ -0,0 +1,102 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One update through the bot's handler, as an update worker runs it:
+ * session lookup, keyboard construction, queueing the replies and the
+ * journal commit. {@code execute()} is stubbed, so only the bot's own
+ * CPU and allocation (reported by the GC profiler) are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateBenchmark {
+
+    private static final int CHATS = 1024;
+
+    private Path dir;
+    private Internals.Bot bot;
+    private Update[] start;
+    private Update[] menuText;
+    private Update[] chooseChannel;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("update-bench");
+        bot = Internals.get().newBot(dir);
+        start = new Update[CHATS];
+        menuText = new Update[CHATS];
+        chooseChannel = new Update[CHATS];
+        for (int i = 0; i < CHATS; i++) {
+            long chatId = 100_000 + i;
+            start[i] = text(chatId, "/start");
+            menuText[i] = text(chatId, "Главное меню");
+            chooseChannel[i] = callback(chatId, "CH_TG");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Texts.deleteTree(dir);
+    }
+
+    /** "/start": session reset and the platform keyboard. */
+    @Benchmark
+    public void startCommand() {
+        bot.handle(start[next++ & (CHATS - 1)]);
+    }
+
+    /** Reply-keyboard text: the generic text path ending in the platform keyboard. */
+    @Benchmark
+    public void mainMenuText() {
+        bot.handle(menuText[next++ & (CHATS - 1)]);
+    }
+
+    /** Inline button: new dialog state, the action keyboard and deleting the old message. */
+    @Benchmark
+    public void channelCallback() {
+        bot.handle(chooseChannel[next++ & (CHATS - 1)]);
+    }
+
+    private static Message message(long chatId) {
+        Chat chat = new Chat();
+        chat.setId(chatId);
+        chat.setType("private");
+        Message m = new Message();
+        m.setChat(chat);
+        m.setMessageId(1);
+        return m;
+    }
+
+    private static Update text(long chatId, String text) {
+        Message m = message(chatId);
+        m.setText(text);
+        Update u = new Update();
+        u.setMessage(m);
+        return u;
+    }
+
+    private static Update callback(long chatId, String data) {
+        CallbackQuery cb = new CallbackQuery();
+        cb.setId("cb-" + chatId);
+        cb.setMessage(message(chatId));
+        cb.setData(data);
+        Update u = new Update();
+        u.setCallbackQuery(cb);
+        return u;
+    }
+}
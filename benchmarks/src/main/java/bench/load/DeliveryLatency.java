@@ -0,0 +1,104 @@
+package bench.load;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Update-to-first-reply latency with long polling vs the webhook, against the
+ * fake Bot API. Each round sends "/start" from one of several chats at a fixed
+ * rate and waits for the platform menu; the bot's Telegram rate limits are
+ * lifted so only delivery and handling are measured.
+ *
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar bench.load.DeliveryLatency --updates=1000 --rate=50
+ * </pre>
+ */
+public final class DeliveryLatency {
+
+    private static final long FIRST_CHAT = 800_000_000L;
+
+    private DeliveryLatency() {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opt = LoadTest.parse(args);
+        int updates = Integer.parseInt(opt.getOrDefault("updates", "1000"));
+        int chats = Integer.parseInt(opt.getOrDefault("chats", "50"));
+        double rate = Double.parseDouble(opt.getOrDefault("rate", "50"));
+
+        List<Long> polling = run(false, updates, chats, rate);
+        List<Long> webhook = run(true, updates, chats, rate);
+
+        System.out.printf(Locale.ROOT, "%n%-10s %7s %9s %9s %9s %9s%n", "режим", "n", "p50 мс", "p90 мс", "p99 мс", "max мс");
+        row("polling", polling);
+        row("webhook", webhook);
+    }
+
+    private static List<Long> run(boolean webhook, int updates, int chats, double rate) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService serverThreads = Executors.newCachedThreadPool(LoadTest.daemon("fake-telegram"));
+        server.setExecutor(serverThreads);
+        FakeTelegram telegram = new FakeTelegram();
+        telegram.register(server);
+        server.start();
+
+        Map<String, String> env = new HashMap<>();
+        env.put("env.TG_GLOBAL_PER_SEC", "100000");
+        env.put("env.TG_CHAT_PER_SEC", "100000");
+        if (webhook) {
+            int port = LoadTest.freePort();
+            env.put("env.WEBHOOK_URL", "http://127.0.0.1:" + port + "/telegram");
+            env.put("env.WEBHOOK_HOST", "127.0.0.1");
+            env.put("env.WEBHOOK_PORT", String.valueOf(port));
+            env.put("env.WEBHOOK_SECRET", "delivery-latency");
+        }
+        Path dataDir = Files.createTempDirectory("bot-delivery-");
+        Process bot = LoadTest.startBot("http://127.0.0.1:" + server.getAddress().getPort(), dataDir, env);
+        List<Long> latencies = new ArrayList<>(updates);
+        try {
+            LoadTest.awaitReady(telegram, bot);
+            long interval = (long) (1e9 / rate);
+            long next = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                long chat = FIRST_CHAT + i % chats;
+                FakeTelegram.Inbox inbox = telegram.inbox(chat);
+                int from = inbox.size();
+                long sent = System.nanoTime();
+                telegram.sendText(chat, "/start");
+                FakeTelegram.Sent reply = inbox.await(from, s -> s.text.equals("Выбери площадку:"), 10, TimeUnit.SECONDS);
+                if (reply != null) latencies.add(reply.atNanos - sent);
+                next += interval;
+                long sleep = next - System.nanoTime();
+                if (sleep > 0) TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        } finally {
+            bot.destroy();
+            if (!bot.waitFor(15, TimeUnit.SECONDS)) bot.destroyForcibly();
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+        if (latencies.size() < updates) {
+            System.err.println((webhook ? "webhook" : "polling") + ": без ответа " + (updates - latencies.size()));
+        }
+        return latencies;
+    }
+
+    private static void row(String name, List<Long> nanos) {
+        if (nanos.isEmpty()) return;
+        Collections.sort(nanos);
+        System.out.printf(Locale.ROOT, "%-10s %7d %9.2f %9.2f %9.2f %9.2f%n", name, nanos.size(),
+                LoadTest.pct(nanos, 0.5), LoadTest.pct(nanos, 0.9), LoadTest.pct(nanos, 0.99),
+                nanos.get(nanos.size() - 1) / 1e6);
+    }
+}
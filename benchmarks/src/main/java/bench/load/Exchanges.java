@@ -0,0 +1,64 @@
+package bench.load;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Small helpers shared by the fake backends. */
+final class Exchanges {
+
+    private Exchanges() {}
+
+    static byte[] body(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) > 0; ) out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+    static void respond(HttpExchange ex, int code, String contentType, byte[] body) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", contentType);
+        ex.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static void json(HttpExchange ex, int code, String json) throws IOException {
+        respond(ex, code, "application/json; charset=utf-8", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Text fields of a multipart/form-data body; file parts are skipped. Good
+     * enough for the requests the bot sends, not a general parser.
+     */
+    static Map<String, String> formFields(String contentType, byte[] body) {
+        Map<String, String> fields = new HashMap<>();
+        int b = contentType == null ? -1 : contentType.indexOf("boundary=");
+        if (b < 0) return fields;
+        String boundary = "--" + contentType.substring(b + 9).replace("\"", "").split(";")[0].trim();
+        // ISO-8859-1 keeps byte offsets; text values are re-decoded as UTF-8
+        String raw = new String(body, StandardCharsets.ISO_8859_1);
+        for (String part : raw.split(java.util.regex.Pattern.quote(boundary))) {
+            int headersEnd = part.indexOf("\r\n\r\n");
+            if (headersEnd < 0) continue;
+            String headers = part.substring(0, headersEnd);
+            if (headers.contains("filename=")) continue;
+            int n = headers.indexOf("name=\"");
+            if (n < 0) continue;
+            String name = headers.substring(n + 6, headers.indexOf('"', n + 6));
+            String value = part.substring(headersEnd + 4);
+            if (value.endsWith("\r\n")) value = value.substring(0, value.length() - 2);
+            fields.put(name, new String(value.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8));
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,42 @@
+package bench.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Baserow stand-in for the rows table: single and batch row creation, and the
+ * filtered list the outbox uses to check idempotency keys (always empty).
+ */
+final class FakeBaserow {
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder rows = new LongAdder();
+
+    void register(HttpServer server) {
+        server.createContext("/baserow/", this::handle);
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        requests.increment();
+        byte[] body = Exchanges.body(ex);
+        if ("GET".equals(ex.getRequestMethod())) {
+            Exchanges.json(ex, 200, "{\"count\":0,\"results\":[]}");
+            return;
+        }
+        JSONObject req = new JSONObject(new String(body, StandardCharsets.UTF_8));
+        JSONArray items = req.optJSONArray("items");
+        if (items == null) {
+            rows.increment();
+            Exchanges.json(ex, 200, req.put("id", rows.sum()).toString());
+            return;
+        }
+        rows.add(items.length());
+        Exchanges.json(ex, 200, new JSONObject().put("items", items).toString());
+    }
+}
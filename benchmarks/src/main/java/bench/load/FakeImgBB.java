@@ -0,0 +1,49 @@
+package bench.load;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the pictures n8n "generates" under {@code /img/}, each after
+ * {@code originMillis} like a slow image generator, and accepts ImgBB uploads
+ * at {@code /imgbb/upload}, answering with a permanent URL.
+ */
+final class FakeImgBB {
+
+    private static final byte[] PICTURE = new byte[48 * 1024];
+
+    private final String base;
+    private final long originMillis;
+    private final AtomicInteger seq = new AtomicInteger();
+
+    final LongAdder downloads = new LongAdder();
+    final LongAdder uploads = new LongAdder();
+
+    FakeImgBB(String base, long originMillis) {
+        this.base = base;
+        this.originMillis = originMillis;
+    }
+
+    void register(HttpServer server) {
+        server.createContext("/img/", ex -> {
+            downloads.increment();
+            Exchanges.body(ex);
+            try {
+                Thread.sleep(originMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Exchanges.respond(ex, 200, "image/jpeg", PICTURE);
+        });
+        server.createContext("/imgbb/upload", ex -> {
+            Exchanges.body(ex);
+            uploads.increment();
+            String url = base + "/hosted/" + seq.incrementAndGet() + ".jpg";
+            Exchanges.json(ex, 200, new JSONObject().put("success", true)
+                    .put("data", new JSONObject().put("url", url)).toString());
+        });
+    }
+}
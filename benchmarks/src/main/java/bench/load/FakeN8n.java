@@ -0,0 +1,197 @@
+package bench.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * n8n webhook stand-in. Each call sleeps for a log-normally distributed time
+ * (given by its median and 99th percentile, like an LLM run) and fails with
+ * HTTP 500 at the configured rate. Answers in the shapes the bot parses: an
+ * object for Telegram, a one-element array with a document id for the site.
+ *
+ * If the request accepts NDJSON, the article is streamed instead: the first
+ * {@code delta} after a tenth of the run, the rest spread evenly over it, and
+ * the usual response as the last line.
+ *
+ * <p>{@link #register(HttpServer, int, int)} serves several webhook paths
+ * with the same latency distribution, the last {@code down} of them always
+ * answering 500, to exercise the bot's balancing and hedging.
+ *
+ * <p>Like a workflow set up for {@code N8N_VERSION_REFS}, it keeps every
+ * article it wrote or was sent under its SHA-256 and answers 409 to a rewrite
+ * naming an {@code original_id} it doesn't have. Gzip request bodies are
+ * inflated; {@link #requestBytes} counts bytes as received.
+ */
+final class FakeN8n {
+
+    private static final double Z99 = 2.326;
+    private static final int CHUNK_CHARS = 200;
+
+    private final double mu;
+    private final double sigma;
+    private final double errorRate;
+    private final int articleChars;
+    private final String pictureBase;
+    private final AtomicInteger seq = new AtomicInteger();
+
+    final LongAdder calls = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder requestBytes = new LongAdder();
+    final LongAdder unknownVersions = new LongAdder();
+    private final Map<String, String> versions = new ConcurrentHashMap<>();
+    LongAdder[] perEndpoint = {calls};
+
+    FakeN8n(long medianMillis, long p99Millis, double errorRate, int articleChars, String pictureBase) {
+        this.mu = Math.log(Math.max(1, medianMillis));
+        this.sigma = Math.max(0, (Math.log(Math.max(medianMillis, p99Millis)) - mu) / Z99);
+        this.errorRate = errorRate;
+        this.articleChars = articleChars;
+        this.pictureBase = pictureBase;
+    }
+
+    void register(HttpServer server) {
+        server.createContext("/n8n", this::handle);
+    }
+
+    void register(HttpServer server, int endpoints, int down) {
+        if (endpoints <= 1) {
+            register(server);
+            return;
+        }
+        perEndpoint = new LongAdder[endpoints];
+        for (int i = 0; i < endpoints; i++) {
+            LongAdder count = perEndpoint[i] = new LongAdder();
+            boolean broken = i >= endpoints - down;
+            server.createContext("/n8n/" + i, ex -> {
+                count.increment();
+                if (!broken) {
+                    handle(ex);
+                    return;
+                }
+                calls.increment();
+                errors.increment();
+                requestBytes.add(Exchanges.body(ex).length);
+                Exchanges.json(ex, 500, "{\"message\":\"Worker is down\"}");
+            });
+        }
+    }
+
+    /** The N8N_WEBHOOK_URL value for {@code endpoints} paths registered on {@code base}. */
+    static String urls(String base, int endpoints) {
+        if (endpoints <= 1) return base + "/n8n";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < endpoints; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(base).append("/n8n/").append(i);
+        }
+        return sb.toString();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        calls.increment();
+        byte[] raw = Exchanges.body(ex);
+        requestBytes.add(raw.length);
+        if ("gzip".equalsIgnoreCase(ex.getRequestHeaders().getFirst("Content-Encoding"))) raw = gunzip(raw);
+        JSONObject req = new JSONObject(new String(raw, StandardCharsets.UTF_8));
+        String originalId = req.optString("original_id", null);
+        if (originalId != null) {
+            if (req.has("original")) {
+                versions.put(originalId, req.getString("original"));
+            } else if (!versions.containsKey(originalId)) {
+                unknownVersions.increment();
+                Exchanges.json(ex, 409, "{\"message\":\"Unknown version\"}");
+                return;
+            }
+        }
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long runMillis = (long) Math.exp(mu + sigma * rnd.nextGaussian());
+        String accept = ex.getRequestHeaders().getFirst("Accept");
+        boolean stream = accept != null && accept.contains("application/x-ndjson");
+        sleep(stream ? runMillis / 10 : runMillis);
+        if (rnd.nextDouble() < errorRate) {
+            errors.increment();
+            Exchanges.json(ex, 500, "{\"message\":\"Workflow execution failed\"}");
+            return;
+        }
+        int n = seq.incrementAndGet();
+        String text = article(req.optString("topic", req.optString("feedback")), n);
+        versions.put(sha256(text), text);
+        JSONObject output = new JSONObject()
+                .put("text", text)
+                .put("picture", pictureBase + n + ".jpg");
+        String result = "site".equals(req.optString("channel"))
+                ? new JSONArray().put(new JSONObject().put("output", output).put("documentId", "doc-" + n)).toString()
+                : output.toString();
+        if (!stream) {
+            Exchanges.json(ex, 200, result);
+            return;
+        }
+        ex.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+        ex.sendResponseHeaders(200, 0);
+        try (OutputStream out = ex.getResponseBody()) {
+            int chunks = (text.length() + CHUNK_CHARS - 1) / CHUNK_CHARS;
+            long pause = chunks > 1 ? runMillis * 9 / 10 / (chunks - 1) : 0;
+            for (int i = 0; i < chunks; i++) {
+                if (i > 0) sleep(pause);
+                String delta = text.substring(i * CHUNK_CHARS, Math.min(text.length(), (i + 1) * CHUNK_CHARS));
+                out.write((new JSONObject().put("delta", delta) + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            out.write((result + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] gunzip(byte[] gz) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gz))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(gz.length * 4);
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) > 0; ) out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, d));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String article(String topic, int n) {
+        StringBuilder sb = new StringBuilder(articleChars + 64);
+        sb.append("Статья #").append(n).append(": ").append(topic).append("\n\n");
+        while (sb.length() < articleChars) {
+            sb.append("Поисковые системы ценят страницы, которые отвечают на вопрос пользователя. ");
+        }
+        sb.setLength(articleChars);
+        return sb.toString();
+    }
+}
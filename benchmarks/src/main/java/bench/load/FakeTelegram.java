@@ -0,0 +1,354 @@
+package bench.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Bot API stand-in: delivers updates injected by the harness, through
+ * {@code getUpdates} (long polling) or, once the bot calls {@code setWebhook},
+ * by POSTing them to its webhook, and records every message the bot sends,
+ * per chat. Mounted at {@code /bot<token>/<method>}.
+ *
+ * <p>{@code sendPhoto} behaves like the real one where the bot can tell: a
+ * photo given by URL is downloaded before the call returns, an uploaded file
+ * or a known {@code file_id} is not, and the answer carries a file_id.
+ * Texts over 4096 characters and captions over 1024 are refused with 400, as
+ * Telegram does.
+ */
+final class FakeTelegram {
+
+    /** A message the bot sent. */
+    static final class Sent {
+        final String method;
+        final String text;
+        final String markup;
+        final long atNanos;
+
+        Sent(String method, String text, String markup, long atNanos) {
+            this.method = method;
+            this.text = text == null ? "" : text;
+            this.markup = markup == null ? "" : markup;
+            this.atNanos = atNanos;
+        }
+    }
+
+    /** Everything sent to one chat, in order. */
+    static final class Inbox {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition arrived = lock.newCondition();
+        private final List<Sent> messages = new ArrayList<>();
+
+        int size() {
+            lock.lock();
+            try {
+                return messages.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** First message at or after {@code from} matching {@code p}, or null on timeout. */
+        Sent await(int from, Predicate<Sent> p, long timeout, TimeUnit unit) throws InterruptedException {
+            long left = unit.toNanos(timeout);
+            lock.lock();
+            try {
+                int i = from;
+                while (true) {
+                    for (; i < messages.size(); i++) {
+                        if (p.test(messages.get(i))) return messages.get(i);
+                    }
+                    if (left <= 0) return null;
+                    left = arrived.awaitNanos(left);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Latest message matching {@code p}, or null. */
+        Sent last(Predicate<Sent> p) {
+            lock.lock();
+            try {
+                for (int i = messages.size() - 1; i >= 0; i--) {
+                    if (p.test(messages.get(i))) return messages.get(i);
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void add(Sent s) {
+            lock.lock();
+            try {
+                messages.add(s);
+                arrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final List<JSONObject> updates = new ArrayList<>();
+    private final AtomicInteger updateIds = new AtomicInteger(1);
+    private final AtomicInteger messageIds = new AtomicInteger(1);
+    private final AtomicInteger photos = new AtomicInteger();
+    private final Map<Long, Inbox> inboxes = new ConcurrentHashMap<>();
+    private final AtomicLong polls = new AtomicLong();
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private volatile String webhookUrl;
+    private volatile String webhookSecret;
+
+    final LongAdder sendMessage = new LongAdder();
+    final LongAdder sendPhoto = new LongAdder();
+    final LongAdder tooLong = new LongAdder();
+    final LongAdder photoByUrl = new LongAdder();
+    final LongAdder photoUploaded = new LongAdder();
+    final LongAdder photoByFileId = new LongAdder();
+    final LongAdder deleteMessage = new LongAdder();
+    final LongAdder editMessageText = new LongAdder();
+    final LongAdder webhookRetries = new LongAdder();
+    final LongAdder webhookFailures = new LongAdder();
+
+    void register(HttpServer server) {
+        server.createContext("/bot", this::handle);
+    }
+
+    /** Number of getUpdates calls served; the bot is up once this is positive. */
+    long polls() {
+        return polls.get();
+    }
+
+    boolean webhookSet() {
+        return webhookUrl != null;
+    }
+
+    Inbox inbox(long chatId) {
+        return inboxes.computeIfAbsent(chatId, k -> new Inbox());
+    }
+
+    void sendText(long chatId, String text) {
+        JSONObject message = message(chatId, messageIds.getAndIncrement()).put("text", text);
+        enqueue(new JSONObject().put("message", message));
+    }
+
+    void pressButton(long chatId, String data) {
+        JSONObject query = new JSONObject()
+                .put("id", "cq" + updateIds.get())
+                .put("from", user(chatId))
+                .put("chat_instance", String.valueOf(chatId))
+                .put("message", message(chatId, messageIds.getAndIncrement()))
+                .put("data", data);
+        enqueue(new JSONObject().put("callback_query", query));
+    }
+
+    private void enqueue(JSONObject update) {
+        String url = webhookUrl;
+        if (url != null) {
+            push(url, update.put("update_id", updateIds.getAndIncrement()).toString(), 1);
+            return;
+        }
+        lock.lock();
+        try {
+            updates.add(update.put("update_id", updateIds.getAndIncrement()));
+            queued.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        String path = ex.getRequestURI().getPath();
+        // The library uses lower-case method paths (sendmessage), Telegram accepts both
+        String method = path.substring(path.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+        byte[] body = Exchanges.body(ex);
+        try {
+            switch (method) {
+                case "getupdates":
+                    Exchanges.json(ex, 200, ok(getUpdates(json(body))));
+                    return;
+                case "sendmessage": {
+                    JSONObject m = json(body);
+                    long chat = Long.parseLong(m.get("chat_id").toString());
+                    if (m.optString("text").length() > 4096) {
+                        tooLong(ex, "message is too long");
+                        return;
+                    }
+                    record(chat, new Sent(method, m.optString("text"), markup(m.opt("reply_markup")), System.nanoTime()));
+                    sendMessage.increment();
+                    Exchanges.json(ex, 200, ok(message(chat, messageIds.getAndIncrement()).put("text", m.optString("text"))));
+                    return;
+                }
+                case "sendphoto": {
+                    Map<String, String> f = Exchanges.formFields(ex.getRequestHeaders().getFirst("Content-Type"), body);
+                    long chat = Long.parseLong(f.get("chat_id"));
+                    if (f.get("caption") != null && f.get("caption").length() > 1024) {
+                        tooLong(ex, "message caption is too long");
+                        return;
+                    }
+                    String photo = f.get("photo");
+                    String fileId;
+                    if (photo == null) {
+                        photoUploaded.increment();
+                        fileId = "AgAC" + photos.incrementAndGet();
+                    } else if (photo.startsWith("http")) {
+                        photoByUrl.increment();
+                        int status;
+                        try {
+                            status = http.send(HttpRequest.newBuilder(URI.create(photo)).timeout(Duration.ofSeconds(30))
+                                    .build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+                        } catch (IOException e) {
+                            status = 0;
+                        }
+                        if (status != 200) {
+                            Exchanges.json(ex, 400, new JSONObject().put("ok", false).put("error_code", 400)
+                                    .put("description", "Bad Request: failed to get HTTP URL content").toString());
+                            return;
+                        }
+                        fileId = "AgAC" + photos.incrementAndGet();
+                    } else {
+                        photoByFileId.increment();
+                        fileId = photo;
+                    }
+                    record(chat, new Sent(method, f.get("caption"), f.get("reply_markup"), System.nanoTime()));
+                    sendPhoto.increment();
+                    JSONArray sizes = new JSONArray().put(new JSONObject().put("file_id", fileId)
+                            .put("file_unique_id", "u" + fileId).put("width", 1280).put("height", 720));
+                    Exchanges.json(ex, 200, ok(message(chat, messageIds.getAndIncrement()).put("photo", sizes)));
+                    return;
+                }
+                case "editmessagetext": {
+                    JSONObject m = json(body);
+                    long chat = Long.parseLong(m.get("chat_id").toString());
+                    record(chat, new Sent(method, m.optString("text"), markup(m.opt("reply_markup")), System.nanoTime()));
+                    editMessageText.increment();
+                    Exchanges.json(ex, 200, ok(message(chat, m.getInt("message_id")).put("text", m.optString("text"))));
+                    return;
+                }
+                case "setwebhook": {
+                    JSONObject m = json(body);
+                    webhookSecret = m.optString("secret_token", null);
+                    webhookUrl = m.getString("url");
+                    Exchanges.json(ex, 200, ok(true));
+                    return;
+                }
+                case "deletewebhook":
+                    webhookUrl = null;
+                    Exchanges.json(ex, 200, ok(true));
+                    return;
+                case "deletemessage":
+                    deleteMessage.increment();
+                    Exchanges.json(ex, 200, ok(true));
+                    return;
+                default:
+                    // getMe and anything else the library calls on startup
+                    Exchanges.json(ex, 200, ok(true));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Exchanges.json(ex, 500, "{\"ok\":false}");
+        } catch (RuntimeException e) {
+            Exchanges.json(ex, 400, new JSONObject().put("ok", false).put("error_code", 400)
+                    .put("description", "Bad Request: " + e).toString());
+        }
+    }
+
+    private void tooLong(HttpExchange ex, String description) throws IOException {
+        tooLong.increment();
+        Exchanges.json(ex, 400, new JSONObject().put("ok", false).put("error_code", 400)
+                .put("description", "Bad Request: " + description).toString());
+    }
+
+    /** Delivers to the webhook, retrying a few times like Telegram does when it isn't acknowledged. */
+    private void push(String url, String update, int attempt) {
+        HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofSeconds(10))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(update));
+        if (webhookSecret != null) req.header("X-Telegram-Bot-Api-Secret-Token", webhookSecret);
+        http.sendAsync(req.build(), HttpResponse.BodyHandlers.discarding()).whenComplete((resp, err) -> {
+            if (err == null && resp.statusCode() == 200) return;
+            if (attempt >= 5) {
+                webhookFailures.increment();
+                return;
+            }
+            webhookRetries.increment();
+            CompletableFuture.delayedExecutor(100L * attempt, TimeUnit.MILLISECONDS)
+                    .execute(() -> push(url, update, attempt + 1));
+        });
+    }
+
+    private JSONArray getUpdates(JSONObject request) throws InterruptedException {
+        polls.incrementAndGet();
+        long offset = request.optLong("offset", 0);
+        int limit = request.optInt("limit", 100);
+        long left = TimeUnit.SECONDS.toNanos(Math.min(request.optInt("timeout", 0), 10));
+        lock.lock();
+        try {
+            for (Iterator<JSONObject> it = updates.iterator(); it.hasNext(); ) {
+                if (it.next().getLong("update_id") < offset) it.remove();
+            }
+            while (updates.isEmpty() && left > 0) left = queued.awaitNanos(left);
+            JSONArray result = new JSONArray();
+            for (int i = 0; i < updates.size() && i < limit; i++) result.put(updates.get(i));
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(long chat, Sent sent) {
+        inbox(chat).add(sent);
+    }
+
+    private static String markup(Object m) {
+        return m == null ? null : m.toString();
+    }
+
+    private static JSONObject json(byte[] body) {
+        return body.length == 0 ? new JSONObject() : new JSONObject(new String(body, StandardCharsets.UTF_8));
+    }
+
+    private static String ok(Object result) {
+        return new JSONObject().put("ok", true).put("result", result).toString();
+    }
+
+    private static JSONObject user(long id) {
+        return new JSONObject().put("id", id).put("is_bot", false).put("first_name", "user" + id);
+    }
+
+    private static JSONObject message(long chatId, int messageId) {
+        String type = chatId < 0 ? "channel" : "private";
+        return new JSONObject()
+                .put("message_id", messageId)
+                .put("date", System.currentTimeMillis() / 1000)
+                .put("chat", new JSONObject().put("id", chatId).put("type", type))
+                .put("from", user(Math.abs(chatId)));
+    }
+}
@@ -0,0 +1,472 @@
+package bench.load;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Offline end-to-end load test. Starts fake Bot API, n8n, ImgBB and Baserow
+ * servers in this JVM, boots the bot as a child process pointed at them, and
+ * replays scripted conversations (generate, rewrite, publish) for many users
+ * at a target start rate. Reports throughput, per-step latency from the
+ * update being offered to {@code getUpdates} until the bot's reply arrives,
+ * and replies that never came.
+ *
+ * <p>With {@code --env.N8N_STREAM=true} the fake n8n streams its articles
+ * and the report adds the time until the first part is shown
+ * ({@code generate-first}, {@code rewrite-first}).
+ *
+ * <p>{@code --workers=N} runs the bot as a router and N worker processes
+ * instead; {@code --churn-s=S} additionally stops the last worker after S
+ * seconds and starts it again S seconds later, moving its chats away and back.
+ *
+ * <p>{@code --n8n-endpoints=N} serves n8n on N webhook paths, the last
+ * {@code --n8n-down=K} of them always failing; combine with
+ * {@code --env.N8N_HEDGE=p95} to see hedging cut the generation tail.
+ * {@code --img-origin-ms=M} makes each picture download from the origin take M ms.
+ * {@code --spam=K} has every user send K extra messages while waiting for
+ * each article. {@code --rewrites=N} rewrites each article N times before
+ * publishing; compare {@code --env.N8N_VERSION_REFS=true} against the default
+ * for the bytes n8n receives. {@code --archive=true} ends each dialog with
+ * {@code /history}, {@code /search} for the user's topic and reopening the
+ * article found. {@code --jvm="-Xmx256m ..."} passes flags to the bot's JVM and
+ * {@code --bot-cp=...} runs the bot from another classpath, such as its fat jar.
+ *
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar bench.load.LoadTest \
+ *       --users=200 --rate=10 --n8n-median-ms=1500 --n8n-p99-ms=8000 --n8n-error-rate=0.02 \
+ *       --env.TG_CHAT_PER_SEC=5
+ *   java -cp benchmarks/target/benchmarks.jar bench.load.LoadTest --users=200 --workers=3 --churn-s=20
+ * </pre>
+ */
+public final class LoadTest {
+
+    private static final long CHANNEL_ID = -1001L;
+    private static final long FIRST_CHAT = 700_000_000L;
+
+    private LoadTest() {}
+
+    private static final class Step {
+        final String name;
+        final Consumer<FakeTelegram> send;
+        final Predicate<FakeTelegram.Sent> done;
+
+        Step(String name, Consumer<FakeTelegram> send, Predicate<FakeTelegram.Sent> done) {
+            this.name = name;
+            this.send = send;
+            this.done = done;
+        }
+    }
+
+    private static final class Stats {
+        final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder lost = new LongAdder();
+        final LongAdder updates = new LongAdder();
+
+        void latency(String step, long nanos) {
+            latencies.computeIfAbsent(step, k -> Collections.synchronizedList(new ArrayList<>())).add(nanos);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opt = parse(args);
+        int users = Integer.parseInt(opt.getOrDefault("users", "100"));
+        double rate = Double.parseDouble(opt.getOrDefault("rate", "10"));
+        double siteShare = Double.parseDouble(opt.getOrDefault("site-share", "0.5"));
+        long thinkMillis = Long.parseLong(opt.getOrDefault("think-ms", "500"));
+        int spam = Integer.parseInt(opt.getOrDefault("spam", "0"));
+        int rewrites = Integer.parseInt(opt.getOrDefault("rewrites", "1"));
+        boolean archive = Boolean.parseBoolean(opt.getOrDefault("archive", "false"));
+        long stepTimeout = Long.parseLong(opt.getOrDefault("step-timeout-s", "120"));
+
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress("127.0.0.1", Integer.parseInt(opt.getOrDefault("port", "0"))), 0);
+        ExecutorService serverThreads = Executors.newCachedThreadPool(daemon("fake-backend"));
+        server.setExecutor(serverThreads);
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        FakeTelegram telegram = new FakeTelegram();
+        FakeN8n n8n = new FakeN8n(
+                Long.parseLong(opt.getOrDefault("n8n-median-ms", "1500")),
+                Long.parseLong(opt.getOrDefault("n8n-p99-ms", "6000")),
+                Double.parseDouble(opt.getOrDefault("n8n-error-rate", "0.02")),
+                Integer.parseInt(opt.getOrDefault("article-chars", "3000")),
+                base + "/img/");
+        FakeImgBB imgbb = new FakeImgBB(base, Long.parseLong(opt.getOrDefault("img-origin-ms", "0")));
+        FakeBaserow baserow = new FakeBaserow();
+        telegram.register(server);
+        n8n.register(server, Integer.parseInt(opt.getOrDefault("n8n-endpoints", "1")),
+                Integer.parseInt(opt.getOrDefault("n8n-down", "0")));
+        imgbb.register(server);
+        baserow.register(server);
+        server.start();
+
+        Path dataDir = Files.createTempDirectory("bot-loadtest-");
+        int workerCount = Integer.parseInt(opt.getOrDefault("workers", "0"));
+        Cluster cluster = workerCount > 0 ? new Cluster(base, dataDir, opt, workerCount) : null;
+        Process bot = cluster != null ? cluster.router : startBot(base, dataDir, opt);
+        System.out.println("Бот запущен, логи: " + dataDir);
+        ScheduledExecutorService churn = Executors.newSingleThreadScheduledExecutor(daemon("churn"));
+        try {
+            awaitReady(telegram, bot);
+            long churnSeconds = Long.parseLong(opt.getOrDefault("churn-s", "0"));
+            if (cluster != null && churnSeconds > 0) {
+                churn.schedule(cluster::stopLast, churnSeconds, TimeUnit.SECONDS);
+                churn.schedule(cluster::startLast, 2 * churnSeconds, TimeUnit.SECONDS);
+            }
+
+            Stats stats = new Stats();
+            CountDownLatch finished = new CountDownLatch(users);
+            ExecutorService conversations = Executors.newCachedThreadPool(daemon("user"));
+            ScheduledExecutorService starter = Executors.newSingleThreadScheduledExecutor(daemon("starter"));
+            AtomicInteger started = new AtomicInteger();
+            long t0 = System.nanoTime();
+            starter.scheduleAtFixedRate(() -> {
+                int n = started.getAndIncrement();
+                if (n >= users) {
+                    starter.shutdown();
+                    return;
+                }
+                boolean site = ThreadLocalRandom.current().nextDouble() < siteShare;
+                conversations.execute(() -> {
+                    try {
+                        converse(telegram, FIRST_CHAT + n, site, thinkMillis, spam, rewrites, archive, stepTimeout,
+                                stats);
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }, 0, (long) (1e9 / rate), TimeUnit.NANOSECONDS);
+
+            finished.await();
+            double seconds = (System.nanoTime() - t0) / 1e9;
+            report(users, seconds, stats, telegram, n8n, imgbb, baserow);
+            conversations.shutdown();
+        } finally {
+            churn.shutdownNow();
+            if (cluster != null) cluster.stop();
+            else stop(bot);
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    /**
+     * One user: generate, rewrite {@code rewrites} times, publish, sending
+     * {@code spam} impatient extra messages right after each generation
+     * request. Stops at the first error or missing reply.
+     */
+    private static void converse(FakeTelegram tg, long chat, boolean site, long thinkMillis, int spam,
+                                 int rewrites, boolean archive, long stepTimeout, Stats stats) {
+        String publish = site ? "PUBLISH_ZEN" : "PUBLISH_TG";
+        List<Step> steps = new ArrayList<>(Arrays.asList(
+                new Step("start", t -> t.sendText(chat, "/start"), text("Выбери площадку:")),
+                new Step("channel", t -> t.pressButton(chat, site ? "CH_SITE" : "CH_TG"), textStarts("Что делаем с")),
+                new Step("action", t -> t.pressButton(chat, "ACT_GEN"), text("📝 Введите тему статьи:")),
+                new Step("topic", t -> t.sendText(chat, "Тема пользователя " + chat), text("📝 Опишите подробнее:")),
+                new Step("generate", t -> {
+                    t.sendText(chat, "Подробности от " + chat);
+                    for (int i = 0; i < spam; i++) t.sendText(chat, "Ну что там?");
+                }, markup(publish))));
+        for (int r = 0; r < rewrites; r++) {
+            String feedback = "Короче, пожалуйста" + (r == 0 ? "" : " (" + (r + 1) + ")");
+            steps.add(new Step("rewrite-ask", t -> t.pressButton(chat, "REREWRITE"),
+                    text("✏️ Что нужно изменить в статье?")));
+            steps.add(new Step("rewrite", t -> {
+                t.sendText(chat, feedback);
+                for (int i = 0; i < spam; i++) t.sendText(chat, "Ну что там?");
+            }, markup(publish)));
+        }
+        steps.add(new Step("publish", t -> t.pressButton(chat, publish), textStarts("✅ Опубликовано")));
+        if (archive) {
+            steps.add(new Step("history", t -> t.sendText(chat, "/history"), s -> s.markup.contains("\"H_")));
+            steps.add(new Step("search", t -> t.sendText(chat, "/search пользователя " + chat),
+                    s -> s.markup.contains("\"H_")));
+            steps.add(new Step("reopen", t -> t.pressButton(chat, lastArchiveButton(t, chat)), markup(publish)));
+        }
+
+        FakeTelegram.Inbox inbox = tg.inbox(chat);
+        try {
+            for (Step step : steps) {
+                int from = inbox.size();
+                long sent = System.nanoTime();
+                step.send.accept(tg);
+                stats.updates.increment();
+                FakeTelegram.Sent reply = inbox.await(from, step.done.or(s -> s.text.startsWith("❌")),
+                        stepTimeout, TimeUnit.SECONDS);
+                if (reply == null) {
+                    stats.lost.increment();
+                    System.err.println("Нет ответа: чат " + chat + ", шаг " + step.name);
+                    return;
+                }
+                if (!step.done.test(reply)) {
+                    stats.failed.increment();
+                    return;
+                }
+                stats.latency(step.name, reply.atNanos - sent);
+                FakeTelegram.Sent first = inbox.await(from, s -> s.method.equals("editmessagetext"), 0, TimeUnit.SECONDS);
+                if (first != null) stats.latency(step.name + "-first", first.atNanos - sent);
+                if (thinkMillis > 0) Thread.sleep(thinkMillis);
+            }
+            stats.completed.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Callback data of the first article in the chat's latest archive list. */
+    private static String lastArchiveButton(FakeTelegram tg, long chat) {
+        FakeTelegram.Sent s = tg.inbox(chat).last(m -> m.markup.contains("\"H_"));
+        if (s == null) return "H_0";
+        int at = s.markup.indexOf("\"H_") + 1;
+        return s.markup.substring(at, s.markup.indexOf('"', at));
+    }
+
+    private static Predicate<FakeTelegram.Sent> text(String expected) {
+        return s -> s.text.equals(expected);
+    }
+
+    private static Predicate<FakeTelegram.Sent> textStarts(String prefix) {
+        return s -> s.text.startsWith(prefix);
+    }
+
+    private static Predicate<FakeTelegram.Sent> markup(String callbackData) {
+        return s -> s.markup.contains("\"" + callbackData + "\"");
+    }
+
+    private static void report(int users, double seconds, Stats stats, FakeTelegram tg, FakeN8n n8n,
+                               FakeImgBB imgbb, FakeBaserow baserow) {
+        System.out.printf(Locale.ROOT, "%nДиалогов: %d за %.1f с — завершено %d, ошибок бота %d, без ответа %d%n",
+                users, seconds, stats.completed.sum(), stats.failed.sum(), stats.lost.sum());
+        System.out.printf(Locale.ROOT, "Пропускная способность: %.2f диалогов/с, %.1f апдейтов/с, %.1f отправок/с%n",
+                stats.completed.sum() / seconds, stats.updates.sum() / seconds,
+                (tg.sendMessage.sum() + tg.sendPhoto.sum()) / seconds);
+        System.out.printf(Locale.ROOT, "%-14s %7s %9s %9s %9s %9s%n", "шаг", "n", "p50 мс", "p90 мс", "p99 мс", "max мс");
+        List<Long> all = new ArrayList<>();
+        for (String step : Arrays.asList("start", "channel", "action", "topic", "generate-first", "generate",
+                "rewrite-ask", "rewrite-first", "rewrite", "publish", "history", "search", "reopen")) {
+            List<Long> l = stats.latencies.get(step);
+            if (l == null) continue;
+            List<Long> copy;
+            synchronized (l) {
+                copy = new ArrayList<>(l);
+            }
+            if (!step.endsWith("-first")) all.addAll(copy);
+            row(step, copy);
+        }
+        row("все", all);
+        System.out.printf(Locale.ROOT, "Telegram: sendMessage %d, sendPhoto %d, editMessageText %d, deleteMessage %d, "
+                        + "постов в канале %d, отказов по длине %d%n", tg.sendMessage.sum(), tg.sendPhoto.sum(),
+                tg.editMessageText.sum(), tg.deleteMessage.sum(), tg.inbox(CHANNEL_ID).size(), tg.tooLong.sum());
+        System.out.printf(Locale.ROOT, "Фото: по URL %d, загружено %d, по file_id %d%n",
+                tg.photoByUrl.sum(), tg.photoUploaded.sum(), tg.photoByFileId.sum());
+        System.out.printf(Locale.ROOT, "n8n: вызовов %d, ошибок %d; ImgBB: скачиваний %d, загрузок %d; "
+                        + "Baserow: запросов %d, строк %d%n",
+                n8n.calls.sum(), n8n.errors.sum(), imgbb.downloads.sum(), imgbb.uploads.sum(),
+                baserow.requests.sum(), baserow.rows.sum());
+        System.out.printf(Locale.ROOT, "n8n: получено %.1f КБ запросов, неизвестных версий %d%n",
+                n8n.requestBytes.sum() / 1024.0, n8n.unknownVersions.sum());
+        if (n8n.perEndpoint.length > 1) {
+            StringBuilder sb = new StringBuilder("n8n по эндпоинтам:");
+            for (int i = 0; i < n8n.perEndpoint.length; i++) {
+                sb.append(' ').append(i).append('=').append(n8n.perEndpoint[i].sum());
+            }
+            System.out.println(sb);
+        }
+    }
+
+    private static void row(String name, List<Long> nanos) {
+        if (nanos.isEmpty()) return;
+        Collections.sort(nanos);
+        System.out.printf(Locale.ROOT, "%-14s %7d %9.1f %9.1f %9.1f %9.1f%n", name, nanos.size(),
+                pct(nanos, 0.5), pct(nanos, 0.9), pct(nanos, 0.99), nanos.get(nanos.size() - 1) / 1e6);
+    }
+
+    static double pct(List<Long> sorted, double q) {
+        int i = (int) Math.ceil(q * sorted.size()) - 1;
+        return sorted.get(Math.max(0, i)) / 1e6;
+    }
+
+    /** Router plus worker processes, each worker with its own data directory. */
+    private static final class Cluster {
+        final String base;
+        final Path dataDir;
+        final Map<String, String> opt;
+        final List<Integer> ports = new ArrayList<>();
+        final Process[] workers;
+        final int routerPort;
+        final Process router;
+
+        Cluster(String base, Path dataDir, Map<String, String> opt, int size) throws IOException, InterruptedException {
+            this.base = base;
+            this.dataDir = dataDir;
+            this.opt = opt;
+            this.workers = new Process[size];
+            routerPort = freePort();
+            List<String> urls = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                ports.add(freePort());
+                urls.add("http://127.0.0.1:" + ports.get(i));
+            }
+            for (int i = 0; i < size; i++) workers[i] = startWorker(i);
+            for (int i = 0; i < size; i++) awaitPort(ports.get(i), workers[i]);
+            Map<String, String> env = new LinkedHashMap<>();
+            env.put("ROUTER_PORT", String.valueOf(routerPort));
+            env.put("WORKERS", String.join(",", urls));
+            router = startProcess(base, dataDir, opt, env, "router.log");
+        }
+
+        private Process startWorker(int i) throws IOException {
+            Path dir = dataDir.resolve("worker-" + i);
+            Files.createDirectories(dir);
+            Map<String, String> env = new LinkedHashMap<>();
+            env.put("WORKER_PORT", String.valueOf(ports.get(i)));
+            env.put("ROUTER_URL", "http://127.0.0.1:" + routerPort);
+            env.put("DATA_DIR", dir.toString());
+            return startProcess(base, dir, opt, env, "bot.log");
+        }
+
+        synchronized void stopLast() {
+            int last = workers.length - 1;
+            long t0 = System.nanoTime();
+            LoadTest.stop(workers[last]);
+            System.out.printf(Locale.ROOT, "Воркер %d остановлен за %.1f с%n", last, (System.nanoTime() - t0) / 1e9);
+        }
+
+        synchronized void startLast() {
+            int last = workers.length - 1;
+            try {
+                workers[last] = startWorker(last);
+                System.out.println("Воркер " + last + " снова запущен");
+            } catch (IOException e) {
+                System.err.println("Не удалось перезапустить воркер: " + e);
+            }
+        }
+
+        // Router first: the workers' leave then fails fast instead of moving sessions around
+        synchronized void stop() {
+            LoadTest.stop(router);
+            for (Process w : workers) w.destroy();
+            for (Process w : workers) LoadTest.stop(w);
+        }
+    }
+
+    static Process startBot(String base, Path dataDir, Map<String, String> opt) throws IOException {
+        return startProcess(base, dataDir, opt, Collections.emptyMap(), "bot.log");
+    }
+
+    private static Process startProcess(String base, Path dataDir, Map<String, String> opt, Map<String, String> extra,
+                                        String log) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        String jvm = opt.getOrDefault("jvm", "").trim();
+        if (!jvm.isEmpty()) command.addAll(Arrays.asList(jvm.split("\\s+")));
+        command.addAll(Arrays.asList("-cp", opt.getOrDefault("bot-cp", System.getProperty("java.class.path")),
+                "TelegramArticleBot"));
+        ProcessBuilder pb = new ProcessBuilder(command);
+        Map<String, String> env = pb.environment();
+        env.put("BOT_TOKEN", "123456:LOADTEST");
+        env.put("BOT_USERNAME", "loadtest_bot");
+        env.put("TELEGRAM_API_URL", base + "/bot");
+        env.put("CHANNEL_ID", String.valueOf(CHANNEL_ID));
+        env.put("N8N_WEBHOOK_URL", FakeN8n.urls(base, Integer.parseInt(opt.getOrDefault("n8n-endpoints", "1"))));
+        env.put("IMGBB_API_KEY", "loadtest");
+        env.put("IMGBB_UPLOAD_URL", base + "/imgbb/upload");
+        env.put("BASEROW_API_URL", base + "/baserow/api/database/rows/table/1/?user_field_names=true");
+        env.put("BASEROW_TOKEN", "loadtest");
+        env.put("DATA_DIR", dataDir.toString());
+        for (Map.Entry<String, String> e : opt.entrySet()) {
+            if (e.getKey().startsWith("env.")) env.put(e.getKey().substring(4), e.getValue());
+        }
+        env.putAll(extra);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(dataDir.resolve(log).toFile());
+        return pb.start();
+    }
+
+    static void stop(Process p) {
+        p.destroy();
+        try {
+            if (!p.waitFor(6, TimeUnit.MINUTES)) p.destroyForcibly();
+        } catch (InterruptedException e) {
+            p.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitPort(int port, Process p) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (true) {
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                if (!p.isAlive()) throw new IllegalStateException("Воркер завершился с кодом " + p.exitValue());
+                if (System.nanoTime() > deadline) throw new IllegalStateException("Воркер не открыл порт " + port);
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    /** Waits until the bot is receiving updates, by polling or through its webhook. */
+    static void awaitReady(FakeTelegram tg, Process bot) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (tg.polls() == 0 && !tg.webhookSet()) {
+            if (!bot.isAlive()) throw new IllegalStateException("Бот завершился с кодом " + bot.exitValue());
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Бот не начал получать апдейты");
+            Thread.sleep(50);
+        }
+    }
+
+    /** {@code --name=value} pairs. */
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> opt = new LinkedHashMap<>();
+        for (String a : args) {
+            if (!a.startsWith("--") || !a.contains("=")) throw new IllegalArgumentException("Ожидается --имя=значение: " + a);
+            int eq = a.indexOf('=');
+            opt.put(a.substring(2, eq), a.substring(eq + 1));
+        }
+        return opt;
+    }
+
+    static java.util.concurrent.ThreadFactory daemon(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,179 @@
+package bench.load;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup and shutdown of the bot process, against the fake backends.
+ *
+ * Each run queues "/start" at the fake Bot API, launches a fresh bot and
+ * measures from the launch until the first {@code getUpdates} (ready) and
+ * until the platform menu arrives (first handled update). With
+ * {@code --cds=target/bot.jsa} every run is repeated with that class-data
+ * archive (see the {@code cds} profile of the bot's pom); the archive only
+ * applies to the classpath it was made for, so pass the fat jar as
+ * {@code --bot-cp}.
+ *
+ * {@code --drain-users=N} then starts N generations against a slow fake n8n,
+ * stops the bot with SIGTERM while they run and reports how many articles
+ * were still delivered and how long the process took to exit.
+ *
+ * <pre>
+ *   mvn -Pcds package
+ *   java -cp benchmarks/target/benchmarks.jar bench.load.StartupTime --runs=5 --cds=target/bot.jsa \
+ *       --bot-cp=$PWD/target/telegram-article-bot-1.0.0-jar-with-dependencies.jar
+ *   java -cp benchmarks/target/benchmarks.jar bench.load.StartupTime --runs=1 --drain-users=20
+ * </pre>
+ */
+public final class StartupTime {
+
+    private static final long FIRST_CHAT = 900_000_000L;
+    private static final String MENU = "Выбери площадку:";
+
+    private StartupTime() {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opt = LoadTest.parse(args);
+        int runs = Integer.parseInt(opt.getOrDefault("runs", "5"));
+        String cds = opt.get("cds");
+        int drainUsers = Integer.parseInt(opt.getOrDefault("drain-users", "0"));
+
+        List<Long> ready = new ArrayList<>();
+        List<Long> first = new ArrayList<>();
+        List<Long> cdsReady = new ArrayList<>();
+        List<Long> cdsFirst = new ArrayList<>();
+        for (int i = 0; i < runs; i++) {
+            start(opt, "", ready, first);
+            if (cds != null) start(opt, "-XX:SharedArchiveFile=" + cds, cdsReady, cdsFirst);
+        }
+        System.out.printf(Locale.ROOT, "%n%-22s %5s %9s %9s %9s%n", "от запуска JVM до", "n", "min мс", "p50 мс", "max мс");
+        row("getUpdates", ready);
+        row("первого ответа", first);
+        row("getUpdates (CDS)", cdsReady);
+        row("первого ответа (CDS)", cdsFirst);
+
+        if (drainUsers > 0) drain(opt, drainUsers);
+    }
+
+    private static void start(Map<String, String> opt, String jvm, List<Long> ready, List<Long> first)
+            throws Exception {
+        Backends b = new Backends(opt);
+        Map<String, String> run = new LinkedHashMap<>(opt);
+        run.put("jvm", (opt.getOrDefault("jvm", "") + " " + jvm).trim());
+        Path dataDir = Files.createTempDirectory("bot-startup-");
+        FakeTelegram.Inbox inbox = b.telegram.inbox(FIRST_CHAT);
+        b.telegram.sendText(FIRST_CHAT, "/start");
+        long t0 = System.nanoTime();
+        Process bot = LoadTest.startBot(b.base, dataDir, run);
+        try {
+            LoadTest.awaitReady(b.telegram, bot);
+            ready.add(System.nanoTime() - t0);
+            FakeTelegram.Sent reply = inbox.await(0, s -> s.text.equals(MENU), 60, TimeUnit.SECONDS);
+            if (reply == null) throw new IllegalStateException("Нет ответа на /start, логи: " + dataDir);
+            first.add(reply.atNanos - t0);
+        } finally {
+            LoadTest.stop(bot);
+            b.close();
+        }
+    }
+
+    /** Stops the bot while {@code users} generations are in flight. */
+    private static void drain(Map<String, String> opt, int users) throws Exception {
+        Map<String, String> run = new LinkedHashMap<>(opt);
+        run.putIfAbsent("n8n-median-ms", "4000");
+        run.putIfAbsent("n8n-p99-ms", "6000");
+        run.putIfAbsent("n8n-error-rate", "0");
+        Backends b = new Backends(run);
+        Path dataDir = Files.createTempDirectory("bot-drain-");
+        Process bot = LoadTest.startBot(b.base, dataDir, run);
+        try {
+            LoadTest.awaitReady(b.telegram, bot);
+            for (int i = 0; i < users; i++) {
+                long chat = FIRST_CHAT + 1 + i;
+                FakeTelegram.Inbox inbox = b.telegram.inbox(chat);
+                step(b.telegram, inbox, () -> b.telegram.sendText(chat, "/start"), MENU);
+                step(b.telegram, inbox, () -> b.telegram.pressButton(chat, "CH_TG"), null);
+                step(b.telegram, inbox, () -> b.telegram.pressButton(chat, "ACT_GEN"), "📝 Введите тему статьи:");
+                step(b.telegram, inbox, () -> b.telegram.sendText(chat, "Тема " + chat), "📝 Опишите подробнее:");
+                b.telegram.sendText(chat, "Подробности " + chat);
+            }
+            Thread.sleep(500);
+            long t0 = System.nanoTime();
+            bot.destroy();
+            boolean exited = bot.waitFor(5, TimeUnit.MINUTES);
+            double seconds = (System.nanoTime() - t0) / 1e9;
+            int delivered = 0;
+            for (int i = 0; i < users; i++) {
+                if (b.telegram.inbox(FIRST_CHAT + 1 + i).last(s -> s.markup.contains("\"PUBLISH_TG\"")) != null) {
+                    delivered++;
+                }
+            }
+            System.out.printf(Locale.ROOT, "%nSIGTERM при %d генерациях: доставлено статей %d, процесс %s за %.1f с%n",
+                    users, delivered, exited ? "завершился" : "не завершился", seconds);
+            System.out.println("Логи: " + dataDir);
+        } finally {
+            if (bot.isAlive()) bot.destroyForcibly();
+            b.close();
+        }
+    }
+
+    private static void step(FakeTelegram tg, FakeTelegram.Inbox inbox, Runnable send, String expected)
+            throws InterruptedException {
+        int from = inbox.size();
+        send.run();
+        FakeTelegram.Sent reply = inbox.await(from, s -> expected == null || s.text.equals(expected),
+                30, TimeUnit.SECONDS);
+        if (reply == null) throw new IllegalStateException("Бот не ответил, ожидалось: " + expected);
+    }
+
+    private static void row(String name, List<Long> nanos) {
+        if (nanos.isEmpty()) return;
+        Collections.sort(nanos);
+        System.out.printf(Locale.ROOT, "%-22s %5d %9.1f %9.1f %9.1f%n", name, nanos.size(),
+                nanos.get(0) / 1e6, LoadTest.pct(nanos, 0.5), nanos.get(nanos.size() - 1) / 1e6);
+    }
+
+    /** Fake Bot API, n8n, ImgBB and Baserow on one local server. */
+    private static final class Backends implements AutoCloseable {
+        final HttpServer server;
+        final ExecutorService threads;
+        final String base;
+        final FakeTelegram telegram = new FakeTelegram();
+
+        Backends(Map<String, String> opt) throws Exception {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            threads = Executors.newCachedThreadPool(LoadTest.daemon("fake-backend"));
+            server.setExecutor(threads);
+            base = "http://127.0.0.1:" + server.getAddress().getPort();
+            FakeN8n n8n = new FakeN8n(
+                    Long.parseLong(opt.getOrDefault("n8n-median-ms", "1500")),
+                    Long.parseLong(opt.getOrDefault("n8n-p99-ms", "6000")),
+                    Double.parseDouble(opt.getOrDefault("n8n-error-rate", "0")),
+                    Integer.parseInt(opt.getOrDefault("article-chars", "3000")),
+                    base + "/img/");
+            telegram.register(server);
+            n8n.register(server, 1, 0);
+            new FakeImgBB(base, 0).register(server);
+            new FakeBaserow().register(server);
+            server.start();
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+            threads.shutdownNow();
+        }
+    }
+}
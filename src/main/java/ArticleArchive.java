@@ -0,0 +1,331 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Every generated or rewritten article, so an old one can be reopened and
+ * published again without another n8n run.
+ *
+ * Articles are appended to a {@link RecordLog} that is never compacted: one
+ * record per article and one per change of its publish status. Memory holds
+ * only the metadata, the record offset and an inverted index; texts are read
+ * from disk when an article is opened.
+ *
+ * The index maps each word (lower case, ё as е) to the ids of the articles
+ * containing it, delta- and varint-encoded. On start only the metadata is
+ * read; the index is rebuilt from disk in the background while history and
+ * opening already work, and searches wait for it. Query words match as
+ * prefixes, so "стат" finds both "статья" and "статьи".
+ */
+final class ArticleArchive implements Closeable {
+
+    enum Status { DRAFT, QUEUED, PUBLISHED, FAILED }
+
+    static final class Entry {
+        final long id;
+        final long chat;
+        final TelegramArticleBot.ChannelType channel;
+        final String topic;
+        final long created;
+        final long offset;
+        volatile Status status = Status.DRAFT;
+
+        Entry(long id, long chat, TelegramArticleBot.ChannelType channel, String topic, long created, long offset) {
+            this.id = id;
+            this.chat = chat;
+            this.channel = channel;
+            this.topic = topic;
+            this.created = created;
+            this.offset = offset;
+        }
+    }
+
+    private static final byte ARTICLE = 1;
+    private static final byte STATUS = 2;
+    private static final int MIN_WORD = 2;
+    private static final int MAX_WORD = 40;
+    private static final long INDEX_WAIT_SECONDS = 10;
+
+    private final RecordLog log;
+
+    // All guarded by this; entries.get(i) has id i + 1
+    private final List<Entry> entries = new ArrayList<>();
+    private final TreeMap<String, Postings> index = new TreeMap<>();
+    // Ids 1..indexed are in the index, added in order as postings require
+    private int indexed;
+    private final CompletableFuture<Void> built = new CompletableFuture<>();
+    // Outbox job id -> article id while a publication is pending
+    private final Map<Long, Long> jobs = new HashMap<>();
+
+    ArticleArchive(Path file) throws IOException {
+        this.log = new RecordLog(file);
+        log.replayWithOffsets((key, kind, payload, offset) -> {
+            if (kind == ARTICLE) {
+                long chat = payload.getLong();
+                TelegramArticleBot.ChannelType channel = TelegramArticleBot.ChannelType.values()[payload.get()];
+                long created = payload.getLong();
+                String topic = RecordLog.readString(payload);
+                entries.add(new Entry(key, chat, channel, topic, created, offset));
+            } else if (kind == STATUS && key >= 1 && key <= entries.size()) {
+                Status status = Status.values()[payload.get()];
+                long job = payload.getLong();
+                entries.get((int) key - 1).status = status;
+                if (status == Status.QUEUED) jobs.put(job, key);
+                else jobs.remove(job);
+            }
+        });
+        Thread t = new Thread(this::buildIndex, "archive-index");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Archives {@code ar} and returns a copy carrying the archive id. */
+    TelegramArticleBot.ArticleResult record(long chat, TelegramArticleBot.ChannelType channel, String topic,
+                                            TelegramArticleBot.ArticleResult ar) throws IOException {
+        long created = System.currentTimeMillis();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + (ar.text == null ? 0 : ar.text.length() * 2));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(chat);
+        out.writeByte(channel.ordinal());
+        out.writeLong(created);
+        RecordLog.writeString(out, topic);
+        RecordLog.writeString(out, ar.text);
+        RecordLog.writeString(out, ar.picture);
+        RecordLog.writeString(out, ar.zenDocumentId);
+        Set<String> words = words(topic, ar.text);
+        long id;
+        synchronized (this) {
+            id = entries.size() + 1;
+            long offset = log.append(id, ARTICLE, bytes.toByteArray());
+            entries.add(new Entry(id, chat, channel, topic, created, offset));
+            // Until the rebuild is done, it picks new articles up from disk
+            if (built.isDone() && !built.isCompletedExceptionally()) addToIndex(words);
+        }
+        TelegramArticleBot.ArticleResult copy = new TelegramArticleBot.ArticleResult(ar.text, ar.picture);
+        copy.zenDocumentId = ar.zenDocumentId;
+        copy.archiveId = id;
+        return copy;
+    }
+
+    /** The article went to the publish outbox as job {@code job}. */
+    void queued(long id, long job) {
+        setStatus(id, Status.QUEUED, job);
+    }
+
+    /** The outbox finished job {@code job}; ignored unless it publishes an archived article. */
+    void published(long job, boolean ok) {
+        Long id;
+        synchronized (this) {
+            id = jobs.get(job);
+        }
+        if (id != null) setStatus(id, ok ? Status.PUBLISHED : Status.FAILED, job);
+    }
+
+    /** The chat's latest articles, newest first. */
+    synchronized List<Entry> history(long chat, int limit) {
+        List<Entry> out = new ArrayList<>();
+        for (int i = entries.size() - 1; i >= 0 && out.size() < limit; i--) {
+            Entry e = entries.get(i);
+            if (e.chat == chat) out.add(e);
+        }
+        return out;
+    }
+
+    /** The chat's articles containing every word of {@code query} (as a prefix), newest first. */
+    List<Entry> search(long chat, String query, int limit) {
+        Set<String> words = words(null, query);
+        List<Entry> out = new ArrayList<>();
+        if (words.isEmpty()) return out;
+        try {
+            built.get(INDEX_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Search what is indexed so far
+        }
+        synchronized (this) {
+            BitSet hits = null;
+            for (String w : words) {
+                BitSet matches = new BitSet(entries.size() + 1);
+                for (Postings p : index.subMap(w, true, w + Character.MAX_VALUE, false).values()) {
+                    p.addTo(matches);
+                }
+                if (hits == null) hits = matches;
+                else hits.and(matches);
+                if (hits.isEmpty()) return out;
+            }
+            for (int id = hits.length() - 1; id > 0 && out.size() < limit; id = hits.previousSetBit(id - 1)) {
+                Entry e = entries.get(id - 1);
+                if (e.chat == chat) out.add(e);
+            }
+        }
+        return out;
+    }
+
+    synchronized Entry entry(long id) {
+        return id >= 1 && id <= entries.size() ? entries.get((int) id - 1) : null;
+    }
+
+    /** Reads the article back from disk. */
+    TelegramArticleBot.ArticleResult open(Entry e) throws IOException {
+        ByteBuffer in = log.read(e.offset);
+        in.getLong();
+        in.get();
+        in.getLong();
+        RecordLog.readString(in);
+        TelegramArticleBot.ArticleResult ar = new TelegramArticleBot.ArticleResult(
+                RecordLog.readString(in), RecordLog.readString(in));
+        ar.zenDocumentId = RecordLog.readString(in);
+        ar.archiveId = e.id;
+        return ar;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized int words() {
+        return index.size();
+    }
+
+    long sizeBytes() {
+        try {
+            return log.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private void setStatus(long id, Status status, long job) {
+        ByteBuffer b = ByteBuffer.allocate(1 + 8);
+        b.put((byte) status.ordinal()).putLong(job);
+        synchronized (this) {
+            Entry e = entry(id);
+            if (e == null) return;
+            try {
+                log.append(id, STATUS, b.array());
+            } catch (IOException ex) {
+                Log.warn("Ошибка записи архива статей", "article", id, "error", ex.getMessage());
+                return;
+            }
+            e.status = status;
+            if (status == Status.QUEUED) jobs.put(job, id);
+            else jobs.remove(job);
+        }
+    }
+
+    /** Indexes the articles read at start, then any recorded meanwhile, one by one in id order. */
+    private void buildIndex() {
+        long t0 = System.nanoTime();
+        try {
+            while (true) {
+                Entry e;
+                synchronized (this) {
+                    if (indexed == entries.size()) {
+                        built.complete(null);
+                        break;
+                    }
+                    e = entries.get(indexed);
+                }
+                ByteBuffer in = log.read(e.offset);
+                in.getLong();
+                in.get();
+                in.getLong();
+                Set<String> words = words(RecordLog.readString(in), RecordLog.readString(in));
+                synchronized (this) {
+                    addToIndex(words);
+                }
+            }
+            if (indexed > 0) {
+                Log.info("Индекс архива построен", "articles", indexed, "ms", (System.nanoTime() - t0) / 1e6);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.error("Не удалось построить индекс архива", e);
+            built.completeExceptionally(e);
+        }
+    }
+
+    // Caller holds the lock; the words belong to article indexed + 1
+    private void addToIndex(Set<String> words) {
+        int id = ++indexed;
+        for (String w : words) index.computeIfAbsent(w, k -> new Postings()).add(id);
+    }
+
+    /** Distinct lower-cased words of {@code a} and {@code b}: runs of letters and digits. */
+    static Set<String> words(String a, String b) {
+        Set<String> out = new HashSet<>();
+        char[] w = new char[MAX_WORD];
+        for (String s : new String[]{a, b}) {
+            if (s == null) continue;
+            int len = 0;
+            for (int i = 0, n = s.length(); i <= n; i++) {
+                char c = i < n ? s.charAt(i) : ' ';
+                if (Character.isLetterOrDigit(c)) {
+                    c = Character.toLowerCase(c);
+                    // Longer runs are dropped, but still counted so they aren't cut into words
+                    if (len < MAX_WORD) w[len] = c == 'ё' ? 'е' : c;
+                    len++;
+                } else if (len > 0) {
+                    if (len >= MIN_WORD && len <= MAX_WORD) out.add(new String(w, 0, len));
+                    len = 0;
+                }
+            }
+        }
+        return out;
+    }
+
+    /** Ascending article ids as varint-encoded gaps. */
+    private static final class Postings {
+        private byte[] bytes = new byte[4];
+        private int length;
+        private int last;
+
+        void add(int id) {
+            int gap = id - last;
+            last = id;
+            if (length + 5 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            while ((gap & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((gap & 0x7f) | 0x80);
+                gap >>>= 7;
+            }
+            bytes[length++] = (byte) gap;
+        }
+
+        void addTo(BitSet set) {
+            int id = 0;
+            for (int i = 0; i < length; ) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[i++];
+                    gap |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += gap;
+                set.set(id);
+            }
+        }
+    }
+}
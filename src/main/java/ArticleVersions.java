@@ -0,0 +1,202 @@
+import okio.ByteString;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Article texts that may be rewritten, addressed by the SHA-256 of their
+ * UTF-8 bytes (the version id). Sessions hold the id instead of the text, so
+ * an article under review exists once on disk rather than in every session
+ * and journal record that refers to it.
+ *
+ * Texts live in a size-bounded LRU directory, one {@code <id>.txt} file per
+ * version; the index is rebuilt from the directory on start. Versions a live
+ * session still means to rewrite are never evicted, even past the bound.
+ *
+ * The store also remembers which versions n8n has: those it produced itself
+ * and those it was sent in full. A rewrite of such a version only sends the id
+ * (see {@link N8nCodec#rewrite}); if n8n answers that it doesn't know it, the
+ * caller {@link #forget}s it and sends the text. Kept in memory only, so after
+ * a restart a text sent before is sent once more.
+ */
+final class ArticleVersions {
+
+    private static final String SUFFIX = ".txt";
+    private static final int MAX_KNOWN = 10_000;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final Supplier<Set<String>> pinned;
+
+    // Both guarded by this; values are file sizes
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    // Guarded by its own monitor
+    private final Map<String, Boolean> known = new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_KNOWN;
+        }
+    };
+
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder referenced = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** @param pinned ids of the versions sessions refer to; asked only when something must be evicted */
+    ArticleVersions(Path dir, long maxBytes, Supplier<Set<String>> pinned) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.pinned = pinned;
+        Files.createDirectories(dir);
+        load();
+    }
+
+    static String id(String text) {
+        return ByteString.encodeUtf8(text).sha256().hex();
+    }
+
+    /** Stores {@code text} unless that version is already stored and returns its id. */
+    String put(String text) throws IOException {
+        String id = id(text);
+        Path file = file(id);
+        synchronized (this) {
+            if (entries.get(id) != null && Files.exists(file)) {
+                touch(file);
+                return id;
+            }
+        }
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        Path tmp = Files.createTempFile(dir, id, ".part");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        add(id, data.length);
+        return id;
+    }
+
+    /** The text of version {@code id}, or null if it was evicted. */
+    String text(String id) throws IOException {
+        try {
+            String text = new String(Files.readAllBytes(file(id)), StandardCharsets.UTF_8);
+            synchronized (this) {
+                // Refreshes the LRU order
+                entries.get(id);
+            }
+            touch(file(id));
+            return text;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    boolean knownByN8n(String id) {
+        boolean hit;
+        synchronized (known) {
+            hit = known.get(id) != null;
+        }
+        if (hit) referenced.increment();
+        return hit;
+    }
+
+    void markKnown(String id) {
+        synchronized (known) {
+            known.put(id, Boolean.TRUE);
+        }
+    }
+
+    /** n8n said it doesn't have {@code id}. */
+    void forget(String id) {
+        synchronized (known) {
+            known.remove(id);
+        }
+        misses.increment();
+    }
+
+    synchronized long bytes() { return bytes; }
+    long evictions() { return evictions.sum(); }
+    long referenced() { return referenced.sum(); }
+    long misses() { return misses.sum(); }
+
+    private Path file(String id) {
+        return dir.resolve(id + SUFFIX);
+    }
+
+    private void add(String id, long size) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long old = entries.put(id, size);
+            if (old != null) bytes -= old;
+            bytes += size;
+            // Lock order: this, then the session store
+            Set<String> keep = bytes > maxBytes ? pinned.get() : Collections.emptySet();
+            for (Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+                 it.hasNext() && bytes > maxBytes && entries.size() > 1; ) {
+                Map.Entry<String, Long> eldest = it.next();
+                if (eldest.getKey().equals(id) || keep.contains(eldest.getKey())) continue;
+                it.remove();
+                bytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+            }
+        }
+        for (String e : evicted) {
+            try {
+                Files.deleteIfExists(file(e));
+                evictions.increment();
+            } catch (IOException ex) {
+                Log.warn("Не удалось удалить версию", "version", e, "error", ex.getMessage());
+            }
+        }
+    }
+
+    /** Rebuilds the index from the directory, least recently used first, and drops leftovers. */
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(".part")) Files.deleteIfExists(p);
+                else if (name.endsWith(SUFFIX) && name.length() == 64 + SUFFIX.length()) files.add(p);
+            }
+        }
+        files.sort(Comparator.comparing(ArticleVersions::lastModified));
+        for (Path p : files) add(p.getFileName().toString().substring(0, 64), Files.size(p));
+    }
+
+    private static FileTime lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    // The file's mtime carries the LRU order over restarts
+    private static void touch(Path p) {
+        try {
+            Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // Only the order after a restart suffers
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bulk generation for {@code /batch}: many topic/description pairs from one
+ * message or file, generated like the GENERATE flow would one by one.
+ *
+ * Items of all chats share one pool of {@code concurrency} threads, so a few
+ * large batches can't flood n8n; a chat runs one batch at a time. The latest
+ * batch of each chat is kept in memory (not journaled) so its results can be
+ * viewed, rewritten or published from the summary list. Like sessions, it is
+ * dropped after the idle TTL or when too many chats have one.
+ */
+final class BatchGeneration {
+
+    static final class Item {
+        final String topic;
+        final String description;
+        volatile TelegramArticleBot.ArticleResult result;
+        volatile boolean done;
+        volatile boolean published;
+
+        Item(String topic, String description) {
+            this.topic = topic;
+            this.description = description;
+        }
+    }
+
+    static final class Batch {
+        final int id;
+        final long chat;
+        final TelegramArticleBot.ChannelType channel;
+        final List<Item> items;
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        Batch(int id, long chat, TelegramArticleBot.ChannelType channel, List<Item> items) {
+            this.id = id;
+            this.chat = chat;
+            this.channel = channel;
+            this.items = Collections.unmodifiableList(items);
+        }
+
+        boolean complete() {
+            return finished.get() == items.size();
+        }
+    }
+
+    interface Generator {
+        TelegramArticleBot.ArticleResult generate(long chat, TelegramArticleBot.ChannelType channel, String topic,
+                                                  String description);
+    }
+
+    interface Listener {
+        void progress(Batch batch);
+        void finished(Batch batch);
+    }
+
+    private final ExecutorService workers;
+    private final int maxItems;
+    private final Recent<Batch> latest;
+    // Chats that sent a bare /batch and owe the list, with the channel they asked for
+    private final Recent<TelegramArticleBot.ChannelType> awaiting;
+    private final AtomicInteger ids = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+
+    /** {@code ttlMillis} and {@code maxChats} bound the per-chat state as for sessions. */
+    BatchGeneration(int concurrency, int maxItems, long ttlMillis, int maxChats) {
+        this.maxItems = maxItems;
+        this.latest = new Recent<>(ttlMillis, maxChats);
+        this.awaiting = new Recent<>(ttlMillis, maxChats);
+        AtomicInteger seq = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "batch-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    int maxItems() {
+        return maxItems;
+    }
+
+    /** Items queued or generating, over all chats. */
+    int running() {
+        return running.get();
+    }
+
+    void await(long chat, TelegramArticleBot.ChannelType channel) {
+        awaiting.put(chat, channel);
+    }
+
+    /** The channel of a pending bare /batch, consumed; null if none. */
+    TelegramArticleBot.ChannelType takeAwaiting(long chat) {
+        return awaiting.remove(chat);
+    }
+
+    boolean busy(long chat) {
+        Batch b = latest.get(chat);
+        return b != null && !b.complete();
+    }
+
+    /** Starts generating {@code items}; the caller checks {@link #busy} first. */
+    Batch start(long chat, TelegramArticleBot.ChannelType channel, List<Item> items, Generator generator,
+                Listener listener) {
+        Batch batch = new Batch(ids.incrementAndGet(), chat, channel, items);
+        latest.put(chat, batch);
+        running.addAndGet(items.size());
+        for (Item item : batch.items) {
+            workers.execute(() -> {
+                try {
+                    item.result = generator.generate(chat, channel, item.topic, item.description);
+                } catch (RuntimeException e) {
+                    Log.error("Ошибка генерации статьи пакета", e, "chat", chat, "topic", item.topic);
+                } finally {
+                    item.done = true;
+                    if (item.result == null) batch.failed.incrementAndGet();
+                    running.decrementAndGet();
+                    // A running batch counts as in use
+                    latest.get(chat);
+                    if (batch.finished.incrementAndGet() == batch.items.size()) listener.finished(batch);
+                    else listener.progress(batch);
+                }
+            });
+        }
+        return batch;
+    }
+
+    /** Item {@code index} of batch {@code id} if it is still the chat's latest batch. */
+    Item item(long chat, int id, int index) {
+        Batch b = latest.get(chat);
+        if (b == null || b.id != id || index < 0 || index >= b.items.size()) return null;
+        return b.items.get(index);
+    }
+
+    /**
+     * Per-chat values in access order, dropped after {@code ttlMillis} without
+     * use and beyond {@code maxSize} chats; expired lazily on access, like
+     * {@link SessionStore}.
+     */
+    private static final class Recent<V> {
+        private static final class Stamped<V> {
+            final V value;
+            long used;
+
+            Stamped(V value, long used) {
+                this.value = value;
+                this.used = used;
+            }
+        }
+
+        private final long ttlMillis;
+        private final int maxSize;
+        private final LinkedHashMap<Long, Stamped<V>> values = new LinkedHashMap<>(16, 0.75f, true);
+
+        Recent(long ttlMillis, int maxSize) {
+            this.ttlMillis = ttlMillis;
+            this.maxSize = maxSize;
+        }
+
+        synchronized V get(long chat) {
+            long now = System.currentTimeMillis();
+            expire(now);
+            Stamped<V> s = values.get(chat);
+            if (s == null) return null;
+            s.used = now;
+            return s.value;
+        }
+
+        synchronized void put(long chat, V value) {
+            long now = System.currentTimeMillis();
+            expire(now);
+            values.put(chat, new Stamped<>(value, now));
+            for (Iterator<Long> it = values.keySet().iterator(); values.size() > maxSize; ) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        synchronized V remove(long chat) {
+            expire(System.currentTimeMillis());
+            Stamped<V> s = values.remove(chat);
+            return s == null ? null : s.value;
+        }
+
+        private void expire(long now) {
+            if (ttlMillis <= 0) return;
+            for (Iterator<Stamped<V>> it = values.values().iterator(); it.hasNext(); ) {
+                if (now - it.next().used < ttlMillis) break;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * One item per non-empty line: {@code topic | description}, tab-separated,
+     * or CSV with {@code ,} or {@code ;} and optional quotes. The first
+     * separator ends the topic, so a topic containing one must be quoted;
+     * the description may contain anything. Without a description the topic
+     * is used for both. Lines starting with {@code #} and a
+     * {@code topic,description} header are skipped.
+     */
+    static List<Item> parse(String text) {
+        List<Item> items = new ArrayList<>();
+        for (String raw : text.split("\r?\n")) {
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            List<String> fields = fields(line);
+            String topic = fields.get(0).trim();
+            String description = fields.size() > 1 ? fields.get(1).trim() : "";
+            if (topic.isEmpty()) continue;
+            String lower = topic.toLowerCase(Locale.ROOT);
+            if (items.isEmpty() && (lower.equals("topic") || lower.equals("тема"))) continue;
+            items.add(new Item(topic, description.isEmpty() ? topic : description));
+        }
+        return items;
+    }
+
+    private static List<String> fields(String line) {
+        int bar = line.indexOf('|');
+        if (bar >= 0) return pair(line, bar);
+        int tab = line.indexOf('\t');
+        if (tab >= 0) return pair(line, tab);
+        char sep = separator(line);
+        List<String> out = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    cur.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    cur.append(c);
+                }
+            } else if (c == '"' && cur.toString().trim().isEmpty()) {
+                cur.setLength(0);
+                quoted = true;
+            } else if (c == sep && out.isEmpty()) {
+                // Everything after the first separator is the description, commas included
+                out.add(cur.toString());
+                cur.setLength(0);
+            } else {
+                cur.append(c);
+            }
+        }
+        out.add(cur.toString());
+        return out;
+    }
+
+    /** Whichever of {@code ;} and {@code ,} comes first outside quotes; {@code ,} if neither does. */
+    private static char separator(String line) {
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') quoted = !quoted;
+            else if (!quoted && (c == ';' || c == ',')) return c;
+        }
+        return ',';
+    }
+
+    private static List<String> pair(String line, int at) {
+        List<String> out = new ArrayList<>(2);
+        out.add(line.substring(0, at));
+        out.add(line.substring(at + 1));
+        return out;
+    }
+}
@@ -0,0 +1,75 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring mapping chats to worker processes. Every worker owns
+ * many points on the ring, so adding or removing one moves only about
+ * {@code 1/N} of the chats and the rest keep their worker. Immutable; a
+ * membership change builds a new ring.
+ */
+final class ChatRing {
+
+    private static final int POINTS_PER_MEMBER = 160;
+
+    private final List<String> members;
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    ChatRing(Collection<String> members) {
+        List<String> sorted = new ArrayList<>(members);
+        Collections.sort(sorted);
+        this.members = Collections.unmodifiableList(sorted);
+        for (String m : sorted) {
+            for (int i = 0; i < POINTS_PER_MEMBER; i++) points.put(point(m, i), m);
+        }
+    }
+
+    ChatRing with(String member) {
+        if (members.contains(member)) return this;
+        List<String> next = new ArrayList<>(members);
+        next.add(member);
+        return new ChatRing(next);
+    }
+
+    ChatRing without(String member) {
+        if (!members.contains(member)) return this;
+        List<String> next = new ArrayList<>(members);
+        next.remove(member);
+        return new ChatRing(next);
+    }
+
+    List<String> members() {
+        return members;
+    }
+
+    /** The worker responsible for {@code chatId}, or null if the ring is empty. */
+    String owner(long chatId) {
+        if (points.isEmpty()) return null;
+        Map.Entry<Long, String> e = points.ceilingEntry(mix(chatId));
+        return e != null ? e.getValue() : points.firstEntry().getValue();
+    }
+
+    // SplitMix64 finalizer: consecutive chat ids land far apart
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long point(String member, int i) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest((member + "#" + i).getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int b = 0; b < 8; b++) h = (h << 8) | (d[b] & 0xff);
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
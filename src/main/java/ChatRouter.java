@@ -0,0 +1,281 @@
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.bots.TelegramLongPollingBot;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Front process for running the bot as several worker processes.
+ *
+ * Takes in every update (polling or webhook) and forwards it to the worker
+ * that owns the chat on a {@link ChatRing}. Forwarding goes through per-chat
+ * lanes and waits for the worker's ack, so a chat's updates reach its worker
+ * one by one in order. Workers announce themselves with {@code /join} and
+ * {@code /leave}.
+ *
+ * When a chat's owner changes, its session is moved before the next update is
+ * forwarded: the old worker hands it over once its own queued updates for the
+ * chat are done, and the new worker adopts it. On join this happens lazily, on
+ * the chat's next update. On leave it happens for all of the leaving worker's
+ * chats before {@code /leave} returns. Sessions on a worker that died are lost.
+ */
+final class ChatRouter {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final MediaType JSON_TYPE = MediaType.parse("application/json");
+    private static final MediaType OCTETS = MediaType.parse("application/octet-stream");
+    private static final int MAX_ATTEMPTS = 10;
+    private static final int FAILURES_BEFORE_EVICTION = 3;
+
+    private final HttpServer control;
+    private final UpdateDispatcher lanes;
+    private final OkHttpClient http = new OkHttpClient.Builder()
+            .callTimeout(Duration.ofSeconds(10))
+            .build();
+    // Handing a session over waits for the chat's running update, which can be a full generation
+    private final OkHttpClient handoffHttp = http.newBuilder()
+            .callTimeout(Duration.ofMinutes(3))
+            .readTimeout(Duration.ofMinutes(3))
+            .build();
+
+    private final Object membership = new Object();
+    private volatile ChatRing ring;
+    // Worker currently holding each chat's session
+    private final Map<Long, String> placed = new ConcurrentHashMap<>();
+    // Sessions taken from their old worker but not yet accepted by the new one
+    private final Map<Long, byte[]> inTransit = new ConcurrentHashMap<>();
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder handoffs = new LongAdder();
+    private final LongAdder lostSessions = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    ChatRouter(String host, int port, Collection<String> workers, int laneThreads) throws IOException {
+        this.ring = new ChatRing(workers);
+        this.lanes = new UpdateDispatcher(laneThreads);
+        this.control = HttpServer.create(new InetSocketAddress(host, port), 0);
+        control.setExecutor(Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "router-control");
+            t.setDaemon(true);
+            return t;
+        }));
+        control.createContext("/join", this::join);
+        control.createContext("/leave", this::leave);
+    }
+
+    void start() {
+        control.start();
+    }
+
+    void register(Metrics metrics) {
+        metrics.gauge("bot_router_workers", "Worker processes on the ring", () -> ring.members().size());
+        metrics.gauge("bot_router_chats", "Chats with a known worker", placed::size);
+        metrics.counter("bot_router_forwarded_total", "Updates forwarded to workers", forwarded::sum);
+        metrics.counter("bot_router_handoffs_total", "Sessions moved between workers", handoffs::sum);
+        metrics.counter("bot_router_lost_sessions_total", "Sessions lost with an unreachable worker",
+                lostSessions::sum);
+        metrics.counter("bot_router_dropped_total", "Updates no worker accepted", dropped::sum);
+        metrics.gauge("bot_router_queued", "Updates waiting to be forwarded", lanes::queued);
+    }
+
+    /** Queues {@code upd} for its chat; returns immediately. */
+    void route(Update upd) {
+        Long chat = TelegramArticleBot.chatIdOf(upd);
+        if (chat == null) return;
+        byte[] body;
+        try {
+            body = JSON.writeValueAsBytes(upd);
+        } catch (JsonProcessingException e) {
+            Log.warn("Роутер: не удалось сериализовать update", "update", upd.getUpdateId(), "error", e);
+            return;
+        }
+        lanes.dispatch(chat, () -> deliver(chat, body));
+    }
+
+    /** Updates waiting to be forwarded. */
+    int queued() {
+        return lanes.queued();
+    }
+
+    /** Long-polling front end that hands every update to {@link #route}. */
+    TelegramLongPollingBot poller(DefaultBotOptions options, String token, String username) {
+        return new TelegramLongPollingBot(options) {
+            @Override public void onUpdateReceived(Update update) { route(update); }
+            @Override public String getBotToken() { return token; }
+            @Override public String getBotUsername() { return username; }
+        };
+    }
+
+    // ---- forwarding, runs on the chat's lane ----
+
+    private void deliver(long chat, byte[] body) {
+        String failing = null;
+        int failures = 0;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            String owner = ring.owner(chat);
+            if (owner == null) {
+                pause(1000);
+                continue;
+            }
+            try {
+                handOff(chat, owner);
+                post(owner, "/update", null, RequestBody.create(body, JSON_TYPE), http).close();
+                forwarded.increment();
+                return;
+            } catch (IOException e) {
+                failures = owner.equals(failing) ? failures + 1 : 1;
+                failing = owner;
+                Log.warn("Роутер: воркер не принял update", "worker", owner, "chat", chat, "error", e);
+                if (failures >= FAILURES_BEFORE_EVICTION) evict(owner);
+                else pause(100L << failures);
+            }
+        }
+        dropped.increment();
+        Log.warn("Роутер: update отброшен, ни один воркер его не принял", "chat", chat);
+    }
+
+    /** Moves the chat's session to {@code owner} if another worker holds it. */
+    private void handOff(long chat, String owner) throws IOException {
+        byte[] session = inTransit.get(chat);
+        String from = placed.get(chat);
+        if (session == null) {
+            if (from == null || from.equals(owner)) {
+                placed.put(chat, owner);
+                return;
+            }
+            try (Response resp = post(from, "/session/take", chat, RequestBody.create(new byte[0], OCTETS), handoffHttp)) {
+                session = resp.code() == 204 || resp.body() == null ? new byte[0] : resp.body().bytes();
+            } catch (IOException e) {
+                lostSessions.increment();
+                Log.warn("Роутер: сессия потеряна вместе с воркером", "chat", chat, "worker", from, "error", e);
+                session = new byte[0];
+            }
+            inTransit.put(chat, session);
+        }
+        if (session.length > 0) {
+            post(owner, "/session/adopt", chat, RequestBody.create(session, OCTETS), http).close();
+            handoffs.increment();
+        }
+        inTransit.remove(chat);
+        placed.put(chat, owner);
+    }
+
+    private Response post(String worker, String path, Long chat, RequestBody body, OkHttpClient client)
+            throws IOException {
+        HttpUrl.Builder url = HttpUrl.get(worker).newBuilder().addPathSegments(path.substring(1));
+        if (chat != null) url.addQueryParameter("chat", String.valueOf(chat));
+        Response resp = client.newCall(new Request.Builder().url(url.build()).post(body).build()).execute();
+        if (!resp.isSuccessful()) {
+            resp.close();
+            throw new IOException(path + " → HTTP " + resp.code());
+        }
+        return resp;
+    }
+
+    // ---- membership ----
+
+    private void evict(String worker) {
+        synchronized (membership) {
+            ring = ring.without(worker);
+        }
+        Log.warn("Роутер: воркер недоступен и исключён", "worker", worker);
+    }
+
+    private void join(HttpExchange ex) throws IOException {
+        JSONObject req = new JSONObject(body(ex));
+        String worker = req.getString("url");
+        boolean added;
+        synchronized (membership) {
+            ChatRing before = ring;
+            ring = ring.with(worker);
+            added = ring != before;
+        }
+        // Sessions the worker restored from its own journal
+        JSONArray chats = req.optJSONArray("chats");
+        if (chats != null) {
+            for (int i = 0; i < chats.length(); i++) placed.putIfAbsent(chats.getLong(i), worker);
+        }
+        if (added) Log.info("Роутер: воркер подключён", "worker", worker, "workers", ring.members().size());
+        respond(ex, 200);
+    }
+
+    /** Takes the worker off the ring and moves all its sessions before answering. */
+    private void leave(HttpExchange ex) throws IOException {
+        String worker = new JSONObject(body(ex)).getString("url");
+        synchronized (membership) {
+            ring = ring.without(worker);
+        }
+        List<Long> chats = new ArrayList<>();
+        for (Map.Entry<Long, String> e : placed.entrySet()) {
+            if (worker.equals(e.getValue())) chats.add(e.getKey());
+        }
+        CountDownLatch moved = new CountDownLatch(chats.size());
+        for (long chat : chats) {
+            // On the chat's lane, so it can't overtake or be overtaken by its updates
+            lanes.dispatch(chat, () -> {
+                try {
+                    String owner = ring.owner(chat);
+                    if (owner != null && worker.equals(placed.get(chat))) handOff(chat, owner);
+                } catch (IOException e) {
+                    Log.warn("Роутер: не удалось передать сессию", "chat", chat, "error", e);
+                } finally {
+                    moved.countDown();
+                }
+            });
+        }
+        try {
+            moved.await(5, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.info("Роутер: воркер отключён", "worker", worker, "sessions", chats.size());
+        respond(ex, 200);
+    }
+
+    private static String body(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void respond(HttpExchange ex, int code) throws IOException {
+        ex.sendResponseHeaders(code, -1);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.flush();
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops calling a backend that keeps failing. Tracks the outcomes of the last
+ * {@code WINDOW} calls; once at least {@code MIN_CALLS} of them are in and
+ * half or more failed, the breaker opens and calls fail immediately with
+ * {@link OpenException} for {@code openMillis}. Then a single probe call is
+ * let through (half-open): success closes the breaker, failure opens it again.
+ *
+ * Callers already handle {@link IOException}, so an open breaker simply takes
+ * the existing fallback without waiting for a timeout.
+ */
+final class CircuitBreaker {
+
+    enum State { CLOSED, HALF_OPEN, OPEN }
+
+    static final class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OpenException(String backend) {
+            super("Circuit breaker for " + backend + " is open");
+        }
+    }
+
+    private static final int WINDOW = 20;
+    private static final int MIN_CALLS = 5;
+    private static final double FAILURE_RATE = 0.5;
+
+    private final String name;
+    private final long openNanos;
+
+    // All guarded by this
+    private final boolean[] failures = new boolean[WINDOW];
+    private int calls;
+    private int next;
+    private int failed;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+
+    CircuitBreaker(String name, long openMillis) {
+        this.name = name;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /** Admits a call or throws; every admitted call must be followed by {@link #record}. */
+    synchronized void acquire() throws OpenException {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        if (state == State.CLOSED) return;
+        if (state == State.HALF_OPEN && !probing) {
+            probing = true;
+            return;
+        }
+        rejected.increment();
+        throw new OpenException(name);
+    }
+
+    synchronized void record(boolean success) {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (success) {
+                reset();
+                Log.info("Бэкенд снова доступен", "backend", name);
+            } else {
+                open();
+            }
+            return;
+        }
+        if (state == State.OPEN) return;
+        if (calls == WINDOW && failures[next]) failed--;
+        failures[next] = !success;
+        if (!success) failed++;
+        next = (next + 1) % WINDOW;
+        if (calls < WINDOW) calls++;
+        if (calls >= MIN_CALLS && failed >= FAILURE_RATE * calls) {
+            open();
+            Log.warn("Бэкенд недоступен, вызовы приостановлены", "backend", name,
+                    "seconds", TimeUnit.NANOSECONDS.toSeconds(openNanos));
+        }
+    }
+
+    /** Gives back an admission whose call never ran. */
+    synchronized void cancel() {
+        if (state == State.HALF_OPEN) probing = false;
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    long rejected() { return rejected.sum(); }
+    long opened() { return opened.sum(); }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        opened.increment();
+    }
+
+    private void reset() {
+        state = State.CLOSED;
+        calls = 0;
+        next = 0;
+        failed = 0;
+        Arrays.fill(failures, false);
+    }
+}
@@ -0,0 +1,132 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates n8n generations. Identical requests that arrive while one is
+ * running wait for it instead of starting another LLM run, and successful
+ * results are served again for a while (TTL, bounded entry count).
+ *
+ * Keys are normalised so double clicks and the same trending topic typed
+ * slightly differently by several editors end up on the same entry.
+ */
+final class GenerationCache {
+
+    private static final class Entry {
+        final TelegramArticleBot.ArticleResult result;
+        final long expires;
+
+        Entry(TelegramArticleBot.ArticleResult result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    // Both guarded by this
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, CompletableFuture<TelegramArticleBot.ArticleResult>> inFlight = new HashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    GenerationCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    static String generateKey(TelegramArticleBot.ChannelType channel, TelegramArticleBot.ActionType action,
+                              String topic, String description) {
+        return channel + "|" + action + "|" + normalize(topic) + "|" + normalize(description);
+    }
+
+    static String rewriteKey(TelegramArticleBot.ChannelType channel, String original, String feedback) {
+        return channel + "|REWRITE|" + sha256(original == null ? "" : original) + "|" + normalize(feedback);
+    }
+
+    /**
+     * Returns the cached result for {@code key}, joins an identical call in
+     * flight, or runs {@code loader}. Null results (failed calls) aren't cached.
+     */
+    TelegramArticleBot.ArticleResult get(String key, Supplier<TelegramArticleBot.ArticleResult> loader) {
+        CompletableFuture<TelegramArticleBot.ArticleResult> running;
+        CompletableFuture<TelegramArticleBot.ArticleResult> mine = null;
+        synchronized (this) {
+            Entry e = cache.get(key);
+            if (e != null && e.expires > System.currentTimeMillis()) {
+                hits.increment();
+                return e.result;
+            }
+            if (e != null) cache.remove(key);
+            running = inFlight.get(key);
+            if (running == null) {
+                mine = new CompletableFuture<>();
+                inFlight.put(key, mine);
+                misses.increment();
+            } else {
+                coalesced.increment();
+            }
+        }
+        if (mine == null) return running.join();
+
+        TelegramArticleBot.ArticleResult result = null;
+        try {
+            result = loader.get();
+            return result;
+        } finally {
+            synchronized (this) {
+                inFlight.remove(key);
+                if (result != null && ttlMillis > 0) put(key, result);
+            }
+            mine.complete(result);
+        }
+    }
+
+    synchronized int size() {
+        return cache.size();
+    }
+
+    synchronized int inFlight() {
+        return inFlight.size();
+    }
+
+    long hits() { return hits.sum(); }
+    long misses() { return misses.sum(); }
+    long coalesced() { return coalesced.sum(); }
+
+    private void put(String key, TelegramArticleBot.ArticleResult result) {
+        long now = System.currentTimeMillis();
+        cache.put(key, new Entry(result, now + ttlMillis));
+        Iterator<Entry> it = cache.values().iterator();
+        while (it.hasNext() && (cache.size() > maxEntries)) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static String normalize(String s) {
+        if (s == null) return "";
+        return s.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private static String sha256(String s) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(d.length * 2);
+            for (byte b : d) sb.append(String.format(Locale.ROOT, "%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Admission control for interactive generations and rewrites.
+ *
+ * At most {@code concurrency} jobs run at once and at most {@code queueMax}
+ * wait; beyond that a job is refused straight away, so a burst is answered
+ * with "try later" instead of a growing pile of blocked threads. Jobs run off
+ * the chat's update lane, which stays free to answer the user meanwhile.
+ *
+ * A chat has at most one job: it counts as busy from {@link #submit} until
+ * {@link #done}, which the caller invokes once the result is handled on the
+ * chat's lane. Input arriving in between is dropped, and the chat is told
+ * about it once per job (see {@link #dropInput}). A user leaving the dialog
+ * {@link #cancel}s the job instead, which frees the chat at once.
+ */
+final class GenerationQueue {
+
+    private final ThreadPoolExecutor workers;
+    private final Map<Long, Ticket> busy = new ConcurrentHashMap<>();
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+
+    /** One chat's job, from {@link #submit} until {@link #done}. */
+    static final class Ticket {
+        // Completed by done() or cancel()
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        // Whether the chat was told its input is ignored
+        private volatile boolean told;
+        private volatile boolean cancelled;
+        private volatile Future<?> task;
+
+        boolean cancelled() {
+            return cancelled;
+        }
+    }
+
+    GenerationQueue(int concurrency, int queueMax) {
+        AtomicInteger seq = new AtomicInteger();
+        workers = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueMax)), r -> {
+                    Thread t = new Thread(r, "generation-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Queues {@code job} for {@code chat}, which must not be {@link #busy}.
+     * Returns 0 if it starts right away, its position in the queue if it
+     * waits, or -1 if the queue is full and the job was refused.
+     */
+    int submit(long chat, Consumer<Ticket> job) {
+        Ticket t = new Ticket();
+        busy.put(chat, t);
+        // Approximate under concurrent submits, which is fine for telling the user
+        int position = workers.getActiveCount() < workers.getMaximumPoolSize() ? 0 : workers.getQueue().size() + 1;
+        try {
+            t.task = workers.submit(() -> job.accept(t));
+        } catch (RejectedExecutionException e) {
+            busy.remove(chat, t);
+            t.done.complete(null);
+            rejected.increment();
+            return -1;
+        }
+        return position;
+    }
+
+    boolean busy(long chat) {
+        return busy.containsKey(chat);
+    }
+
+    /** Counts input ignored while the chat's job runs; true the first time per job, to tell the user once. */
+    boolean dropInput(long chat) {
+        dropped.increment();
+        Ticket t = busy.get(chat);
+        if (t == null || t.told) return false;
+        t.told = true;
+        return true;
+    }
+
+    void done(long chat, Ticket t) {
+        // A cancelled job's chat may already run a newer one
+        busy.remove(chat, t);
+        t.done.complete(null);
+    }
+
+    /**
+     * Frees the chat; its job is dropped if it hasn't started, otherwise left
+     * to finish (other chats may share its n8n call) with the result to be
+     * discarded. False if the chat had no job.
+     */
+    boolean cancel(long chat) {
+        Ticket t = busy.remove(chat);
+        if (t == null) return false;
+        t.cancelled = true;
+        Future<?> task = t.task;
+        if (task != null && task.cancel(false)) workers.purge();
+        t.done.complete(null);
+        cancelled.increment();
+        return true;
+    }
+
+    /** Waits until the chat has no job; false on timeout. */
+    boolean awaitIdle(long chat, long timeout, TimeUnit unit) throws InterruptedException {
+        Ticket t = busy.get(chat);
+        if (t == null) return true;
+        try {
+            t.done.get(timeout, unit);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /** Chats with a job queued, running or waiting for {@link #done}. */
+    int busyChats() { return busy.size(); }
+    int queued() { return workers.getQueue().size(); }
+    int running() { return workers.getActiveCount(); }
+    long rejected() { return rejected.sum(); }
+    long dropped() { return dropped.sum(); }
+    long cancelled() { return cancelled.sum(); }
+}
@@ -0,0 +1,321 @@
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP client for one external backend (n8n, image downloads, ImgBB,
+ * Baserow) with its own connection pool, dispatcher, timeouts, concurrency cap
+ * and {@link CircuitBreaker}, so a hung backend can't starve the others.
+ *
+ * The cap is a bulkhead: calls beyond {@code maxConcurrent} wait briefly for a
+ * slot and then fail. A slot is held until the response body is closed. Rejected calls, like those refused by an open breaker,
+ * surface as {@link IOException}s and take the caller's usual fallback.
+ *
+ * Each call is logged once its response body is closed: backend, chat (see
+ * {@link Chat}), method, URL without the query, status, latency and bytes
+ * sent and received; failed calls with an excerpt of the error body.
+ *
+ * The OkHttp client is built on first use: its TLS setup is a large part of
+ * startup, and the bot can take updates long before a backend is called.
+ *
+ * Settings come from {@code <PREFIX>_CONNECT_TIMEOUT_MS}, {@code _READ_TIMEOUT_MS},
+ * {@code _CALL_TIMEOUT_MS}, {@code _MAX_CONCURRENT} and {@code _BREAKER_OPEN_MS},
+ * falling back to per-backend defaults.
+ */
+final class HttpBackend implements Call.Factory {
+
+    static final class Settings {
+        final int connectMillis;
+        final int readMillis;
+        final int callMillis;
+        final int maxConcurrent;
+        final int breakerOpenMillis;
+
+        Settings(int connectMillis, int readMillis, int callMillis, int maxConcurrent, int breakerOpenMillis) {
+            this.connectMillis = connectMillis;
+            this.readMillis = readMillis;
+            this.callMillis = callMillis;
+            this.maxConcurrent = maxConcurrent;
+            this.breakerOpenMillis = breakerOpenMillis;
+        }
+
+        Settings fromEnv(String prefix) {
+            return new Settings(
+                    TelegramArticleBot.envInt(prefix + "_CONNECT_TIMEOUT_MS", connectMillis),
+                    TelegramArticleBot.envInt(prefix + "_READ_TIMEOUT_MS", readMillis),
+                    TelegramArticleBot.envInt(prefix + "_CALL_TIMEOUT_MS", callMillis),
+                    TelegramArticleBot.envInt(prefix + "_MAX_CONCURRENT", maxConcurrent),
+                    TelegramArticleBot.envInt(prefix + "_BREAKER_OPEN_MS", breakerOpenMillis));
+        }
+    }
+
+    static final class BulkheadFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BulkheadFullException(String backend) {
+            super("Too many concurrent calls to " + backend);
+        }
+    }
+
+    /**
+     * Request tag for callers that report to {@link #breaker()} themselves,
+     * once per logical call rather than per attempt.
+     */
+    static final class SelfReported {
+        static final SelfReported INSTANCE = new SelfReported();
+
+        private SelfReported() {}
+    }
+
+    /** Request tag naming the chat a call is made for, for the call's log line. */
+    static final class Chat {
+        final long id;
+
+        Chat(long id) {
+            this.id = id;
+        }
+    }
+
+    private static final long SLOT_WAIT_MILLIS = 2000;
+    private static final long ERROR_EXCERPT_BYTES = 512;
+
+    private final String name;
+    private final Settings settings;
+    private final Metrics metrics;
+    private volatile OkHttpClient client;
+    private final CircuitBreaker breaker;
+    private final Semaphore slots;
+    private final LongAdder bulkheadRejected = new LongAdder();
+
+    HttpBackend(String name, Settings settings, Metrics metrics) {
+        this.name = name;
+        this.settings = settings;
+        this.metrics = metrics;
+        this.breaker = new CircuitBreaker(name, settings.breakerOpenMillis);
+        this.slots = new Semaphore(settings.maxConcurrent, true);
+        register(metrics);
+    }
+
+    OkHttpClient client() {
+        OkHttpClient c = client;
+        if (c == null) {
+            synchronized (this) {
+                c = client;
+                if (c == null) client = c = build();
+            }
+        }
+        return c;
+    }
+
+    @Override
+    public Call newCall(Request request) {
+        return client().newCall(request);
+    }
+
+    CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    private OkHttpClient build() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(settings.maxConcurrent);
+        dispatcher.setMaxRequestsPerHost(settings.maxConcurrent);
+        OkHttpClient base = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(settings.maxConcurrent, 5, TimeUnit.MINUTES))
+                .connectTimeout(Duration.ofMillis(settings.connectMillis))
+                .readTimeout(Duration.ofMillis(settings.readMillis))
+                .writeTimeout(Duration.ofMillis(settings.readMillis))
+                .callTimeout(Duration.ofMillis(settings.callMillis))
+                .addInterceptor(this::guard)
+                .build();
+        // Timing sits inside the guard, so rejected calls don't count as latency samples
+        return metrics.instrument(base, name);
+    }
+
+    private Response guard(Interceptor.Chain chain) throws IOException {
+        boolean counted = chain.request().tag(SelfReported.class) == null;
+        if (counted) breaker.acquire();
+        boolean admitted = false;
+        try {
+            admitted = slots.tryAcquire(SLOT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + name);
+        } finally {
+            if (!admitted && counted) breaker.cancel();
+        }
+        if (!admitted) {
+            bulkheadRejected.increment();
+            throw new BulkheadFullException(name);
+        }
+        Request request = chain.request();
+        CallLog call = new CallLog(request);
+        if (request.body() != null) request = request.newBuilder().method(request.method(), call.counting(request.body())).build();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException | RuntimeException e) {
+            slots.release();
+            // A cancelled call (the losing side of a hedged n8n request) says nothing about the backend
+            if (counted && chain.call().isCanceled()) breaker.cancel();
+            else if (counted) breaker.record(false);
+            call.failed(chain.call().isCanceled(), e);
+            throw e;
+        }
+        if (counted) breaker.record(response.code() < 500 && response.code() != 429);
+        call.headers(response);
+        ResponseBody body = response.body();
+        if (body == null) {
+            slots.release();
+            call.done();
+            return response;
+        }
+        // A streamed body keeps the connection busy, so the slot is held until it is closed
+        return response.newBuilder().body(new SlotBody(body, call)).build();
+    }
+
+    private final class SlotBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final BufferedSource source;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        SlotBody(ResponseBody delegate, CallLog call) {
+            this.delegate = delegate;
+            this.source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long n = super.read(sink, byteCount);
+                    if (n > 0) call.received += n;
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (released.compareAndSet(false, true)) {
+                            slots.release();
+                            call.done();
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override public MediaType contentType() { return delegate.contentType(); }
+        @Override public long contentLength() { return delegate.contentLength(); }
+        @Override public BufferedSource source() { return source; }
+    }
+
+    /** What the log line of one call needs; filled in by the thread that owns the call at each stage. */
+    private final class CallLog {
+        private final long started = System.nanoTime();
+        private final String method;
+        private final String url;
+        private final Long chat;
+        private volatile long sent;
+        private volatile long received;
+        private volatile int status;
+        private volatile long headersNanos;
+        private volatile String errorBody;
+
+        CallLog(Request request) {
+            Chat tag = request.tag(Chat.class);
+            this.method = request.method();
+            // The query is left out: ImgBB takes its key there
+            this.url = request.url().host() + request.url().encodedPath();
+            this.chat = tag == null ? null : tag.id;
+        }
+
+        RequestBody counting(RequestBody body) {
+            return new RequestBody() {
+                @Override public MediaType contentType() { return body.contentType(); }
+                @Override public long contentLength() throws IOException { return body.contentLength(); }
+                @Override public boolean isOneShot() { return body.isOneShot(); }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    BufferedSink counted = Okio.buffer(new ForwardingSink(sink) {
+                        @Override
+                        public void write(Buffer source, long byteCount) throws IOException {
+                            super.write(source, byteCount);
+                            sent += byteCount;
+                        }
+                    });
+                    body.writeTo(counted);
+                    // A body may close the sink itself (N8nCodec.Gzipped does), which has flushed it already
+                    if (counted.isOpen()) counted.emit();
+                }
+            };
+        }
+
+        void headers(Response response) {
+            status = response.code();
+            headersNanos = System.nanoTime() - started;
+            if (!response.isSuccessful()) {
+                try {
+                    errorBody = response.peekBody(ERROR_EXCERPT_BYTES).string();
+                } catch (IOException e) {
+                    errorBody = "(" + e + ")";
+                }
+            }
+        }
+
+        void failed(boolean cancelled, Exception e) {
+            Object[] kv = fields(cancelled ? "cancelled" : "error", e);
+            if (cancelled) Log.info("http", kv);
+            else Log.warn("http", kv);
+        }
+
+        void done() {
+            Object[] kv = fields(status, null);
+            if (status >= 200 && status < 400) Log.info("http", kv);
+            else Log.warn("http", kv);
+        }
+
+        private Object[] fields(Object status, Exception error) {
+            return new Object[]{
+                    "backend", name, "chat", chat, "method", method, "url", url, "status", status,
+                    "ms", (System.nanoTime() - started) / 1e6,
+                    "headers_ms", headersNanos == 0 ? null : headersNanos / 1e6,
+                    "req_bytes", sent, "resp_bytes", received,
+                    "error", error, "body", errorBody};
+        }
+    }
+
+    private void register(Metrics metrics) {
+        String label = "{backend=\"" + name + "\"}";
+        metrics.gauge("bot_backend_breaker_state" + label, "Circuit breaker: 0 closed, 1 half-open, 2 open",
+                () -> breaker.state().ordinal());
+        metrics.counter("bot_backend_breaker_opened_total" + label, "Times the breaker opened", breaker::opened);
+        metrics.counter("bot_backend_breaker_rejected_total" + label, "Calls refused by an open breaker",
+                breaker::rejected);
+        metrics.gauge("bot_backend_in_flight" + label, "Calls in progress",
+                () -> settings.maxConcurrent - slots.availablePermits());
+        metrics.counter("bot_backend_bulkhead_rejected_total" + label, "Calls refused at the concurrency cap",
+                bulkheadRejected::sum);
+    }
+}
@@ -0,0 +1,151 @@
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Re-hosts generated pictures on ImgBB so published posts don't depend on
+ * short-lived generator URLs.
+ *
+ * The picture comes from the {@link MediaCache}, which streams it to disk
+ * while its SHA-256 is computed, so picture bytes never sit in the heap; the
+ * file is then streamed into the multipart upload. Pictures already re-hosted
+ * (same source URL or same content) reuse the permanent URL without another
+ * upload. Work starts in the
+ * background via {@link #prefetch} as soon as an article with a picture is
+ * generated, so publishing usually finds the URL ready.
+ */
+final class ImagePipeline {
+
+    private static final MediaType JPEG = MediaType.parse("image/jpeg");
+    private static final int MAX_REMEMBERED = 10_000;
+
+    private final MediaCache media;
+    private final Call.Factory uploadHttp;
+    private final String uploadUrl;
+    private final String apiKey;
+    private final ExecutorService workers;
+
+    // Both guarded by their own monitor
+    private final Map<String, CompletableFuture<String>> bySource = lru();
+    private final Map<String, String> byHash = lru();
+
+    private final LongAdder uploads = new LongAdder();
+    private final LongAdder dedupHits = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    ImagePipeline(MediaCache media, Call.Factory uploadHttp, String uploadUrl, String apiKey, int threads) {
+        this.media = media;
+        this.uploadHttp = uploadHttp;
+        this.uploadUrl = uploadUrl;
+        this.apiKey = apiKey;
+        AtomicInteger seq = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "image-rehost-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Starts re-hosting {@code sourceUrl} in the background unless it is already done or running. */
+    CompletableFuture<String> prefetch(String sourceUrl) {
+        synchronized (bySource) {
+            CompletableFuture<String> f = bySource.get(sourceUrl);
+            if (f != null && !f.isCompletedExceptionally()) return f;
+            f = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return rehostNow(sourceUrl);
+                } catch (IOException e) {
+                    failures.increment();
+                    throw new CompletionException(e);
+                }
+            }, workers);
+            bySource.put(sourceUrl, f);
+            return f;
+        }
+    }
+
+    /** Permanent ImgBB URL for {@code sourceUrl}, waiting for a prefetch if one is running. */
+    String rehost(String sourceUrl) throws IOException {
+        try {
+            return prefetch(sourceUrl).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while re-hosting image", e);
+        }
+    }
+
+    long uploads() { return uploads.sum(); }
+    long dedupHits() { return dedupHits.sum(); }
+    long failures() { return failures.sum(); }
+
+    private String rehostNow(String sourceUrl) throws IOException {
+        MediaCache.Entry picture = media.fetch(sourceUrl);
+        String known;
+        synchronized (byHash) {
+            known = byHash.get(picture.hash);
+        }
+        if (known != null) {
+            dedupHits.increment();
+            return known;
+        }
+        String permanent = upload(picture.file);
+        uploads.increment();
+        synchronized (byHash) {
+            byHash.put(picture.hash, permanent);
+        }
+        return permanent;
+    }
+
+    private String upload(Path file) throws IOException {
+        RequestBody requestBody = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("key", apiKey)
+                .addFormDataPart("image", "image.jpg", RequestBody.create(file.toFile(), JPEG))
+                .build();
+
+        Request uploadRequest = new Request.Builder()
+                .url(uploadUrl)
+                .post(requestBody)
+                .build();
+
+        try (Response response = uploadHttp.newCall(uploadRequest).execute()) {
+            String jsonResponse = response.body() != null ? response.body().string() : "{}";
+            JSONObject json = new JSONObject(jsonResponse);
+
+            if (!json.optBoolean("success")) {
+                JSONObject error = json.optJSONObject("error");
+                throw new IOException("ImgBB API error: " + (error != null ? error.optString("message") : response.code()));
+            }
+
+            return json.getJSONObject("data").getString("url");
+        }
+    }
+
+    private static <V> Map<String, V> lru() {
+        return new LinkedHashMap<String, V>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > MAX_REMEMBERED;
+            }
+        };
+    }
+}
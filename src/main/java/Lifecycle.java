@@ -0,0 +1,111 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Start and stop of a bot process.
+ *
+ * {@link #ready} marks the moment updates start coming in and {@link #handled}
+ * the end of each update; the first of each is logged with the time since the
+ * JVM was launched, which is what a rolling deploy waits for.
+ *
+ * On SIGTERM (any JVM shutdown) the stages run in the order they were added,
+ * sharing one deadline of {@code graceMillis}: the first stops taking updates,
+ * the next ones wait for work already accepted (generations, publications,
+ * queued Telegram messages) and the last closes the files. A stage that runs
+ * out of time is logged and the rest still run with what is left, so the files
+ * are always closed.
+ */
+final class Lifecycle {
+
+    /** One step of the shutdown; returns false if work was left unfinished at the timeout. */
+    interface Stage {
+        boolean run(long timeoutMillis) throws Exception;
+    }
+
+    private static final long POLL_MILLIS = 50;
+
+    private final long graceMillis;
+    private final List<String> names = new ArrayList<>();
+    private final List<Stage> stages = new ArrayList<>();
+    private final AtomicBoolean firstHandled = new AtomicBoolean();
+    private volatile boolean stopping;
+    private volatile long readyMillis = -1;
+    private volatile long firstUpdateMillis = -1;
+
+    Lifecycle(long graceMillis) {
+        this.graceMillis = graceMillis;
+    }
+
+    Lifecycle stage(String name, Stage stage) {
+        names.add(name);
+        stages.add(stage);
+        return this;
+    }
+
+    /** Runs the stages when the JVM shuts down. */
+    void install() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "lifecycle-stop"));
+    }
+
+    void ready() {
+        readyMillis = sinceLaunch();
+        Log.info("Бот готов принимать апдейты", "since_launch_ms", readyMillis);
+    }
+
+    void handled() {
+        if (firstUpdateMillis < 0 && firstHandled.compareAndSet(false, true)) {
+            firstUpdateMillis = sinceLaunch();
+            Log.info("Первый апдейт обработан", "since_launch_ms", firstUpdateMillis);
+        }
+    }
+
+    boolean stopping() { return stopping; }
+    long readyMillis() { return readyMillis; }
+    long firstUpdateMillis() { return firstUpdateMillis; }
+
+    void stop() {
+        stopping = true;
+        long t0 = System.nanoTime();
+        long deadline = t0 + graceMillis * 1_000_000L;
+        Log.info("Остановка: дорабатываем принятое", "grace_ms", graceMillis);
+        for (int i = 0; i < stages.size(); i++) {
+            long s0 = System.nanoTime();
+            long left = Math.max(0, (deadline - s0) / 1_000_000L);
+            boolean finished;
+            try {
+                finished = stages.get(i).run(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                finished = false;
+            } catch (Exception e) {
+                Log.error("Остановка: ошибка этапа", e, "stage", names.get(i));
+                finished = false;
+            }
+            long ms = (System.nanoTime() - s0) / 1_000_000L;
+            if (finished) Log.info("Остановка: этап завершён", "stage", names.get(i), "ms", ms);
+            else Log.warn("Остановка: этап прерван по таймауту", "stage", names.get(i), "ms", ms);
+        }
+        Log.info("Остановлено", "ms", (System.nanoTime() - t0) / 1_000_000L);
+        // This hook may outlive Log's own flush
+        Log.flush();
+    }
+
+    /** Waits until {@code idle} holds; false if it still doesn't after {@code timeoutMillis}. */
+    static boolean await(BooleanSupplier idle, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (!idle.getAsBoolean()) {
+            if (System.nanoTime() >= deadline) return false;
+            Thread.sleep(POLL_MILLIS);
+        }
+        return true;
+    }
+
+    // ProcessHandle rather than the runtime MXBean, which would load JMX just for this
+    private static long sinceLaunch() {
+        Instant launched = ProcessHandle.current().info().startInstant().orElse(null);
+        return launched == null ? -1 : System.currentTimeMillis() - launched.toEpochMilli();
+    }
+}
@@ -0,0 +1,108 @@
+import org.telegram.telegrambots.meta.api.objects.Message;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Telegram message updated in place: an article while n8n is still writing
+ * it, or the progress of a batch.
+ *
+ * Starts as a placeholder and is edited as text arrives. Edits are coalesced:
+ * at most one in flight and at least {@code interval} apart, each showing the
+ * latest text, so a fast stream costs a handful of edits rather than one per
+ * chunk. The first chunk is shown as soon as the placeholder exists. Once the
+ * text outgrows a message only its tail is shown.
+ */
+final class LiveMessage {
+
+    interface Editor {
+        CompletableFuture<?> edit(int messageId, String text);
+    }
+
+    static final int MAX_CHARS = 4096;
+    private static final long PLACEHOLDER_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "live-message");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final CompletableFuture<Message> placeholder;
+    private final Editor editor;
+    private final long intervalNanos;
+
+    // All guarded by this
+    private final StringBuilder text = new StringBuilder();
+    private String shown = "";
+    private long lastEdit;
+    private boolean editing;
+    private boolean scheduled;
+    private boolean closed;
+
+    LiveMessage(CompletableFuture<Message> placeholder, Editor editor, long intervalMillis) {
+        this.placeholder = placeholder;
+        this.editor = editor;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.lastEdit = System.nanoTime() - intervalNanos;
+    }
+
+    synchronized void append(String chunk) {
+        if (closed) return;
+        text.append(chunk);
+        flush();
+    }
+
+    /** Replaces the text instead of adding to it, for status messages. */
+    synchronized void set(String replacement) {
+        if (closed) return;
+        text.setLength(0);
+        text.append(replacement);
+        flush();
+    }
+
+    /** Stops editing; the placeholder can then be replaced by the final view. */
+    synchronized void close() {
+        closed = true;
+    }
+
+    CompletableFuture<Message> placeholder() {
+        return placeholder;
+    }
+
+    private void flush() {
+        if (closed || editing || scheduled || placeholder.isCompletedExceptionally()) return;
+        Message m = placeholder.getNow(null);
+        long wait = m == null ? PLACEHOLDER_POLL_NANOS : lastEdit + intervalNanos - System.nanoTime();
+        if (wait > 0) {
+            scheduled = true;
+            TIMER.schedule(this::onTimer, wait, TimeUnit.NANOSECONDS);
+            return;
+        }
+        String view = view();
+        if (view.trim().isEmpty() || view.equals(shown)) return;
+        editing = true;
+        shown = view;
+        lastEdit = System.nanoTime();
+        editor.edit(m.getMessageId(), view).whenComplete((r, e) -> onEdited());
+    }
+
+    private synchronized void onTimer() {
+        scheduled = false;
+        flush();
+    }
+
+    private synchronized void onEdited() {
+        editing = false;
+        flush();
+    }
+
+    private String view() {
+        if (text.length() <= MAX_CHARS) return text.toString();
+        int from = text.length() - (MAX_CHARS - 1);
+        if (Character.isLowSurrogate(text.charAt(from))) from++;
+        return "…" + text.substring(from);
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * The bot's log: one line per event, {@code time LEVEL message key=value ...},
+ * INFO to stdout and WARN/ERROR to stderr.
+ *
+ * Callers only put the event into a bounded queue; a background thread
+ * formats and writes it, so slow console I/O never holds up an update or a
+ * backend call. When the queue is full the event is dropped and counted, and
+ * the writer reports the loss once it catches up.
+ *
+ * Values longer than {@code LOG_VALUE_MAX} characters are cut. Secrets
+ * registered with {@link #redact} and anything shaped like a bot token are
+ * replaced by {@code ***} before a value is cut, and again in the written
+ * line, including stack traces.
+ */
+final class Log {
+
+    enum Level { INFO, WARN, ERROR }
+
+    private static final int CAPACITY = env("LOG_QUEUE", 8192);
+    private static final int VALUE_MAX = env("LOG_VALUE_MAX", 300);
+    private static final int STACK_MAX = 40;
+    private static final int BATCH = 256;
+    private static final Pattern BOT_TOKEN = Pattern.compile("\\d{6,12}:[A-Za-z0-9_-]{30,}");
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final class Event {
+        final long at = System.currentTimeMillis();
+        final Level level;
+        final String message;
+        final Object[] kv;
+        final Throwable error;
+
+        Event(Level level, String message, Object[] kv, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.kv = kv;
+            this.error = error;
+        }
+    }
+
+    private static final ArrayBlockingQueue<Event> QUEUE = new ArrayBlockingQueue<>(Math.max(16, CAPACITY));
+    private static final LongAdder DROPPED = new LongAdder();
+    private static volatile String[] secrets = new String[0];
+
+    // Both guarded by WRITE_LOCK, which the writer thread and flush() share
+    private static final Object WRITE_LOCK = new Object();
+    private static final PrintStream OUT = stream(FileDescriptor.out);
+    private static final PrintStream ERR = stream(FileDescriptor.err);
+    private static long reportedDrops;
+
+    static {
+        Thread writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {}
+
+    /** {@code kv} alternates keys and values. */
+    static void info(String message, Object... kv) {
+        offer(new Event(Level.INFO, message, kv, null));
+    }
+
+    static void warn(String message, Object... kv) {
+        offer(new Event(Level.WARN, message, kv, null));
+    }
+
+    /** Logs {@code error} with its stack trace. */
+    static void error(String message, Throwable error, Object... kv) {
+        offer(new Event(Level.ERROR, message, kv, error));
+    }
+
+    /** Keeps these values (tokens, keys, passwords) out of the output; null and empty ones are ignored. */
+    static synchronized void redact(String... values) {
+        List<String> all = new ArrayList<>();
+        for (String s : secrets) all.add(s);
+        for (String v : values) {
+            if (v != null && !v.isEmpty() && !all.contains(v)) all.add(v);
+        }
+        // Longest first, so a secret containing another is replaced whole
+        all.sort((a, b) -> b.length() - a.length());
+        secrets = all.toArray(new String[0]);
+    }
+
+    static long dropped() {
+        return DROPPED.sum();
+    }
+
+    /** Writes out whatever is queued; called on shutdown. */
+    static void flush() {
+        List<Event> rest = new ArrayList<>();
+        QUEUE.drainTo(rest);
+        synchronized (WRITE_LOCK) {
+            writeAll(rest);
+        }
+    }
+
+    private static void offer(Event e) {
+        if (!QUEUE.offer(e)) DROPPED.increment();
+    }
+
+    private static void write() {
+        List<Event> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            QUEUE.drainTo(batch, BATCH - 1);
+            synchronized (WRITE_LOCK) {
+                writeAll(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    private static void writeAll(List<Event> events) {
+        StringBuilder sb = new StringBuilder(256);
+        for (Event e : events) {
+            sb.setLength(0);
+            format(sb, e);
+            (e.level == Level.INFO ? OUT : ERR).println(redacted(sb.toString()));
+        }
+        long drops = DROPPED.sum();
+        if (drops > reportedDrops) {
+            ERR.println(TIME.format(Instant.now()) + " WARN  Лог переполнен, событий пропущено: " + (drops - reportedDrops));
+            reportedDrops = drops;
+        }
+        OUT.flush();
+        ERR.flush();
+    }
+
+    private static void format(StringBuilder sb, Event e) {
+        sb.append(TIME.format(Instant.ofEpochMilli(e.at))).append(' ').append(e.level);
+        if (e.level != Level.ERROR) sb.append(' ');
+        sb.append(' ').append(e.message);
+        for (int i = 0; i + 1 < e.kv.length; i += 2) {
+            if (e.kv[i + 1] == null) continue;
+            sb.append(' ').append(e.kv[i]).append('=');
+            value(sb, e.kv[i + 1]);
+        }
+        if (e.error != null) {
+            sb.append(" error=");
+            value(sb, e.error);
+            stackTrace(sb, e.error);
+        }
+    }
+
+    private static void value(StringBuilder sb, Object v) {
+        String s = v instanceof Double || v instanceof Float
+                ? String.format(Locale.ROOT, "%.1f", ((Number) v).doubleValue()) : String.valueOf(v);
+        // Before cutting and escaping, either of which could leave part of a secret the line pass won't match
+        s = redacted(s);
+        int cut = 0;
+        if (s.length() > VALUE_MAX) {
+            cut = s.length() - VALUE_MAX;
+            s = s.substring(0, VALUE_MAX);
+        }
+        boolean quote = s.isEmpty();
+        for (int i = 0; i < s.length() && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+        if (!quote) {
+            sb.append(s);
+        } else {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c == '\n') sb.append("\\n");
+                else if (c == '\r') sb.append("\\r");
+                else if (c == '\t') sb.append("\\t");
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+        if (cut > 0) sb.append("…(+").append(cut).append(')');
+    }
+
+    private static void stackTrace(StringBuilder sb, Throwable t) {
+        int lines = 0;
+        for (Throwable cause = t; cause != null && lines < STACK_MAX; cause = cause.getCause()) {
+            if (cause != t) sb.append("\n  Caused by: ").append(cause);
+            for (StackTraceElement frame : cause.getStackTrace()) {
+                if (++lines > STACK_MAX) {
+                    sb.append("\n    ...");
+                    break;
+                }
+                sb.append("\n    at ").append(frame);
+            }
+            if (cause.getCause() == cause) break;
+        }
+    }
+
+    private static String redacted(String line) {
+        for (String s : secrets) {
+            if (line.contains(s)) line = line.replace(s, "***");
+        }
+        return BOT_TOKEN.matcher(line).replaceAll("***");
+    }
+
+    private static PrintStream stream(FileDescriptor fd) {
+        return new PrintStream(new BufferedOutputStream(new FileOutputStream(fd), 1 << 16), false,
+                StandardCharsets.UTF_8);
+    }
+
+    // Not TelegramArticleBot.envInt: initialising the bot class from here could log before the queue exists
+    private static int env(String name, int def) {
+        String v = System.getenv(name);
+        if (v == null || v.isEmpty()) return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.HashingSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pictures of generated articles, kept so that showing one again doesn't make
+ * Telegram (or us) fetch it from the origin again.
+ *
+ * Image bytes live in a size-bounded LRU directory, one file per source URL
+ * named {@code <sha256(url)>-<sha256(content)>.img}, so the index is rebuilt
+ * from the directory on start. Concurrent requests for the same URL share one
+ * download.
+ *
+ * The Telegram {@code file_id} of a picture, learnt from the first successful
+ * {@code sendPhoto}, is remembered per source URL and per content hash; later
+ * sends pass the id and Telegram needs neither the origin nor an upload. The
+ * ids are kept in memory only.
+ */
+final class MediaCache {
+
+    static final class Entry {
+        final Path file;
+        final String hash;
+        final long size;
+
+        Entry(Path file, String hash, long size) {
+            this.file = file;
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
+    private static final String SUFFIX = ".img";
+    private static final int MAX_FILE_IDS = 10_000;
+
+    private final Path dir;
+    private final Call.Factory http;
+    private final long maxBytes;
+    private final ExecutorService workers;
+
+    // All guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, CompletableFuture<Entry>> downloading = new HashMap<>();
+    private long bytes;
+
+    // Guarded by its own monitor; keys are source URLs and content hashes
+    private final Map<String, String> fileIds = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_FILE_IDS;
+        }
+    };
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder downloads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder fileIdHits = new LongAdder();
+
+    MediaCache(Path dir, Call.Factory http, long maxBytes, int threads) throws IOException {
+        this.dir = dir;
+        this.http = http;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        load();
+        AtomicInteger seq = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "media-fetch-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** The cached picture for {@code url}, or null without downloading it. */
+    Entry cached(String url) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key(url));
+        }
+        if (e == null || !Files.exists(e.file)) return null;
+        hits.increment();
+        touch(e.file);
+        return e;
+    }
+
+    /** Starts downloading {@code url} in the background unless it is cached or already downloading. */
+    CompletableFuture<Entry> prefetch(String url) {
+        String key = key(url);
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) return CompletableFuture.completedFuture(e);
+            CompletableFuture<Entry> f = downloading.get(key);
+            if (f != null) return f;
+            CompletableFuture<Entry> started = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return download(url, key);
+                } catch (IOException e2) {
+                    throw new CompletionException(e2);
+                }
+            }, workers);
+            downloading.put(key, started);
+            started.whenComplete((r, err) -> {
+                synchronized (this) {
+                    downloading.remove(key);
+                }
+            });
+            return started;
+        }
+    }
+
+    /** The picture at {@code url}, from the cache or downloaded now. */
+    Entry fetch(String url) throws IOException {
+        Entry e = cached(url);
+        if (e != null) return e;
+        try {
+            return prefetch(url).get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading image", ex);
+        }
+    }
+
+    /** A Telegram file_id for the picture at {@code url} (or with the same content), or null. */
+    String fileId(String url) {
+        String id;
+        synchronized (fileIds) {
+            id = fileIds.get(url);
+        }
+        if (id == null) {
+            Entry e;
+            synchronized (this) {
+                e = entries.get(key(url));
+            }
+            if (e != null) {
+                synchronized (fileIds) {
+                    id = fileIds.get(e.hash);
+                }
+            }
+        }
+        if (id != null) fileIdHits.increment();
+        return id;
+    }
+
+    void rememberFileId(String url, String fileId) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key(url));
+        }
+        synchronized (fileIds) {
+            fileIds.put(url, fileId);
+            if (e != null) fileIds.put(e.hash, fileId);
+        }
+    }
+
+    /** Drops a file_id Telegram no longer accepts. */
+    void forgetFileId(String fileId) {
+        synchronized (fileIds) {
+            fileIds.values().removeIf(fileId::equals);
+        }
+    }
+
+    synchronized long bytes() { return bytes; }
+    long hits() { return hits.sum(); }
+    long downloads() { return downloads.sum(); }
+    long evictions() { return evictions.sum(); }
+    long fileIdHits() { return fileIdHits.sum(); }
+
+    private Entry download(String url, String key) throws IOException {
+        Path tmp = Files.createTempFile(dir, key, ".part");
+        try {
+            Request request = new Request.Builder().url(url).build();
+            String hash;
+            try (Response response = http.newCall(request).execute()) {
+                if (!response.isSuccessful() || response.body() == null) {
+                    throw new IOException("Failed to download image: " + response.code());
+                }
+                HashingSink hashing = HashingSink.sha256(Okio.sink(tmp));
+                try (BufferedSink out = Okio.buffer(hashing)) {
+                    out.writeAll(response.body().source());
+                }
+                hash = hashing.hash().hex();
+            }
+            Path file = dir.resolve(key + "-" + hash + SUFFIX);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            downloads.increment();
+            Entry e = new Entry(file, hash, Files.size(file));
+            add(key, e);
+            return e;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void add(String key, Entry e) {
+        List<Path> evicted = new ArrayList<>();
+        Path replaced = null;
+        synchronized (this) {
+            Entry old = entries.put(key, e);
+            if (old != null) bytes -= old.size;
+            // The URL now serves other content; file names carry the key, so no other entry has the old file
+            if (old != null && !old.file.equals(e.file)) replaced = old.file;
+            bytes += e.size;
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+                 it.hasNext() && bytes > maxBytes && entries.size() > 1; ) {
+                Entry eldest = it.next().getValue();
+                if (eldest == e) continue;
+                it.remove();
+                bytes -= eldest.size;
+                evicted.add(eldest.file);
+            }
+        }
+        if (replaced != null) {
+            try {
+                Files.deleteIfExists(replaced);
+            } catch (IOException ex) {
+                Log.warn("Не удалось удалить картинку", "file", replaced, "error", ex.getMessage());
+            }
+        }
+        for (Path p : evicted) {
+            try {
+                Files.deleteIfExists(p);
+                evictions.increment();
+            } catch (IOException ex) {
+                Log.warn("Не удалось удалить картинку", "file", p, "error", ex.getMessage());
+            }
+        }
+    }
+
+    /** Rebuilds the index from the directory, least recently used first, and drops leftovers. */
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(".part")) Files.deleteIfExists(p);
+                else if (name.endsWith(SUFFIX) && name.indexOf('-') == 64) files.add(p);
+            }
+        }
+        files.sort(Comparator.comparing(MediaCache::lastModified));
+        for (Path p : files) {
+            String name = p.getFileName().toString();
+            add(name.substring(0, 64), new Entry(p, name.substring(65, name.length() - SUFFIX.length()), Files.size(p)));
+        }
+    }
+
+    private static FileTime lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    // The file's mtime carries the LRU order over restarts
+    private static void touch(Path p) {
+        try {
+            Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // Only the order after a restart suffers
+        }
+    }
+
+    private static String key(String url) {
+        return ByteString.encodeUtf8(url).sha256().hex();
+    }
+}
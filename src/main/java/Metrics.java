@@ -0,0 +1,249 @@
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Latency histograms and outcome counters for every external call, plus
+ * gauges registered by the bot's components, served in the Prometheus text
+ * format.
+ *
+ * Recording is lock-free: a histogram is a fixed array of log-linear buckets
+ * (8 per power of two, i.e. within 12.5%) updated with a single atomic
+ * increment, in the spirit of HdrHistogram.
+ */
+final class Metrics {
+
+    enum Outcome { SUCCESS, FAILURE, TIMEOUT }
+
+    // Exported bucket bounds in seconds; quantiles come from the fine buckets
+    private static final double[] LE = {
+            0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final MathContext SIGNIFICANT = new MathContext(6);
+
+    private final Map<String, Histogram> latencies = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> outcomes = new ConcurrentSkipListMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+    private static final class Gauge {
+        final String help;
+        final boolean counter;
+        final DoubleSupplier value;
+
+        Gauge(String help, boolean counter, DoubleSupplier value) {
+            this.help = help;
+            this.counter = counter;
+            this.value = value;
+        }
+    }
+
+    /** Records a finished call to {@code target} that started at {@code startNanos}. */
+    void record(String target, long startNanos, Outcome outcome) {
+        latency(target).record(System.nanoTime() - startNanos);
+        outcomes.computeIfAbsent(target + "\u0000" + outcome.name().toLowerCase(Locale.ROOT), k -> new LongAdder())
+                .increment();
+    }
+
+    /** Outcome of a call that threw {@code e}; timeouts are often wrapped by client libraries. */
+    static Outcome outcomeOf(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof InterruptedIOException) return Outcome.TIMEOUT;
+        }
+        return Outcome.FAILURE;
+    }
+
+    /**
+     * A client sharing {@code http}'s pool and dispatcher that records every
+     * call as {@code target}; latency is measured up to the response headers.
+     */
+    OkHttpClient instrument(OkHttpClient http, String target) {
+        return http.newBuilder().addInterceptor(timing(target)).build();
+    }
+
+    private Interceptor timing(String target) {
+        return chain -> {
+            long t0 = System.nanoTime();
+            Response response;
+            try {
+                response = chain.proceed(chain.request());
+            } catch (IOException | RuntimeException e) {
+                if (!chain.call().isCanceled()) record(target, t0, outcomeOf(e));
+                throw e;
+            }
+            record(target, t0, response.isSuccessful() ? Outcome.SUCCESS : Outcome.FAILURE);
+            return response;
+        };
+    }
+
+    Histogram latency(String target) {
+        return latencies.computeIfAbsent(target, k -> new Histogram());
+    }
+
+    /** {@code name} may carry labels, e.g. {@code bot_backend_in_flight{backend="n8n"}}. */
+    void gauge(String name, String help, DoubleSupplier value) {
+        gauges.put(name, new Gauge(help, false, value));
+    }
+
+    void counter(String name, String help, DoubleSupplier value) {
+        gauges.put(name, new Gauge(help, true, value));
+    }
+
+    /** Serves {@link #scrape()} at {@code /metrics}. */
+    HttpServer serve(String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+
+        sb.append("# HELP bot_call_latency_seconds Latency of external calls and update handling\n");
+        sb.append("# TYPE bot_call_latency_seconds histogram\n");
+        for (Map.Entry<String, Histogram> e : latencies.entrySet()) {
+            String target = e.getKey();
+            Histogram h = e.getValue();
+            long[] snapshot = h.snapshot();
+            long cumulative = 0;
+            int i = 0;
+            for (double le : LE) {
+                long bound = (long) (le * 1e6);
+                while (i < snapshot.length && Histogram.upperBound(i) <= bound + 1) cumulative += snapshot[i++];
+                sb.append("bot_call_latency_seconds_bucket{target=\"").append(target)
+                        .append("\",le=\"").append(fmt(le)).append("\"} ").append(cumulative).append('\n');
+            }
+            long total = 0;
+            for (long c : snapshot) total += c;
+            sb.append("bot_call_latency_seconds_bucket{target=\"").append(target).append("\",le=\"+Inf\"} ")
+                    .append(total).append('\n');
+            sb.append("bot_call_latency_seconds_sum{target=\"").append(target).append("\"} ")
+                    .append(fmt(h.sumNanos() / 1e9)).append('\n');
+            sb.append("bot_call_latency_seconds_count{target=\"").append(target).append("\"} ")
+                    .append(total).append('\n');
+        }
+
+        sb.append("# HELP bot_call_latency_quantile_seconds Latency quantiles since start\n");
+        sb.append("# TYPE bot_call_latency_quantile_seconds gauge\n");
+        for (Map.Entry<String, Histogram> e : latencies.entrySet()) {
+            long[] snapshot = e.getValue().snapshot();
+            for (double q : QUANTILES) {
+                sb.append("bot_call_latency_quantile_seconds{target=\"").append(e.getKey())
+                        .append("\",quantile=\"").append(fmt(q)).append("\"} ")
+                        .append(fmt(Histogram.quantile(snapshot, q) / 1e6)).append('\n');
+            }
+        }
+
+        sb.append("# HELP bot_calls_total External calls by outcome\n");
+        sb.append("# TYPE bot_calls_total counter\n");
+        for (Map.Entry<String, LongAdder> e : outcomes.entrySet()) {
+            String[] parts = e.getKey().split("\u0000");
+            sb.append("bot_calls_total{target=\"").append(parts[0]).append("\",outcome=\"").append(parts[1])
+                    .append("\"} ").append(e.getValue().sum()).append('\n');
+        }
+
+        String family = null;
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            Gauge g = e.getValue();
+            // Labelled series of one family ("name{label=...}") share the HELP and TYPE lines
+            int brace = e.getKey().indexOf('{');
+            String name = brace < 0 ? e.getKey() : e.getKey().substring(0, brace);
+            if (!name.equals(family)) {
+                family = name;
+                sb.append("# HELP ").append(name).append(' ').append(g.help).append('\n');
+                sb.append("# TYPE ").append(name).append(g.counter ? " counter\n" : " gauge\n");
+            }
+            double v;
+            try {
+                v = g.value.getAsDouble();
+            } catch (RuntimeException ex) {
+                v = Double.NaN;
+            }
+            sb.append(e.getKey()).append(' ').append(fmt(v)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String fmt(double v) {
+        if (Double.isNaN(v)) return "NaN";
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+        if (Double.isInfinite(v)) return v > 0 ? "+Inf" : "-Inf";
+        return BigDecimal.valueOf(v).round(SIGNIFICANT).stripTrailingZeros().toPlainString();
+    }
+
+    /** Log-linear histogram of microsecond values. */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+        private final LongAdder sumNanos = new LongAdder();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts.incrementAndGet(index(micros));
+            sumNanos.add(nanos);
+        }
+
+        long sumNanos() {
+            return sumNanos.sum();
+        }
+
+        long[] snapshot() {
+            long[] s = new long[counts.length()];
+            for (int i = 0; i < s.length; i++) s[i] = counts.get(i);
+            return s;
+        }
+
+        static int index(long v) {
+            if (v < SUB) return (int) v;
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (e - SUB_BITS)) & (SUB - 1);
+            return (e - SUB_BITS + 1) * SUB + sub;
+        }
+
+        /** Exclusive upper bound, in microseconds, of the values counted at {@code index}. */
+        static long upperBound(int index) {
+            if (index < SUB) return index + 1;
+            int e = index / SUB + SUB_BITS - 1;
+            int sub = index % SUB;
+            return ((long) (SUB + sub + 1)) << (e - SUB_BITS);
+        }
+
+        /** Upper bound in microseconds of the bucket holding the {@code q} quantile. */
+        static long quantile(long[] snapshot, double q) {
+            long total = 0;
+            for (long c : snapshot) total += c;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return upperBound(i);
+            }
+            return upperBound(snapshot.length - 1);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Spreads n8n calls over several webhook endpoints without an external load
+ * balancer.
+ *
+ * Each call goes to the healthy endpoint with the fewest outstanding requests.
+ * An endpoint that fails {@code EJECT_AFTER} times in a row is ejected for a
+ * while; if every endpoint is ejected they are all used anyway. A call that
+ * couldn't even connect is retried once on another endpoint, if there is one.
+ * Nothing else is retried: once n8n has the request, a second try would run
+ * the generation (and create its document) twice.
+ *
+ * With hedging on, a call still unanswered after the hedge delay (fixed, or
+ * the observed p95 of n8n calls) gets a duplicate on another endpoint. The
+ * first answer that isn't a 5xx or 429 wins and the other call is cancelled.
+ * Hedges are capped at a share of all calls, since each one is another LLM run.
+ *
+ * The n8n {@link CircuitBreaker} sees one outcome per call, after failover and
+ * hedging, so a single dead endpoint doesn't open it for the healthy ones.
+ */
+final class N8nBalancer {
+
+    private static final int EJECT_AFTER = 3;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final int MIN_SAMPLES_FOR_P95 = 20;
+    private static final long MIN_HEDGE_MILLIS = 50;
+
+    static final class Endpoint {
+        final HttpUrl url;
+        final String target;
+        final AtomicInteger outstanding = new AtomicInteger();
+        // Both guarded by this
+        private int failures;
+        private long ejectedUntil;
+
+        Endpoint(HttpUrl url) {
+            this.url = url;
+            // Workers may share a host behind different paths, so the path is part of the name
+            this.target = "n8n@" + url.host() + ":" + url.port() + url.encodedPath();
+        }
+
+        synchronized boolean healthy(long now) {
+            return now >= ejectedUntil;
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+        }
+
+        /** Returns true if this failure ejects the endpoint. */
+        synchronized boolean failed(long now, long ejectMillis) {
+            if (++failures < EJECT_AFTER || now < ejectedUntil) return false;
+            failures = 0;
+            ejectedUntil = now + ejectMillis;
+            return true;
+        }
+    }
+
+    private static final ScheduledExecutorService HEDGE_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "n8n-hedge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<Endpoint> endpoints;
+    private final Call.Factory http;
+    private final CircuitBreaker breaker;
+    private final Metrics metrics;
+    private final String target;
+    // < 0: hedge after the observed p95; 0: no hedging; > 0: fixed delay
+    private final long hedgeMillis;
+    private final double hedgeBudget;
+    private final long ejectMillis;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+    private final LongAdder ejections = new LongAdder();
+
+    /**
+     * {@code hedge} is "off", "p95" or a delay in milliseconds; {@code target}
+     * is the metrics name {@code http} records n8n calls under.
+     */
+    N8nBalancer(String urls, HttpBackend backend, Metrics metrics, String target, String hedge,
+                int hedgeBudgetPercent, long ejectMillis) {
+        List<Endpoint> list = new ArrayList<>();
+        if (urls != null) {
+            for (String u : urls.split(",")) {
+                if (!u.trim().isEmpty()) list.add(new Endpoint(HttpUrl.get(u.trim())));
+            }
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        this.http = backend;
+        this.breaker = backend.breaker();
+        this.metrics = metrics;
+        this.target = target;
+        this.hedgeMillis = "p95".equalsIgnoreCase(hedge) ? -1
+                : hedge == null || hedge.isEmpty() || "off".equalsIgnoreCase(hedge) ? 0 : Long.parseLong(hedge);
+        this.hedgeBudget = hedgeBudgetPercent / 100.0;
+        this.ejectMillis = ejectMillis;
+        register();
+    }
+
+    /** POSTs {@code body} on behalf of {@code chat} and returns the winning response; the caller closes it. */
+    Response post(long chat, RequestBody body, String accept) throws IOException {
+        if (endpoints.isEmpty()) throw new IOException("N8N_WEBHOOK_URL не задан");
+        breaker.acquire();
+        calls.increment();
+        Exchange ex = new Exchange(chat, body, accept);
+        ex.start(null);
+        long delay = hedgeDelayMillis();
+        if (delay > 0 && endpoints.size() > 1) {
+            ex.hedge = HEDGE_TIMER.schedule(ex::fireHedge, delay, TimeUnit.MILLISECONDS);
+        }
+        try {
+            Response response = ex.winner.get();
+            breaker.record(!retryable(response.code()));
+            return response;
+        } catch (InterruptedException e) {
+            breaker.cancel();
+            ex.cancelAll();
+            ex.winner.thenAccept(Response::close);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("n8n call interrupted");
+        } catch (ExecutionException e) {
+            breaker.record(false);
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private long hedgeDelayMillis() {
+        if (hedgeMillis == 0 || hedges.sum() >= hedgeBudget * calls.sum()) return 0;
+        if (hedgeMillis > 0) return hedgeMillis;
+        long[] snapshot = metrics.latency(target).snapshot();
+        long samples = 0;
+        for (long c : snapshot) samples += c;
+        if (samples < MIN_SAMPLES_FOR_P95) return 0;
+        return Math.max(MIN_HEDGE_MILLIS, Metrics.Histogram.quantile(snapshot, 0.95) / 1000);
+    }
+
+    private Endpoint pick(Endpoint exclude) {
+        long now = System.currentTimeMillis();
+        int n = endpoints.size();
+        int start = Math.floorMod(rotation.getAndIncrement(), n);
+        Endpoint best = null;
+        boolean bestHealthy = false;
+        for (int i = 0; i < n; i++) {
+            Endpoint e = endpoints.get((start + i) % n);
+            if (e == exclude && n > 1) continue;
+            boolean healthy = e.healthy(now);
+            if (best == null || (healthy && !bestHealthy)
+                    || (healthy == bestHealthy && e.outstanding.get() < best.outstanding.get())) {
+                best = e;
+                bestHealthy = healthy;
+            }
+        }
+        return best;
+    }
+
+    /** One logical call: the first attempt, and a hedge or failover attempt. */
+    private final class Exchange {
+        final HttpBackend.Chat chat;
+        final RequestBody body;
+        final String accept;
+        final CompletableFuture<Response> winner = new CompletableFuture<>();
+        // All guarded by this
+        final List<Call> started = new ArrayList<>();
+        int running;
+        boolean hedged;
+        Endpoint first;
+        volatile ScheduledFuture<?> hedge;
+
+        Exchange(long chat, RequestBody body, String accept) {
+            this.chat = new HttpBackend.Chat(chat);
+            this.body = body;
+            this.accept = accept;
+        }
+
+        synchronized void start(Endpoint exclude) {
+            Endpoint endpoint = pick(exclude);
+            if (first == null) first = endpoint;
+            Request.Builder req = new Request.Builder().url(endpoint.url).post(body)
+                    .tag(HttpBackend.SelfReported.class, HttpBackend.SelfReported.INSTANCE)
+                    .tag(HttpBackend.Chat.class, chat);
+            if (accept != null) req.header("Accept", accept);
+            if (body instanceof N8nCodec.Gzipped) req.header("Content-Encoding", "gzip");
+            Call call = http.newCall(req.build());
+            started.add(call);
+            running++;
+            endpoint.outstanding.incrementAndGet();
+            long t0 = System.nanoTime();
+            call.enqueue(new Callback() {
+                @Override
+                public void onResponse(Call c, Response response) {
+                    endpoint.outstanding.decrementAndGet();
+                    metrics.record(endpoint.target, t0,
+                            response.isSuccessful() ? Metrics.Outcome.SUCCESS : Metrics.Outcome.FAILURE);
+                    if (retryable(response.code())) failed(endpoint);
+                    else endpoint.succeeded();
+                    finished(c, endpoint, response, null);
+                }
+
+                @Override
+                public void onFailure(Call c, IOException e) {
+                    endpoint.outstanding.decrementAndGet();
+                    if (c.isCanceled()) {
+                        finished(c, endpoint, null, e);
+                        return;
+                    }
+                    metrics.record(endpoint.target, t0, Metrics.outcomeOf(e));
+                    failed(endpoint);
+                    finished(c, endpoint, null, e);
+                }
+            });
+        }
+
+        void fireHedge() {
+            synchronized (this) {
+                if (winner.isDone() || started.size() >= MAX_ATTEMPTS) return;
+                hedged = true;
+                hedges.increment();
+                start(first);
+            }
+        }
+
+        private void finished(Call call, Endpoint endpoint, Response response, IOException error) {
+            Response loser = null;
+            List<Call> cancel = null;
+            synchronized (this) {
+                running--;
+                if (response != null && !retryable(response.code())) {
+                    if (winner.complete(response)) {
+                        if (hedged && endpoint != first) hedgeWins.increment();
+                        cancel = new ArrayList<>(started);
+                        cancel.remove(call);
+                    } else {
+                        loser = response;
+                    }
+                } else if (error != null && notSent(error) && endpoints.size() > 1
+                        && !winner.isDone() && started.size() < MAX_ATTEMPTS) {
+                    // Fail over right away instead of waiting for the hedge timer
+                    failovers.increment();
+                    start(endpoint);
+                } else if (running == 0 && !winner.isDone()) {
+                    // Every attempt failed: hand back the last error response or exception
+                    if (response != null) winner.complete(response);
+                    else winner.completeExceptionally(error);
+                } else if (response != null) {
+                    loser = response;
+                }
+            }
+            if (loser != null) loser.close();
+            if (cancel != null) {
+                ScheduledFuture<?> h = hedge;
+                if (h != null) h.cancel(false);
+                for (Call c : cancel) c.cancel();
+            }
+        }
+
+        synchronized void cancelAll() {
+            ScheduledFuture<?> h = hedge;
+            if (h != null) h.cancel(false);
+            for (Call c : started) c.cancel();
+        }
+    }
+
+    private static boolean retryable(int code) {
+        return code >= 500 || code == 429;
+    }
+
+    /** Whether {@code e} means the request never reached n8n, so another endpoint may take it. */
+    private static boolean notSent(IOException e) {
+        if (e instanceof ConnectException || e instanceof UnknownHostException || e instanceof NoRouteToHostException
+                || e instanceof HttpBackend.BulkheadFullException) {
+            return true;
+        }
+        // OkHttp's connect timeout; a read timeout says nothing about whether n8n started
+        return e instanceof SocketTimeoutException
+                && String.valueOf(e.getMessage()).toLowerCase(Locale.ROOT).contains("connect");
+    }
+
+    private void failed(Endpoint endpoint) {
+        if (endpoint.failed(System.currentTimeMillis(), ejectMillis)) {
+            ejections.increment();
+            Log.warn("n8n: эндпоинт исключён", "endpoint", endpoint.url, "seconds", ejectMillis / 1000);
+        }
+    }
+
+    private void register() {
+        for (Endpoint e : endpoints) {
+            String label = "{endpoint=\"" + e.target.substring(4) + "\"}";
+            metrics.gauge("bot_n8n_endpoint_outstanding" + label, "n8n requests in flight per endpoint",
+                    e.outstanding::get);
+            metrics.gauge("bot_n8n_endpoint_healthy" + label, "1 unless the endpoint is ejected",
+                    () -> e.healthy(System.currentTimeMillis()) ? 1 : 0);
+        }
+        metrics.counter("bot_n8n_hedges_total", "Duplicate n8n requests sent", hedges::sum);
+        metrics.counter("bot_n8n_hedge_wins_total", "Hedged requests that answered first", hedgeWins::sum);
+        metrics.counter("bot_n8n_failovers_total", "n8n calls that couldn't connect, retried on another endpoint",
+                failovers::sum);
+        metrics.counter("bot_n8n_ejections_total", "Endpoints ejected after repeated failures", ejections::sum);
+    }
+}
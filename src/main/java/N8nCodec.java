@@ -0,0 +1,394 @@
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Utf8;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * JSON encoding of n8n webhook requests and decoding of its responses without
+ * intermediate strings or DOM trees.
+ *
+ * Requests are written field by field straight into the OkHttp sink. Responses
+ * are pulled from the body source; only {@code text}, {@code picture} and
+ * {@code documentId} are materialised, everything else is skipped in place.
+ * Streamed responses are read event by event as they arrive.
+ *
+ * Rewrite requests name the original by its version id (see
+ * {@link ArticleVersions}) and carry the text only when n8n may not have it;
+ * large bodies are gzip-compressed if the caller asks for it.
+ */
+final class N8nCodec {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final ByteString STRING_END = ByteString.encodeUtf8("\"\\");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private N8nCodec() {}
+
+    static RequestBody generate(long chat, TelegramArticleBot.ChannelType channel,
+                                TelegramArticleBot.ActionType action, String topic, String description) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("chat_id", chat);
+        fields.put("channel", channel.name().toLowerCase());
+        fields.put("action", action.name().toLowerCase());
+        fields.put("topic", topic);
+        fields.put("description", description);
+        return body(fields);
+    }
+
+    /**
+     * {@code original} is the text (or, for a site article, the document id)
+     * and may be null if n8n has version {@code originalId}. Bodies of at least
+     * {@code gzipMinBytes} (0: never) are sent gzip-compressed.
+     */
+    static RequestBody rewrite(long chat, TelegramArticleBot.ChannelType channel, String original,
+                               String originalId, String feedback, int gzipMinBytes) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("chat_id", chat);
+        fields.put("channel", channel.name().toLowerCase());
+        fields.put("action", "rewrite");
+        if (originalId != null) fields.put("original_id", originalId);
+        if (original != null) fields.put("original", original);
+        fields.put("feedback", feedback);
+        RequestBody body = body(fields);
+        return gzipMinBytes > 0 && estimatedSize(fields) >= gzipMinBytes ? new Gzipped(body) : body;
+    }
+
+    /** A flat JSON object of string/number fields, encoded when OkHttp writes the request. */
+    static RequestBody body(Map<String, Object> fields) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                writeObject(sink, fields);
+            }
+        };
+    }
+
+    /**
+     * A body sent with {@code Content-Encoding: gzip}. Only for webhooks that are
+     * known to inflate it (n8n itself or a proxy in front of it); off by default.
+     */
+    static final class Gzipped extends RequestBody {
+        private final RequestBody body;
+
+        Gzipped(RequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink gzip = Okio.buffer(new GzipSink(sink));
+            body.writeTo(gzip);
+            gzip.close();
+        }
+    }
+
+    /** UTF-8 size of the field values, which dominate the encoded body. */
+    private static long estimatedSize(Map<String, Object> fields) {
+        long size = 0;
+        for (Object v : fields.values()) {
+            if (v instanceof String) size += Utf8.size((String) v);
+        }
+        return size;
+    }
+
+    static void writeObject(BufferedSink sink, Map<String, Object> fields) throws IOException {
+        sink.writeByte('{');
+        boolean first = true;
+        for (Map.Entry<String, Object> f : fields.entrySet()) {
+            if (!first) sink.writeByte(',');
+            first = false;
+            writeString(sink, f.getKey());
+            sink.writeByte(':');
+            Object v = f.getValue();
+            if (v == null) sink.writeUtf8("null");
+            else if (v instanceof Number) sink.writeUtf8(v.toString());
+            else writeString(sink, v.toString());
+        }
+        sink.writeByte('}');
+    }
+
+    /** Writes {@code s} as a JSON string literal, escaping quotes, backslashes and all control characters. */
+    static void writeString(BufferedSink sink, String s) throws IOException {
+        sink.writeByte('"');
+        int run = 0;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            // U+2028/U+2029 are valid JSON but break JavaScript string literals
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') continue;
+            if (run < i) sink.writeUtf8(s, run, i);
+            sink.writeUtf8(escapeOf(c));
+            run = i + 1;
+        }
+        if (run < len) sink.writeUtf8(s, run, len);
+        sink.writeByte('"');
+    }
+
+    private static String escapeOf(char c) {
+        switch (c) {
+            case '"': return "\\\"";
+            case '\\': return "\\\\";
+            case '\n': return "\\n";
+            case '\r': return "\\r";
+            case '\t': return "\\t";
+            case '\b': return "\\b";
+            case '\f': return "\\f";
+            default:
+                return "\\u" + HEX[c >> 12] + HEX[(c >> 8) & 0xf] + HEX[(c >> 4) & 0xf] + HEX[c & 0xf];
+        }
+    }
+
+    // ---- response ----
+
+    /**
+     * Reads the article out of an n8n response: the first element of an array
+     * ({@code [{"output":{"text","picture"},"documentId"}]}) for SITE, a plain
+     * object ({@code {"text","picture"}}) for TG. Returns null if the shape
+     * doesn't match the channel.
+     */
+    static TelegramArticleBot.ArticleResult readArticle(BufferedSource src, TelegramArticleBot.ChannelType channel)
+            throws IOException {
+        Reader r = new Reader(src);
+        int first = r.peek();
+        if (first == '[') {
+            if (channel != TelegramArticleBot.ChannelType.SITE) return null;
+            r.consume('[');
+            if (r.peek() != '{') return null;
+            String[] output = null;
+            String docId = "";
+            r.consume('{');
+            if (r.peek() != '}') {
+                do {
+                    String name = r.readString();
+                    r.consume(':');
+                    if ("output".equals(name) && r.peek() == '{') output = readTextAndPicture(r);
+                    else if ("documentId".equals(name)) docId = r.readScalar();
+                    else r.skipValue();
+                } while (r.more('}'));
+            } else {
+                r.consume('}');
+            }
+            if (output == null) return null;
+            TelegramArticleBot.ArticleResult result = new TelegramArticleBot.ArticleResult(docId);
+            result.text = output[0];
+            result.picture = output[1];
+            return result;
+        }
+        if (first == '{') {
+            if (channel != TelegramArticleBot.ChannelType.TG) return null;
+            String[] tp = readTextAndPicture(r);
+            return new TelegramArticleBot.ArticleResult(tp[0], tp[1]);
+        }
+        throw new IOException("Unexpected n8n response start: '" + (char) first + "'");
+    }
+
+    /**
+     * Reads a streamed n8n response: NDJSON, or SSE with the same JSON in
+     * {@code data:} lines. {@code {"delta":"..."}} events carry article text
+     * and go to {@code onDelta} as they arrive; any other event is the final
+     * result in the usual shape. Without a final event, a TG article is
+     * assembled from the deltas.
+     */
+    static TelegramArticleBot.ArticleResult readStream(BufferedSource src, TelegramArticleBot.ChannelType channel,
+                                                       Consumer<String> onDelta) throws IOException {
+        TelegramArticleBot.ArticleResult result = null;
+        StringBuilder streamed = new StringBuilder();
+        String line;
+        while ((line = src.readUtf8Line()) != null) {
+            if (line.startsWith("data:")) line = line.substring(5);
+            else if (line.startsWith(":") || line.startsWith("event:") || line.startsWith("id:")
+                    || line.startsWith("retry:")) continue;
+            line = line.trim();
+            if (line.isEmpty() || "[DONE]".equals(line)) continue;
+            Buffer event = new Buffer().writeUtf8(line);
+            String delta = readDelta(event.copy());
+            if (delta != null) {
+                streamed.append(delta);
+                onDelta.accept(delta);
+            } else {
+                result = readArticle(event, channel);
+            }
+        }
+        if (result == null && channel == TelegramArticleBot.ChannelType.TG && streamed.length() > 0) {
+            result = new TelegramArticleBot.ArticleResult(streamed.toString(), "");
+        }
+        return result;
+    }
+
+    /** The {@code delta} member of a stream event, or null if it has none. */
+    private static String readDelta(BufferedSource src) throws IOException {
+        Reader r = new Reader(src);
+        if (r.peek() != '{') return null;
+        r.consume('{');
+        if (r.peek() == '}') return null;
+        String delta = null;
+        do {
+            String name = r.readString();
+            r.consume(':');
+            if ("delta".equals(name)) delta = r.readScalar();
+            else r.skipValue();
+        } while (r.more('}'));
+        return delta;
+    }
+
+    private static String[] readTextAndPicture(Reader r) throws IOException {
+        String[] out = {"", ""};
+        r.consume('{');
+        if (r.peek() == '}') {
+            r.consume('}');
+            return out;
+        }
+        do {
+            String name = r.readString();
+            r.consume(':');
+            if ("text".equals(name)) out[0] = r.readScalar();
+            else if ("picture".equals(name)) out[1] = r.readScalar();
+            else r.skipValue();
+        } while (r.more('}'));
+        return out;
+    }
+
+    /** Minimal pull parser over a {@link BufferedSource}; enough for the shapes above. */
+    private static final class Reader {
+        private final BufferedSource src;
+
+        Reader(BufferedSource src) { this.src = src; }
+
+        int peek() throws IOException {
+            while (true) {
+                if (!src.request(1)) throw new EOFException("Unexpected end of JSON");
+                byte b = src.getBuffer().getByte(0);
+                if (b == ' ' || b == '\n' || b == '\r' || b == '\t') src.skip(1);
+                else return b;
+            }
+        }
+
+        void consume(char c) throws IOException {
+            int b = peek();
+            if (b != c) throw new IOException("Expected '" + c + "' but got '" + (char) b + "'");
+            src.skip(1);
+        }
+
+        /** After a member or element: consumes ',' and returns true, or consumes {@code close} and returns false. */
+        boolean more(char close) throws IOException {
+            int b = peek();
+            src.skip(1);
+            if (b == ',') return true;
+            if (b == close) return false;
+            throw new IOException("Expected ',' or '" + close + "' but got '" + (char) b + "'");
+        }
+
+        String readString() throws IOException {
+            consume('"');
+            StringBuilder sb = null;
+            while (true) {
+                long i = src.indexOfElement(STRING_END);
+                if (i < 0) throw new EOFException("Unterminated JSON string");
+                byte b = src.getBuffer().getByte(i);
+                if (b == '"' && sb == null) {
+                    String s = src.readUtf8(i);
+                    src.skip(1);
+                    return s;
+                }
+                if (sb == null) sb = new StringBuilder();
+                sb.append(src.readUtf8(i));
+                src.skip(1);
+                if (b == '"') return sb.toString();
+                readEscape(sb);
+            }
+        }
+
+        private void readEscape(StringBuilder sb) throws IOException {
+            src.require(1);
+            char c = (char) src.readByte();
+            switch (c) {
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    src.require(4);
+                    sb.append((char) Integer.parseInt(src.readUtf8(4), 16));
+                    break;
+                default: sb.append(c);
+            }
+        }
+
+        /** A value as {@code JSONObject.optString} would render scalars: null becomes "". */
+        String readScalar() throws IOException {
+            int b = peek();
+            if (b == '"') return readString();
+            if (b == '{' || b == '[') {
+                skipValue();
+                return "";
+            }
+            String literal = readLiteral();
+            return "null".equals(literal) ? "" : literal;
+        }
+
+        private String readLiteral() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (src.request(1)) {
+                byte b = src.getBuffer().getByte(0);
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') break;
+                sb.append((char) src.readByte());
+            }
+            return sb.toString();
+        }
+
+        void skipValue() throws IOException {
+            int b = peek();
+            if (b == '"') {
+                skipString();
+            } else if (b == '{' || b == '[') {
+                int depth = 0;
+                do {
+                    b = peek();
+                    if (b == '"') {
+                        skipString();
+                        continue;
+                    }
+                    src.skip(1);
+                    if (b == '{' || b == '[') depth++;
+                    else if (b == '}' || b == ']') depth--;
+                } while (depth > 0);
+            } else {
+                readLiteral();
+            }
+        }
+
+        private void skipString() throws IOException {
+            src.skip(1);
+            while (true) {
+                long i = src.indexOfElement(STRING_END);
+                if (i < 0) throw new EOFException("Unterminated JSON string");
+                byte b = src.getBuffer().getByte(i);
+                src.skip(i + 1);
+                if (b == '"') return;
+                src.skip(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker side of {@link ChatRouter}: receives the updates of the chats this
+ * process owns and hands sessions over when ownership moves. Joins the router
+ * on start and again every 30 s, so a restarted router relearns its workers;
+ * {@link #leave} gives all sessions away before the process exits.
+ *
+ * Endpoints (loopback only): {@code POST /update}, {@code POST /session/take?chat=},
+ * {@code POST /session/adopt?chat=}.
+ */
+final class PartitionWorker {
+
+    interface Host {
+        void onUpdate(Update update);
+        /** Removes and encodes the chat's session after its queued updates; null if there is none. */
+        byte[] takeSession(long chat) throws IOException;
+        void adoptSession(long chat, byte[] session);
+        long[] chats();
+    }
+
+    private static final ObjectMapper JSON = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final MediaType JSON_TYPE = MediaType.parse("application/json");
+
+    private final HttpServer server;
+    private final String url;
+    private final String routerUrl;
+    private final Host host;
+    private final OkHttpClient http = new OkHttpClient.Builder()
+            .callTimeout(Duration.ofSeconds(10))
+            .build();
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "partition-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    PartitionWorker(String bindHost, int port, String url, String routerUrl, Host host) throws IOException {
+        this.url = url;
+        this.routerUrl = routerUrl;
+        this.host = host;
+        server = HttpServer.create(new InetSocketAddress(bindHost, port), 0);
+        AtomicInteger seq = new AtomicInteger();
+        server.setExecutor(Executors.newFixedThreadPool(8, r -> {
+            Thread t = new Thread(r, "partition-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }));
+        server.createContext("/update", this::update);
+        server.createContext("/session/take", this::take);
+        server.createContext("/session/adopt", this::adopt);
+    }
+
+    void start() {
+        server.start();
+        heartbeat.scheduleWithFixedDelay(this::join, 0, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Leaves the ring, waiting up to {@code timeoutMillis} for the router to
+     * move this worker's sessions elsewhere. False if it didn't confirm in
+     * time; chats whose session wasn't moved by then start afresh on their new
+     * worker.
+     */
+    boolean leave(long timeoutMillis) {
+        heartbeat.shutdownNow();
+        OkHttpClient slow = http.newBuilder()
+                .callTimeout(Duration.ofMillis(Math.max(1, timeoutMillis)))
+                .readTimeout(Duration.ZERO)
+                .build();
+        boolean left = false;
+        try (Response resp = slow.newCall(routerCall("/leave", new JSONObject().put("url", url))).execute()) {
+            left = resp.isSuccessful();
+            Log.info("Воркер отключён от роутера", "worker", url, "status", resp.code());
+        } catch (IOException e) {
+            Log.warn("Воркер не смог отключиться от роутера", "worker", url, "error", e);
+        }
+        server.stop(1);
+        return left;
+    }
+
+    private void join() {
+        JSONObject body = new JSONObject().put("url", url).put("chats", new JSONArray(host.chats()));
+        try (Response resp = http.newCall(routerCall("/join", body)).execute()) {
+            if (!resp.isSuccessful()) Log.warn("Роутер отклонил подключение", "router", routerUrl, "status", resp.code());
+        } catch (IOException e) {
+            Log.warn("Роутер недоступен", "router", routerUrl, "error", e);
+        }
+    }
+
+    private Request routerCall(String path, JSONObject body) {
+        return new Request.Builder()
+                .url(URI.create(routerUrl).resolve(path).toString())
+                .post(RequestBody.create(body.toString(), JSON_TYPE))
+                .build();
+    }
+
+    private void update(HttpExchange ex) throws IOException {
+        Update u;
+        try (InputStream in = ex.getRequestBody()) {
+            u = JSON.readValue(in, Update.class);
+        } catch (IOException e) {
+            respond(ex, 400, null);
+            return;
+        }
+        host.onUpdate(u);
+        respond(ex, 200, null);
+    }
+
+    private void take(HttpExchange ex) throws IOException {
+        ex.getRequestBody().close();
+        byte[] session = host.takeSession(chat(ex));
+        if (session == null) respond(ex, 204, null);
+        else respond(ex, 200, session);
+    }
+
+    private void adopt(HttpExchange ex) throws IOException {
+        byte[] session;
+        try (InputStream in = ex.getRequestBody()) {
+            session = in.readAllBytes();
+        }
+        host.adoptSession(chat(ex), session);
+        respond(ex, 200, null);
+    }
+
+    private static long chat(HttpExchange ex) {
+        String q = ex.getRequestURI().getQuery();
+        return Long.parseLong(q.substring(q.indexOf("chat=") + 5));
+    }
+
+    private static void respond(HttpExchange ex, int code, byte[] body) throws IOException {
+        ex.sendResponseHeaders(code, body == null ? -1 : body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            if (body != null) out.write(body);
+        }
+    }
+}
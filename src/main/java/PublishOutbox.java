@@ -0,0 +1,482 @@
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Durable queue of publications. PUBLISH_ZEN / PUBLISH_TG only enqueue a job
+ * here; a background worker performs it and reports the final outcome to the
+ * chat that asked for it.
+ *
+ * Jobs are written to a {@link RecordLog} before the user is answered and
+ * removed only once they succeed or permanently fail, so a crash or restart
+ * never loses a post. Site rows are coalesced into Baserow batch-create calls;
+ * failures are retried with exponential backoff. Each job carries an
+ * idempotency key; with {@code BASEROW_IDEMPOTENCY_FIELD} set it is stored in
+ * that column and checked before retrying a batch whose outcome is unknown.
+ */
+final class PublishOutbox implements Closeable {
+
+    enum Kind { SITE, CHANNEL }
+
+    static final class Job {
+        final long id;
+        final String key;
+        final Kind kind;
+        final long chatId;
+        final String text;
+        final String picture;
+        final long created;
+        int attempts;
+        long notBefore;
+        // After a rejected batch, rows go one by one to find the bad one
+        boolean solo;
+        boolean inFlight;
+        // Channel posts: parts already in the channel, which a retry doesn't send again
+        int posted;
+
+        Job(long id, String key, Kind kind, long chatId, String text, String picture, long created) {
+            this.id = id;
+            this.key = key;
+            this.kind = kind;
+            this.chatId = chatId;
+            this.text = text;
+            this.picture = picture;
+            this.created = created;
+        }
+    }
+
+    /** How the outbox reaches the rest of the bot. */
+    interface Hooks {
+        /**
+         * Posts the job's parts from {@code from} on, calling {@code posted}
+         * with the number of parts in the channel each time one more is out.
+         */
+        CompletableFuture<?> postToChannel(Job job, int from, IntConsumer posted);
+        void finished(Job job, boolean ok, String error);
+    }
+
+    private static final byte PENDING = 1;
+    private static final int MAX_BATCH = 100;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    private final RecordLog log;
+    private final Call.Factory http;
+    private final String rowsUrl;
+    private final HttpUrl batchUrl;
+    private final String token;
+    private final String idempotencyField;
+    private final ImagePipeline images;
+    private final Hooks hooks;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Long, Job> jobs = new LinkedHashMap<>();
+    private final AtomicLong ids = new AtomicLong(System.currentTimeMillis() << 8);
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    /**
+     * @param rowsUrl    Baserow row-create URL ({@code BASEROW_API_URL})
+     * @param batchUrl   batch-create URL, or null to derive it from {@code rowsUrl}
+     */
+    PublishOutbox(Path file, Call.Factory http, String rowsUrl, String batchUrl, String token,
+                  String idempotencyField, ImagePipeline images, Hooks hooks) throws IOException {
+        this.log = new RecordLog(file);
+        this.http = http;
+        this.rowsUrl = rowsUrl;
+        this.batchUrl = batchUrl != null ? HttpUrl.get(batchUrl)
+                : rowsUrl != null ? deriveBatchUrl(HttpUrl.get(rowsUrl)) : null;
+        this.token = token;
+        this.idempotencyField = idempotencyField;
+        this.images = images;
+        this.hooks = hooks;
+
+        log.replay((key, kind, payload) -> {
+            jobs.remove(key);
+            if (kind == PENDING) jobs.put(key, decode(key, payload));
+        });
+        for (long id : jobs.keySet()) ids.accumulateAndGet(id + 1, Math::max);
+        if (!jobs.isEmpty()) Log.info("Публикации в очереди после перезапуска", "jobs", jobs.size());
+
+        worker = new Thread(this::work, "publish-outbox");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** An id for {@link #enqueue}, so the caller can file it before the job may finish. */
+    long newJobId() {
+        return ids.getAndIncrement();
+    }
+
+    /** Durably records job {@code id}; returns once it is on disk. */
+    Job enqueue(long id, Kind kind, long chatId, String text, String picture) throws IOException {
+        Job job = new Job(id, UUID.randomUUID().toString(), kind, chatId, text, picture, System.currentTimeMillis());
+        lock.lock();
+        try {
+            log.append(job.id, PENDING, encode(job));
+            log.sync();
+            jobs.put(job.id, job);
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return job;
+    }
+
+    int pending() {
+        lock.lock();
+        try {
+            return jobs.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long published() { return published.sum(); }
+    long failed() { return failed.sum(); }
+    long retries() { return retries.sum(); }
+    long batches() { return batches.sum(); }
+
+    /** Waits up to {@code timeout} for every queued publication to finish. */
+    boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!jobs.isEmpty()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) break;
+                changed.awaitNanos(Math.min(left, TimeUnit.MILLISECONDS.toNanos(200)));
+            }
+            return jobs.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        worker.interrupt();
+        log.close();
+    }
+
+    // ---- worker ----
+
+    private void work() {
+        while (running) {
+            try {
+                List<Job> site = new ArrayList<>();
+                List<Job> channel = new ArrayList<>();
+                awaitReady(site, channel);
+                for (Job job : channel) {
+                    try {
+                        postToChannel(job);
+                    } catch (RuntimeException e) {
+                        // Thrown before anything was sent, e.g. CHANNEL_ID unset: retrying won't help
+                        Log.error("Ошибка публикации в канал", e, "job", job.key);
+                        retryOrFail(job, e.toString(), false);
+                    }
+                }
+                if (!site.isEmpty()) {
+                    try {
+                        saveRows(site);
+                    } catch (RuntimeException e) {
+                        // Whatever the batch left in flight would otherwise never be picked up again
+                        Log.error("Ошибка сохранения в Baserow", e, "rows", site.size());
+                        for (Job job : site) {
+                            if (isInFlight(job)) retryOrFail(job, e.toString(), true);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.error("Ошибка обработки очереди публикаций", e);
+            }
+        }
+    }
+
+    private void awaitReady(List<Job> site, List<Job> channel) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                long wait = Long.MAX_VALUE;
+                for (Job job : jobs.values()) {
+                    if (job.inFlight) continue;
+                    if (job.notBefore > now) {
+                        wait = Math.min(wait, job.notBefore - now);
+                    } else if (job.kind == Kind.CHANNEL) {
+                        job.inFlight = true;
+                        channel.add(job);
+                    } else if (site.isEmpty() || (!job.solo && !site.get(0).solo && site.size() < MAX_BATCH)) {
+                        job.inFlight = true;
+                        site.add(job);
+                    }
+                }
+                if (!site.isEmpty() || !channel.isEmpty()) return;
+                if (wait == Long.MAX_VALUE) changed.await();
+                else changed.await(wait, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void postToChannel(Job job) {
+        int from;
+        lock.lock();
+        try {
+            from = job.posted;
+        } finally {
+            lock.unlock();
+        }
+        hooks.postToChannel(job, from, parts -> posted(job, parts)).whenComplete((ok, err) -> {
+            if (err == null) succeeded(job);
+            else retryOrFail(job, err.toString(), !SendQueue.permanent(err));
+        });
+    }
+
+    /** Records how far a channel post got, so neither a retry nor a restart posts those parts twice. */
+    private void posted(Job job, int parts) {
+        lock.lock();
+        try {
+            job.posted = parts;
+            if (!jobs.containsKey(job.id)) return;
+            log.append(job.id, PENDING, encode(job));
+            log.sync();
+        } catch (IOException e) {
+            Log.error("Ошибка записи очереди публикаций", e, "job", job.id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void saveRows(List<Job> batch) {
+        if (batchUrl == null) {
+            for (Job job : batch) retryOrFail(job, "BASEROW_API_URL не задан", false);
+            return;
+        }
+        JSONArray items = new JSONArray();
+        List<Job> built = new ArrayList<>(batch.size());
+        for (Job job : batch) {
+            try {
+                items.put(row(job));
+                built.add(job);
+            } catch (RuntimeException e) {
+                Log.error("Не удалось подготовить строку Baserow", e, "job", job.key);
+                retryOrFail(job, e.toString(), false);
+            }
+        }
+        if (built.isEmpty()) return;
+        batch = built;
+        JSONObject payload = new JSONObject().put("items", items);
+
+        Request request = new Request.Builder()
+                .url(batchUrl)
+                .header("Authorization", "Token " + token)
+                .post(RequestBody.create(payload.toString(), JSON))
+                .build();
+        batches.increment();
+        try (Response response = http.newCall(request).execute()) {
+            if (response.isSuccessful()) {
+                for (Job job : batch) succeeded(job);
+                return;
+            }
+            String error = "Baserow " + response.code() + ": "
+                    + (response.body() != null ? response.body().string() : "");
+            Log.warn("Ошибка Baserow", "rows", batch.size(), "error", error);
+            boolean retryable = response.code() == 429 || response.code() >= 500;
+            if (!retryable && batch.size() > 1) {
+                // One bad row rejects the whole batch; retry them individually
+                lock.lock();
+                try {
+                    for (Job job : batch) {
+                        job.solo = true;
+                        job.inFlight = false;
+                    }
+                    changed.signal();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            if (response.code() >= 500) markAlreadySaved(batch);
+            for (Job job : batch) {
+                if (isPending(job)) retryOrFail(job, error, retryable);
+            }
+        } catch (IOException e) {
+            // The rows may or may not have been created
+            Log.warn("Ошибка соединения с Baserow", "rows", batch.size(), "error", e);
+            markAlreadySaved(batch);
+            for (Job job : batch) {
+                if (isPending(job)) retryOrFail(job, e.toString(), true);
+            }
+        }
+    }
+
+    private JSONObject row(Job job) {
+        JSONObject row = new JSONObject();
+        row.put("content", job.text);
+        row.put("date_created", Instant.ofEpochMilli(job.created).toString());
+        if (idempotencyField != null) row.put(idempotencyField, job.key);
+        if (job.picture != null && !job.picture.isEmpty()) {
+            try {
+                row.put("image_url", images.rehost(job.picture));
+            } catch (IOException e) {
+                Log.warn("Ошибка загрузки на ImgBB", "job", job.key, "error", e);
+                row.put("image_url", job.picture); // Fallback - сохраняем оригинальный URL
+            }
+        }
+        return row;
+    }
+
+    /** After an ambiguous failure, completes jobs whose idempotency key is already in Baserow. */
+    private void markAlreadySaved(List<Job> batch) {
+        if (idempotencyField == null) return;
+        for (Job job : batch) {
+            HttpUrl url = HttpUrl.get(rowsUrl).newBuilder()
+                    .setQueryParameter("user_field_names", "true")
+                    .setQueryParameter("size", "1")
+                    .setQueryParameter("filter__" + idempotencyField + "__equal", job.key)
+                    .build();
+            Request request = new Request.Builder().url(url).header("Authorization", "Token " + token).build();
+            try (Response response = http.newCall(request).execute()) {
+                if (response.isSuccessful() && response.body() != null
+                        && new JSONObject(response.body().string()).optInt("count") > 0) {
+                    succeeded(job);
+                }
+            } catch (Exception e) {
+                // Unknown; the job is simply retried
+            }
+        }
+    }
+
+    private void succeeded(Job job) {
+        remove(job);
+        published.increment();
+        hooks.finished(job, true, null);
+    }
+
+    private void retryOrFail(Job job, String error, boolean retryable) {
+        lock.lock();
+        try {
+            job.inFlight = false;
+            job.attempts++;
+            if (retryable && job.attempts < MAX_ATTEMPTS) {
+                retries.increment();
+                job.notBefore = System.currentTimeMillis()
+                        + Math.min(MAX_BACKOFF_MILLIS, 1000L << Math.min(job.attempts, 20));
+                changed.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        remove(job);
+        failed.increment();
+        Log.warn("Публикация не удалась", "job", job.key, "chat", job.chatId, "error", error);
+        hooks.finished(job, false, error);
+    }
+
+    private boolean isInFlight(Job job) {
+        lock.lock();
+        try {
+            return job.inFlight && jobs.containsKey(job.id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isPending(Job job) {
+        lock.lock();
+        try {
+            return jobs.containsKey(job.id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(Job job) {
+        lock.lock();
+        try {
+            if (jobs.remove(job.id) == null) return;
+            log.append(job.id, RecordLog.TOMBSTONE, new byte[0]);
+            if (log.needsCompaction(1L << 20)) log.compact();
+            changed.signalAll();
+        } catch (IOException e) {
+            Log.error("Ошибка записи очереди публикаций", e, "job", job.id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---- encoding ----
+
+    private static HttpUrl deriveBatchUrl(HttpUrl rows) {
+        // .../rows/table/{id}/?user_field_names=true -> .../rows/table/{id}/batch/?user_field_names=true
+        HttpUrl.Builder b = rows.newBuilder();
+        List<String> segments = rows.pathSegments();
+        if (segments.get(segments.size() - 1).isEmpty()) b.setPathSegment(segments.size() - 1, "batch");
+        else b.addPathSegment("batch");
+        return b.addPathSegment("").build();
+    }
+
+    private static byte[] encode(Job job) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(job.kind.ordinal());
+        out.writeLong(job.chatId);
+        out.writeLong(job.created);
+        RecordLog.writeString(out, job.key);
+        RecordLog.writeString(out, job.text);
+        RecordLog.writeString(out, job.picture);
+        out.writeInt(job.posted);
+        return bytes.toByteArray();
+    }
+
+    private static Job decode(long id, ByteBuffer in) {
+        Kind kind = Kind.values()[in.get()];
+        long chatId = in.getLong();
+        long created = in.getLong();
+        String key = RecordLog.readString(in);
+        String text = RecordLog.readString(in);
+        String picture = RecordLog.readString(in);
+        Job job = new Job(id, key, kind, chatId, text, picture, created);
+        // Absent in records written before parts were tracked
+        if (in.remaining() >= 4) job.posted = in.getInt();
+        return job;
+    }
+}
@@ -0,0 +1,245 @@
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of keyed records. The last record for a key wins and a
+ * {@link #TOMBSTONE} record deletes the key; {@link #compact()} rewrites the
+ * file keeping only live records.
+ *
+ * Record layout: {@code [int bodyLength][int crc32(body)][body]} with
+ * {@code body = [long key][byte kind][payload]}. A torn or corrupt tail left
+ * by a crash is detected by length/CRC and cut off on {@link #replay}.
+ *
+ * A record can also be read back by the offset {@link #append} returned, so a
+ * caller may keep only offsets in memory. Offsets are invalidated by
+ * {@link #compact()}.
+ *
+ * The file is scanned through windows of at most {@code WINDOW} bytes, so a
+ * log that is never compacted may grow past what one mapping can hold.
+ */
+final class RecordLog implements Closeable {
+
+    interface Visitor {
+        void record(long key, byte kind, ByteBuffer payload);
+    }
+
+    interface OffsetVisitor {
+        void record(long key, byte kind, ByteBuffer payload, long offset);
+    }
+
+    static final byte TOMBSTONE = 0;
+
+    private static final int HEADER = 4 + 4;
+    private static final int KEY = 8 + 1;
+    private static final long WINDOW = 64L << 20;
+
+    private final Path file;
+    private final Object compactionLock = new Object();
+    private FileChannel ch;
+    // Both guarded by this: the length of each key's latest record, and their sum
+    private final Map<Long, Integer> live = new HashMap<>();
+    private long liveBytes;
+
+    RecordLog(Path file) throws IOException {
+        this.file = file;
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /** Feeds every valid record to {@code v} in write order and positions the log for appending. */
+    void replay(Visitor v) throws IOException {
+        replayWithOffsets((key, kind, payload, offset) -> v.record(key, kind, payload));
+    }
+
+    /** Like {@link #replay}, also passing each record's offset for {@link #read}. */
+    synchronized void replayWithOffsets(OffsetVisitor v) throws IOException {
+        long size = ch.size();
+        live.clear();
+        long valid = scan(size, (key, kind, payload, offset, length) -> {
+            if (kind == TOMBSTONE) live.remove(key);
+            else live.put(key, length);
+            v.record(key, kind, payload, offset);
+        });
+        if (valid < size) {
+            Log.warn("Журнал: отброшен повреждённый хвост", "file", file, "bytes", size - valid);
+            ch.truncate(valid);
+        }
+        ch.position(valid);
+        long total = 0;
+        for (int len : live.values()) total += len;
+        liveBytes = total;
+    }
+
+    // Caller holds the lock
+    private void track(long key, byte kind, int length) {
+        Integer old = kind == TOMBSTONE ? live.remove(key) : live.put(key, length);
+        if (old != null) liveBytes -= old;
+        if (kind != TOMBSTONE) liveBytes += length;
+    }
+
+    /** Appends a record and returns its offset. */
+    synchronized long append(long key, byte kind, byte[] payload) throws IOException {
+        long offset = ch.position();
+        ByteBuffer b = ByteBuffer.allocate(HEADER + KEY + payload.length);
+        b.putInt(KEY + payload.length).putInt(0).putLong(key).put(kind).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), HEADER, KEY + payload.length);
+        b.putInt(4, (int) crc.getValue());
+        b.flip();
+        while (b.hasRemaining()) ch.write(b);
+        track(key, kind, HEADER + KEY + payload.length);
+        return offset;
+    }
+
+    /** The payload of the record at {@code offset}; fails if it is not a valid record. */
+    synchronized ByteBuffer read(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(header, offset);
+        int len = header.getInt(0);
+        if (len < KEY || offset + HEADER + len > ch.size()) throw new IOException("No record at " + offset);
+        ByteBuffer body = ByteBuffer.allocate(len);
+        readFully(body, offset + HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        if ((int) crc.getValue() != header.getInt(4)) throw new IOException("Corrupt record at " + offset);
+        body.position(KEY);
+        return body.slice();
+    }
+
+    private void readFully(ByteBuffer b, long at) throws IOException {
+        while (b.hasRemaining()) {
+            if (ch.read(b, at + b.position()) < 0) throw new IOException("Unexpected end of " + file);
+        }
+    }
+
+    synchronized void sync() throws IOException {
+        ch.force(false);
+    }
+
+    synchronized long size() throws IOException {
+        return ch.size();
+    }
+
+    /** True once dead records make up more than half of a file of at least {@code minBytes}. */
+    synchronized boolean needsCompaction(long minBytes) throws IOException {
+        long size = size();
+        return size >= minBytes && size > 2 * liveBytes;
+    }
+
+    /**
+     * Rewrites the log with only the latest live record per key. Appends are
+     * blocked only while the records written during compaction are copied over.
+     */
+    void compact() throws IOException {
+        synchronized (compactionLock) {
+            long cut = size();
+            List<long[]> keep = new ArrayList<>();
+            Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                Map<Long, long[]> last = new HashMap<>();
+                scan(cut, (key, kind, payload, offset, length) -> {
+                    if (kind == TOMBSTONE) last.remove(key);
+                    else last.put(key, new long[]{offset, length});
+                });
+                keep.addAll(last.values());
+                keep.sort((a, b) -> Long.compare(a[0], b[0]));
+                for (long[] r : keep) {
+                    for (long pos = r[0], end = r[0] + r[1]; pos < end; ) {
+                        pos += ch.transferTo(pos, end - pos, out);
+                    }
+                }
+                synchronized (this) {
+                    long end = ch.size();
+                    for (long pos = cut; pos < end; ) {
+                        pos += ch.transferTo(pos, end - pos, out);
+                    }
+                    out.force(false);
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    ch.close();
+                    ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    ch.position(ch.size());
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        ch.force(false);
+        ch.close();
+    }
+
+    // ---- payload helpers ----
+
+    /** Length-prefixed UTF-8; null is written as length -1. */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readString(ByteBuffer in) {
+        int len = in.getInt();
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private interface Scan {
+        void record(long key, byte kind, ByteBuffer payload, long offset, int length);
+    }
+
+    /** Scans the first {@code size} bytes; returns the offset just past the last valid record. */
+    private long scan(long size, Scan s) throws IOException {
+        CRC32 crc = new CRC32();
+        long end = 0;
+        long window = WINDOW;
+        while (size - end >= HEADER) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, end, Math.min(size - end, window));
+            window = WINDOW;
+            int at = 0;
+            while (buf.limit() - at >= HEADER) {
+                int len = buf.getInt(at);
+                int sum = buf.getInt(at + 4);
+                if (len < KEY || len > Integer.MAX_VALUE - HEADER || len > size - end - at - HEADER) return end + at;
+                if (len > buf.limit() - at - HEADER) {
+                    // Runs past this window: the next one starts with it, large enough to hold it
+                    if (at == 0) window = HEADER + (long) len;
+                    break;
+                }
+                ByteBuffer body = buf.duplicate();
+                body.limit(at + HEADER + len).position(at + HEADER);
+                body = body.slice();
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != sum) return end + at;
+                long key = body.getLong();
+                byte kind = body.get();
+                s.record(key, kind, body.slice(), end + at, HEADER + len);
+                at += HEADER + len;
+            }
+            end += at;
+        }
+        return end;
+    }
+}
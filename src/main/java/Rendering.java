@@ -0,0 +1,230 @@
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardRow;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiValidationException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the bot's messages are made of, prepared ahead of the send.
+ *
+ * The menus never change, so each is built, validated and serialised to JSON
+ * once; a {@link Keyboard} writes that JSON verbatim wherever the Bot API
+ * client serialises a reply markup. The Google Docs keyboard differs only in
+ * its URL, which is spliced into a serialised template.
+ *
+ * {@link #split} cuts article text into a caption and messages within the
+ * Bot API limits, preferring paragraph, line, sentence and word boundaries and
+ * never separating a surrogate pair.
+ */
+final class Rendering {
+
+    /** Bot API limits, in UTF-16 code units. */
+    static final int CAPTION_MAX = 1024;
+    static final int MESSAGE_MAX = 4096;
+
+    // Only used to render the keyboards; the Bot API client has its own
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String URL_MARK = "\u0001";
+
+    /**
+     * A reply markup serialised in advance: {@code head}, then {@code url} as
+     * a JSON string if there is one, then {@code tail}.
+     */
+    static final class Keyboard implements ReplyKeyboard, JsonSerializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String head;
+        private final String url;
+        private final String tail;
+
+        private Keyboard(String head, String url, String tail) {
+            this.head = head;
+            this.url = url;
+            this.tail = tail;
+        }
+
+        static Keyboard of(ReplyKeyboard markup) {
+            try {
+                markup.validate();
+                return new Keyboard(JSON.writeValueAsString(markup), null, "");
+            } catch (TelegramApiValidationException | JsonProcessingException e) {
+                throw new IllegalArgumentException("Некорректная клавиатура", e);
+            }
+        }
+
+        String json() {
+            if (url == null) return head + tail;
+            return head + '"' + new String(JsonStringEncoder.getInstance().quoteAsString(url)) + '"' + tail;
+        }
+
+        // Validated when rendered
+        @Override
+        public void validate() {
+        }
+
+        @Override
+        public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeRawValue(head);
+            if (url == null) return;
+            // Straight into the generator's buffer rather than through a spliced copy of the whole keyboard
+            gen.writeRaw('"');
+            char[] quoted = JsonStringEncoder.getInstance().quoteAsString(url);
+            gen.writeRaw(quoted, 0, quoted.length);
+            gen.writeRaw('"');
+            gen.writeRaw(tail);
+        }
+
+        @Override
+        public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+                throws IOException {
+            serialize(gen, serializers);
+        }
+
+        @Override
+        public String toString() {
+            return json();
+        }
+    }
+
+    static final Keyboard MAIN_MENU = Keyboard.of(mainMenu());
+    static final Keyboard PLATFORMS = Keyboard.of(platforms());
+    static final Keyboard ACTIONS = Keyboard.of(actions());
+    static final Keyboard ARTICLE = Keyboard.of(article());
+    static final Keyboard BACK = Keyboard.of(new InlineKeyboardMarkup(
+            Collections.singletonList(Collections.singletonList(button("🔙 Назад", "BACK")))));
+
+    // The Google Docs keyboard around its URL string, quotes included
+    private static final String[] DOCUMENT = documentTemplate();
+
+    private Rendering() {}
+
+    /** The keyboard under a site article, with a link to its document at {@code url}. */
+    static Keyboard document(String url) {
+        return new Keyboard(DOCUMENT[0], url, DOCUMENT[1]);
+    }
+
+    static ReplyKeyboardMarkup mainMenu() {
+        ReplyKeyboardMarkup kb = new ReplyKeyboardMarkup();
+        kb.setResizeKeyboard(true);
+        kb.setOneTimeKeyboard(false);
+        KeyboardRow row = new KeyboardRow();
+        row.add(new KeyboardButton("Главное меню"));
+        List<KeyboardRow> rows = new ArrayList<>();
+        rows.add(row);
+        kb.setKeyboard(rows);
+        return kb;
+    }
+
+    static InlineKeyboardMarkup platforms() {
+        return new InlineKeyboardMarkup(
+                Arrays.asList(
+                        Collections.singletonList(button("📱 Telegram", "CH_TG")),
+                        Collections.singletonList(button("🌐 Сайт", "CH_SITE"))
+                )
+        );
+    }
+
+    static InlineKeyboardMarkup actions() {
+        return new InlineKeyboardMarkup(
+                Arrays.asList(
+                        Collections.singletonList(button("📝 Генерировать", "ACT_GEN")),
+                        Collections.singletonList(button("✍️ Переписать", "ACT_REWRITE"))
+                )
+        );
+    }
+
+    static InlineKeyboardMarkup article() {
+        return new InlineKeyboardMarkup(
+                Arrays.asList(
+                        Collections.singletonList(button("✍️ Переписать", "REREWRITE")),
+                        Collections.singletonList(button("🚀 Запостить", "PUBLISH_TG"))
+                )
+        );
+    }
+
+    static InlineKeyboardMarkup documentMarkup(String url) {
+        InlineKeyboardButton view = new InlineKeyboardButton("👀 Посмотреть");
+        view.setUrl(url);
+        return new InlineKeyboardMarkup(
+                Arrays.asList(
+                        Collections.singletonList(view),
+                        Arrays.asList(button("✍️ Переписать", "REREWRITE"), button("🚀 Запостить", "PUBLISH_ZEN"))
+                )
+        );
+    }
+
+    private static InlineKeyboardButton button(String label, String data) {
+        InlineKeyboardButton button = new InlineKeyboardButton(label);
+        button.setCallbackData(data);
+        return button;
+    }
+
+    private static String[] documentTemplate() {
+        String json = Keyboard.of(documentMarkup(URL_MARK)).json();
+        String quoted = "\"" + new String(JsonStringEncoder.getInstance().quoteAsString(URL_MARK)) + "\"";
+        int at = json.indexOf(quoted);
+        return new String[]{json.substring(0, at), json.substring(at + quoted.length())};
+    }
+
+    /**
+     * {@code text} in parts: the first at most {@code first} long, the others
+     * at most {@code rest}. Whitespace at the cuts is dropped; text that fits
+     * comes back as the only part, unchanged. There is always at least one part.
+     */
+    static List<String> split(String text, int first, int rest) {
+        if (text.length() <= first) return Collections.singletonList(text);
+        List<String> parts = new ArrayList<>(2 + (text.length() - first) / rest);
+        int n = text.length();
+        int from = 0;
+        // So the first part isn't blank and the caption limit applies to real text
+        while (from < n && Character.isWhitespace(text.charAt(from))) from++;
+        int max = first;
+        while (from < n) {
+            int end = n - from <= max ? n : cut(text, from, from + max);
+            int last = end;
+            while (last > from && Character.isWhitespace(text.charAt(last - 1))) last--;
+            if (last > from) parts.add(text.substring(from, last));
+            from = end;
+            while (from < n && Character.isWhitespace(text.charAt(from))) from++;
+            max = rest;
+        }
+        // Nothing but whitespace: one part within the limit, for the Bot API to refuse as empty
+        if (parts.isEmpty()) parts.add(text.substring(0, first));
+        return parts;
+    }
+
+    /** Where to end a part starting at {@code from} that may not reach past {@code limit}. */
+    private static int cut(String s, int from, int limit) {
+        // Closer than halfway the part would be wastefully short
+        int min = from + (limit - from) / 2;
+        int at = s.lastIndexOf("\n\n", limit - 2);
+        if (at >= min) return at;
+        at = s.lastIndexOf('\n', limit - 1);
+        if (at >= min) return at;
+        int space = -1;
+        for (int i = limit - 1; i > min; i--) {
+            if (!Character.isWhitespace(s.charAt(i))) continue;
+            char c = s.charAt(i - 1);
+            if (c == '.' || c == '!' || c == '?' || c == '…') return i;
+            if (space < 0) space = i;
+        }
+        if (space >= 0) return space;
+        // One long word: cut it, but not inside a surrogate pair
+        return Character.isHighSurrogate(s.charAt(limit - 1)) ? limit - 1 : limit;
+    }
+}
@@ -0,0 +1,382 @@
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiValidationException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Single gate for everything the bot sends to Telegram.
+ *
+ * Calls are queued per chat and released through token buckets: one global
+ * (Bot API ~30 msg/s), one per private chat (~1 msg/s) and one per channel
+ * (~20 msg/min). Each chat has at most one call in flight, so per-chat order
+ * is kept even across retries. A 429 pauses the chat for {@code retry_after};
+ * network errors and 5xx are retried with exponential backoff; anything that
+ * still fails is logged and counted as dropped instead of vanishing.
+ *
+ * The time from {@link #submit} to delivery goes to the
+ * {@code telegram_delivery} latency histogram.
+ */
+final class SendQueue {
+
+    interface Call<T> {
+        T call() throws TelegramApiException;
+    }
+
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long BASE_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int BURST = 3;
+
+    private final TokenBucket global;
+    private final double chatPerSecond;
+    private final double channelPerSecond;
+    private final int capacity;
+    private final Metrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final LinkedHashMap<String, Lane> lanes = new LinkedHashMap<>();
+    private final ExecutorService senders;
+    private final Thread scheduler;
+    private int depth;
+    private boolean running = true;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+
+    SendQueue(int globalPerSecond, double chatPerSecond, int channelPerMinute, int senderThreads, int capacity,
+              Metrics metrics) {
+        this.global = new TokenBucket(globalPerSecond, globalPerSecond);
+        this.chatPerSecond = chatPerSecond;
+        this.channelPerSecond = channelPerMinute / 60.0;
+        this.capacity = capacity;
+        this.metrics = metrics;
+        AtomicInteger seq = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(senderThreads, r -> {
+            Thread t = new Thread(r, "telegram-sender-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler = new Thread(this::schedule, "telegram-scheduler");
+        this.scheduler.setDaemon(true);
+        this.scheduler.start();
+    }
+
+    /**
+     * Queues {@code call} behind everything already queued for {@code chatId}.
+     * {@code channel} selects the stricter channel/group rate limit.
+     */
+    <T> CompletableFuture<T> submit(String chatId, boolean channel, Call<T> call) {
+        Job<T> job = new Job<>(call);
+        lock.lock();
+        try {
+            if (!running || depth >= capacity) {
+                dropped.increment();
+                Log.warn("Telegram: очередь отправки переполнена, сообщение отброшено", "chat", chatId);
+                job.future.completeExceptionally(new RejectedExecutionException("send queue full"));
+                return job.future;
+            }
+            lane(chatId, channel).jobs.add(job);
+            depth++;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return job.future;
+    }
+
+    /**
+     * Queues {@code calls} back to back, so nothing else for {@code chatId}
+     * goes out between them. Either all of them are queued or none.
+     */
+    <T> List<CompletableFuture<T>> submitAll(String chatId, boolean channel, List<Call<T>> calls) {
+        List<Job<T>> jobs = new ArrayList<>(calls.size());
+        List<CompletableFuture<T>> futures = new ArrayList<>(calls.size());
+        for (Call<T> call : calls) {
+            Job<T> job = new Job<>(call);
+            jobs.add(job);
+            futures.add(job.future);
+        }
+        lock.lock();
+        try {
+            if (!running || depth + jobs.size() > capacity) {
+                dropped.add(jobs.size());
+                Log.warn("Telegram: очередь отправки переполнена, сообщение отброшено", "chat", chatId,
+                        "messages", jobs.size());
+                for (Job<T> job : jobs) {
+                    job.future.completeExceptionally(new RejectedExecutionException("send queue full"));
+                }
+                return futures;
+            }
+            lane(chatId, channel).jobs.addAll(jobs);
+            depth += jobs.size();
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return futures;
+    }
+
+    // Caller holds the lock
+    private Lane lane(String chatId, boolean channel) {
+        Lane lane = lanes.get(chatId);
+        if (lane == null) {
+            double rate = channel ? channelPerSecond : chatPerSecond;
+            lane = new Lane(chatId, new TokenBucket(BURST, rate));
+            lanes.put(chatId, lane);
+        }
+        return lane;
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long sent() { return sent.sum(); }
+    long dropped() { return dropped.sum(); }
+    long retried() { return retried.sum(); }
+
+    /** Stops accepting calls once everything queued has been sent, or the timeout passes. */
+    boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (depth > 0) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) break;
+                changed.awaitNanos(left);
+            }
+            running = false;
+            changed.signalAll();
+            return depth == 0;
+        } finally {
+            lock.unlock();
+            senders.shutdown();
+        }
+    }
+
+    // ---- scheduling ----
+
+    private void schedule() {
+        lock.lock();
+        try {
+            while (running) {
+                long wait = dispatchReady(System.nanoTime());
+                if (wait == Long.MAX_VALUE) changed.await();
+                else changed.awaitNanos(wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Starts every call that may go out now; returns nanos until the next one might. */
+    private long dispatchReady(long now) {
+        long wait = Long.MAX_VALUE;
+        List<Lane> started = new ArrayList<>();
+        for (Iterator<Lane> it = lanes.values().iterator(); it.hasNext(); ) {
+            Lane lane = it.next();
+            if (lane.inFlight) continue;
+            if (lane.jobs.isEmpty()) {
+                // Keep the lane while its bucket still remembers recent sends
+                if (lane.notBefore <= now && lane.bucket.full(now)) it.remove();
+                continue;
+            }
+            if (lane.notBefore > now) {
+                wait = Math.min(wait, lane.notBefore - now);
+                continue;
+            }
+            long d = lane.bucket.delay(now);
+            if (d > 0) {
+                wait = Math.min(wait, d);
+                continue;
+            }
+            long g = global.delay(now);
+            if (g > 0) {
+                wait = Math.min(wait, g);
+                break;
+            }
+            lane.bucket.take(now);
+            global.take(now);
+            lane.inFlight = true;
+            Job<?> job = lane.jobs.peek();
+            senders.execute(() -> run(lane, job));
+            started.add(lane);
+        }
+        // Round robin: chats that just sent go to the back of the line
+        for (Lane lane : started) {
+            lanes.remove(lane.chatId);
+            lanes.put(lane.chatId, lane);
+        }
+        return wait;
+    }
+
+    private <T> void run(Lane lane, Job<T> job) {
+        T result = null;
+        Throwable failure = null;
+        long t0 = System.nanoTime();
+        try {
+            result = job.call.call();
+            metrics.record("telegram", t0, Metrics.Outcome.SUCCESS);
+        } catch (Throwable e) {
+            // Errors too: the lane must not stay in flight and the caller must not wait forever
+            failure = e;
+            metrics.record("telegram", t0, Metrics.outcomeOf(e));
+        }
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            lane.inFlight = false;
+            job.attempts++;
+            if (failure == null) {
+                finish(lane);
+                sent.increment();
+                // From submit to delivery, queueing and retries included; "telegram" is the HTTP call alone
+                metrics.latency("telegram_delivery").record(now - job.enqueued);
+                job.future.complete(result);
+            } else {
+                long retryIn = failure instanceof Exception ? retryDelay((Exception) failure, job.attempts) : -1;
+                if (retryIn >= 0 && job.attempts < MAX_ATTEMPTS) {
+                    retried.increment();
+                    lane.notBefore = now + retryIn;
+                } else {
+                    finish(lane);
+                    dropped.increment();
+                    Log.warn("Telegram: сообщение не отправлено", "chat", lane.chatId,
+                            "attempts", job.attempts, "error", describe(failure));
+                    job.future.completeExceptionally(failure);
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (failure instanceof Error) throw (Error) failure;
+    }
+
+    private void finish(Lane lane) {
+        lane.jobs.poll();
+        depth--;
+    }
+
+    /**
+     * Whether {@code e}, or the failure it wraps, is one that trying again
+     * later won't fix: a 4xx other than 429, an invalid request, a bug. A full
+     * queue is not.
+     */
+    static boolean permanent(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof RejectedExecutionException) return false;
+        return !(e instanceof Exception) || retryDelay((Exception) e, 1) < 0;
+    }
+
+    /** Nanos to wait before retrying, or -1 if the error is permanent. */
+    private static long retryDelay(Exception e, int attempts) {
+        if (e instanceof TelegramApiRequestException) {
+            TelegramApiRequestException re = (TelegramApiRequestException) e;
+            Integer code = re.getErrorCode();
+            if (code != null && code == 429) {
+                Integer after = re.getParameters() != null ? re.getParameters().getRetryAfter() : null;
+                return TimeUnit.SECONDS.toNanos(after != null ? after : 1);
+            }
+            if (code != null && code < 500) return -1;
+        } else if (!(e instanceof TelegramApiException) || e instanceof TelegramApiValidationException) {
+            return -1;
+        }
+        return Math.min(MAX_BACKOFF_NANOS, BASE_BACKOFF_NANOS << Math.min(attempts - 1, 10));
+    }
+
+    private static String describe(Throwable e) {
+        if (e instanceof TelegramApiRequestException) {
+            TelegramApiRequestException re = (TelegramApiRequestException) e;
+            return re.getErrorCode() + " " + re.getApiResponse();
+        }
+        return e.toString();
+    }
+
+    private static final class Job<T> {
+        final Call<T> call;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final long enqueued = System.nanoTime();
+        int attempts;
+
+        Job(Call<T> call) { this.call = call; }
+    }
+
+    private static final class Lane {
+        final String chatId;
+        final TokenBucket bucket;
+        final ArrayDeque<Job<?>> jobs = new ArrayDeque<>();
+        boolean inFlight;
+        long notBefore;
+
+        Lane(String chatId, TokenBucket bucket) {
+            this.chatId = chatId;
+            this.bucket = bucket;
+        }
+    }
+
+    /** Classic token bucket on {@link System#nanoTime()}; not thread-safe, used under the queue lock. */
+    static final class TokenBucket {
+        private final double capacity;
+        private final double perNano;
+        private double tokens;
+        private long refilled;
+
+        TokenBucket(double capacity, double perSecond) {
+            this.capacity = capacity;
+            this.perNano = perSecond / 1e9;
+            this.tokens = capacity;
+            this.refilled = System.nanoTime();
+        }
+
+        /** Nanos until a token is available, 0 if one is available now. */
+        long delay(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perNano);
+        }
+
+        boolean full(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        void take(long now) {
+            refill(now);
+            tokens -= 1;
+        }
+
+        private void refill(long now) {
+            if (now > refilled) {
+                tokens = Math.min(capacity, tokens + (now - refilled) * perNano);
+                refilled = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persists {@link SessionStore} entries to a {@link RecordLog} so a restart
+ * picks up dialogs and unpublished articles where they were left.
+ *
+ * Writes go to the page cache on the update thread; a background task
+ * fsyncs once a second and compacts the log when it grows mostly dead.
+ */
+final class SessionJournal implements Closeable {
+
+    private static final byte SESSION = 1;
+    private static final long COMPACT_MIN_BYTES = 8L << 20;
+
+    private final RecordLog log;
+    private final ScheduledExecutorService maintenance;
+
+    private SessionJournal(RecordLog log, boolean background) {
+        this.log = log;
+        if (background) {
+            maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "session-journal");
+                t.setDaemon(true);
+                return t;
+            });
+            maintenance.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.SECONDS);
+        } else {
+            maintenance = null;
+        }
+    }
+
+    static SessionJournal open(Path file) throws IOException {
+        return new SessionJournal(new RecordLog(file), true);
+    }
+
+    /** Opens without the background fsync/compaction task; used by benchmarks. */
+    static SessionJournal openManual(Path file) throws IOException {
+        return new SessionJournal(new RecordLog(file), false);
+    }
+
+    /** Loads all surviving sessions into {@code store} and returns how many were restored. */
+    int restore(SessionStore store) throws IOException {
+        // Re-inserting moves a chat to the end, so iteration follows last-write order
+        Map<Long, SessionStore.Session> restored = new LinkedHashMap<>();
+        log.replay((key, kind, payload) -> {
+            restored.remove(key);
+            if (kind == SESSION) restored.put(key, decode(payload));
+        });
+        store.restore(restored);
+        return restored.size();
+    }
+
+    /**
+     * Appends {@code s} unless an identical snapshot was already written; returns its checksum.
+     * The access timestamp is left out of the comparison so mere reads don't cause writes.
+     */
+    int write(long chat, SessionStore.Session s, int lastChecksum) {
+        byte[] data = encode(s);
+        CRC32 crc = new CRC32();
+        crc.update(data, 8, data.length - 8);
+        int checksum = (int) crc.getValue() | 1;
+        if (checksum == lastChecksum) return checksum;
+        try {
+            log.append(chat, SESSION, data);
+            return checksum;
+        } catch (IOException e) {
+            Log.error("Ошибка записи журнала сессий", e, "chat", chat);
+            return 0;
+        }
+    }
+
+    void remove(long chat) {
+        try {
+            log.append(chat, RecordLog.TOMBSTONE, new byte[0]);
+        } catch (IOException e) {
+            Log.error("Ошибка записи журнала сессий", e, "chat", chat);
+        }
+    }
+
+    void maintain() {
+        try {
+            log.sync();
+            if (log.needsCompaction(COMPACT_MIN_BYTES)) log.compact();
+        } catch (IOException e) {
+            Log.error("Ошибка обслуживания журнала сессий", e);
+        }
+    }
+
+    long sizeBytes() {
+        try {
+            return log.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (maintenance != null) maintenance.shutdown();
+        log.close();
+    }
+
+    // ---- encoding ----
+
+    static byte[] encode(SessionStore.Session s) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(s.lastAccess);
+            out.writeBoolean(s.greeted);
+            TelegramArticleBot.UserState st = s.state;
+            out.writeBoolean(st != null);
+            if (st != null) {
+                out.writeByte(st.channel == null ? -1 : st.channel.ordinal());
+                out.writeByte(st.action == null ? -1 : st.action.ordinal());
+                RecordLog.writeString(out, st.topic);
+                RecordLog.writeString(out, st.description);
+                out.writeBoolean(st.awaitingOriginal);
+                out.writeBoolean(st.awaitingFeedback);
+                RecordLog.writeString(out, st.originalText);
+                RecordLog.writeString(out, st.zenDocumentId);
+            }
+            TelegramArticleBot.ArticleResult ar = s.result;
+            out.writeBoolean(ar != null);
+            if (ar != null) {
+                RecordLog.writeString(out, ar.text);
+                RecordLog.writeString(out, ar.picture);
+                RecordLog.writeString(out, ar.zenDocumentId);
+            }
+            // Appended last so records written before it existed still decode
+            RecordLog.writeString(out, st == null ? null : st.originalVersion);
+            out.writeLong(ar == null ? 0 : ar.archiveId);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static SessionStore.Session decode(ByteBuffer in) {
+        SessionStore.Session s = new SessionStore.Session();
+        s.lastAccess = in.getLong();
+        s.greeted = in.get() != 0;
+        if (in.get() != 0) {
+            TelegramArticleBot.UserState st = new TelegramArticleBot.UserState();
+            byte ch = in.get();
+            byte act = in.get();
+            st.channel = ch < 0 ? null : TelegramArticleBot.ChannelType.values()[ch];
+            st.action = act < 0 ? null : TelegramArticleBot.ActionType.values()[act];
+            st.topic = RecordLog.readString(in);
+            st.description = RecordLog.readString(in);
+            st.awaitingOriginal = in.get() != 0;
+            st.awaitingFeedback = in.get() != 0;
+            st.originalText = RecordLog.readString(in);
+            st.zenDocumentId = RecordLog.readString(in);
+            s.state = st;
+        }
+        if (in.get() != 0) {
+            String text = RecordLog.readString(in);
+            String picture = RecordLog.readString(in);
+            TelegramArticleBot.ArticleResult ar = new TelegramArticleBot.ArticleResult(text, picture);
+            ar.zenDocumentId = RecordLog.readString(in);
+            s.result = ar;
+        }
+        if (in.hasRemaining()) {
+            String version = RecordLog.readString(in);
+            if (s.state != null) s.state.originalVersion = version;
+        }
+        if (in.remaining() >= 8) {
+            long archiveId = in.getLong();
+            if (s.result != null) s.result.archiveId = archiveId;
+        }
+        return s;
+    }
+}
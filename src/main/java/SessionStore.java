@@ -0,0 +1,214 @@
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-chat dialog state ({@link TelegramArticleBot.UserState}) and the last
+ * generated article, bounded by idle TTL and entry count.
+ *
+ * Entries are kept in access order, so idle ones sit at the head and are
+ * dropped lazily on every access; no background thread is needed. With a
+ * {@link SessionJournal} attached, {@link #commit} persists a chat's session
+ * and every removal is journaled as well.
+ */
+final class SessionStore {
+
+    static final class Session {
+        TelegramArticleBot.UserState state;
+        TelegramArticleBot.ArticleResult result;
+        boolean greeted;
+        long lastAccess;
+        // Checksum of the last journaled snapshot, 0 if never written
+        int journaled;
+    }
+
+    // Rough per-entry overhead: map node, boxed key, Session, UserState, ArticleResult
+    private static final int ENTRY_OVERHEAD = 48 + 16 + 32 + 56 + 40;
+
+    private final long ttlMillis;
+    private final int maxSize;
+    private final LinkedHashMap<Long, Session> sessions = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private SessionJournal journal;
+
+    SessionStore(long ttlMillis, int maxSize) {
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+    }
+
+    synchronized TelegramArticleBot.UserState state(long chat) {
+        Session s = lookup(chat);
+        return count(s == null ? null : s.state);
+    }
+
+    synchronized TelegramArticleBot.ArticleResult result(long chat) {
+        Session s = lookup(chat);
+        return count(s == null ? null : s.result);
+    }
+
+    synchronized void putState(long chat, TelegramArticleBot.UserState state) {
+        session(chat).state = state;
+    }
+
+    synchronized void putResult(long chat, TelegramArticleBot.ArticleResult result) {
+        session(chat).result = result;
+    }
+
+    synchronized void clearState(long chat) {
+        Session s = lookup(chat);
+        if (s != null) s.state = null;
+    }
+
+    synchronized boolean isGreeted(long chat) {
+        Session s = lookup(chat);
+        return s != null && s.greeted;
+    }
+
+    synchronized void markGreeted(long chat) {
+        session(chat).greeted = true;
+    }
+
+    synchronized void reset(long chat) {
+        dropped(chat, sessions.remove(chat));
+    }
+
+    synchronized void attach(SessionJournal journal) {
+        this.journal = journal;
+    }
+
+    /** Journals the chat's session if it changed since the last commit. */
+    synchronized void commit(long chat) {
+        if (journal == null) return;
+        Session s = sessions.get(chat);
+        if (s != null) s.journaled = journal.write(chat, s, s.journaled);
+    }
+
+    /** Removes and returns the chat's session so it can be handed to another worker process. */
+    synchronized Session take(long chat) {
+        Session s = sessions.remove(chat);
+        dropped(chat, s);
+        return s;
+    }
+
+    /** Installs a session handed over by another worker process and journals it. */
+    synchronized void adopt(long chat, Session s) {
+        s.journaled = 0;
+        s.lastAccess = System.currentTimeMillis();
+        sessions.put(chat, s);
+        commit(chat);
+    }
+
+    synchronized long[] chats() {
+        long[] ids = new long[sessions.size()];
+        int i = 0;
+        for (long chat : sessions.keySet()) ids[i++] = chat;
+        return ids;
+    }
+
+    /** Bulk-loads sessions recovered from the journal; expects them least recently used first. */
+    synchronized void restore(Map<Long, Session> restored) {
+        for (Map.Entry<Long, Session> e : restored.entrySet()) {
+            e.getValue().journaled = 1;
+            sessions.put(e.getKey(), e.getValue());
+        }
+    }
+
+    /** Ids of the article versions that live sessions are waiting to rewrite. */
+    synchronized Set<String> versions() {
+        expire(System.currentTimeMillis());
+        Set<String> ids = new HashSet<>();
+        for (Session s : sessions.values()) {
+            if (s.state != null && s.state.originalVersion != null) ids.add(s.state.originalVersion);
+        }
+        return ids;
+    }
+
+    /** Drops idle sessions; also happens implicitly on every access. */
+    synchronized void evictExpired() {
+        expire(System.currentTimeMillis());
+    }
+
+    synchronized int size() {
+        return sessions.size();
+    }
+
+    /** Approximate heap held by all sessions, dominated by article text. */
+    synchronized long estimatedBytes() {
+        long total = 0;
+        for (Session s : sessions.values()) {
+            total += ENTRY_OVERHEAD;
+            TelegramArticleBot.UserState st = s.state;
+            if (st != null) {
+                total += sizeOf(st.topic) + sizeOf(st.description)
+                        + sizeOf(st.originalText) + sizeOf(st.originalVersion) + sizeOf(st.zenDocumentId);
+            }
+            TelegramArticleBot.ArticleResult ar = s.result;
+            if (ar != null) {
+                total += sizeOf(ar.text) + sizeOf(ar.picture) + sizeOf(ar.zenDocumentId);
+            }
+        }
+        return total;
+    }
+
+    long hits() { return hits.sum(); }
+    long misses() { return misses.sum(); }
+    long evictions() { return evictions.sum(); }
+
+    private Session lookup(long chat) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Session s = sessions.get(chat);
+        if (s != null) s.lastAccess = now;
+        return s;
+    }
+
+    private Session session(long chat) {
+        Session s = lookup(chat);
+        if (s == null) {
+            s = new Session();
+            s.lastAccess = System.currentTimeMillis();
+            sessions.put(chat, s);
+            while (sessions.size() > maxSize) {
+                Iterator<Map.Entry<Long, Session>> it = sessions.entrySet().iterator();
+                Map.Entry<Long, Session> eldest = it.next();
+                it.remove();
+                evictions.increment();
+                dropped(eldest.getKey(), eldest.getValue());
+            }
+        }
+        return s;
+    }
+
+    private void expire(long now) {
+        if (ttlMillis <= 0) return;
+        Iterator<Map.Entry<Long, Session>> it = sessions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Session> e = it.next();
+            if (now - e.getValue().lastAccess < ttlMillis) break;
+            it.remove();
+            evictions.increment();
+            dropped(e.getKey(), e.getValue());
+        }
+    }
+
+    private void dropped(long chat, Session s) {
+        if (journal != null && s != null && s.journaled != 0) journal.remove(chat);
+    }
+
+    private <T> T count(T value) {
+        if (value != null) hits.increment();
+        else misses.increment();
+        return value;
+    }
+
+    private static long sizeOf(String s) {
+        // String header + backing array; Cyrillic text is stored as UTF-16
+        return s == null ? 0 : 40 + 2L * s.length();
+    }
+}
@@ -1,30 +1,50 @@
 import okhttp3.*;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.meta.api.methods.GetFile;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
 import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.DeleteMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.*;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardButton;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardRow;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.meta.generics.BotSession;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.net.URI;
 import java.net.URL;
-import java.time.Instant;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
 
 public class TelegramArticleBot extends TelegramLongPollingBot {
     // =============== CONFIG ================
     private static final String BOT_TOKEN = System.getenv("BOT_TOKEN");
     private static final String BOT_USERNAME = System.getenv("BOT_USERNAME");
+    // One or more n8n webhooks, comma-separated; calls go to the least busy healthy one
     private static final String N8N_WEBHOOK_URL = System.getenv("N8N_WEBHOOK_URL");
     private static final String CHANNEL_ID = System.getenv("CHANNEL_ID");
     private static final String GOOGLE_DOCS_URL_PREFIX = "https://docs.google.com/document/d/";
@@ -32,94 +52,282 @@ public class TelegramArticleBot extends TelegramLongPollingBot {
     private static final String BASEROW_TOKEN = System.getenv("BASEROW_TOKEN");
     private static final String IMGBB_API_KEY = System.getenv("IMGBB_API_KEY");
     private static final String IMGBB_UPLOAD_URL = System.getenv("IMGBB_UPLOAD_URL");
+    // Bot API base the token is appended to, e.g. http://127.0.0.1:8081/bot for a local stand-in
+    private static final String TELEGRAM_API_URL = System.getenv("TELEGRAM_API_URL");
+    private static final String BASEROW_BATCH_URL = System.getenv("BASEROW_BATCH_URL");
+    private static final String BASEROW_IDEMPOTENCY_FIELD = System.getenv("BASEROW_IDEMPOTENCY_FIELD");
+    private static final int UPDATE_WORKERS = envInt("UPDATE_WORKERS", 16);
+    private static final int SESSION_TTL_MINUTES = envInt("SESSION_TTL_MINUTES", 24 * 60);
+    private static final int SESSION_MAX = envInt("SESSION_MAX", 10_000);
+    private static final String DATA_DIR = envOr("DATA_DIR", "data");
+    private static final int TG_GLOBAL_PER_SEC = envInt("TG_GLOBAL_PER_SEC", 30);
+    private static final int TG_CHAT_PER_SEC = envInt("TG_CHAT_PER_SEC", 1);
+    private static final int TG_CHANNEL_PER_MIN = envInt("TG_CHANNEL_PER_MIN", 20);
+    private static final int GEN_CACHE_TTL_MINUTES = envInt("GEN_CACHE_TTL_MINUTES", 10);
+    private static final int GEN_CACHE_MAX = envInt("GEN_CACHE_MAX", 200);
+    // Ask n8n for NDJSON/SSE and show the article in the placeholder message while it is written
+    private static final boolean N8N_STREAM = Boolean.parseBoolean(envOr("N8N_STREAM", "false"));
+    private static final int N8N_STREAM_EDIT_MS = envInt("N8N_STREAM_EDIT_MS", 1500);
+    // Duplicate a slow n8n call on another endpoint: "off", "p95" (observed) or a delay in ms;
+    // at most N8N_HEDGE_BUDGET_PERCENT of calls are hedged
+    private static final String N8N_HEDGE = envOr("N8N_HEDGE", "off");
+    private static final int N8N_HEDGE_BUDGET_PERCENT = envInt("N8N_HEDGE_BUDGET_PERCENT", 10);
+    private static final int N8N_EJECT_MS = envInt("N8N_EJECT_MS", 30_000);
+    // Rewrites name the article by version id and send its text only if n8n doesn't have it
+    // (the workflow must keep versions and answer 409 for unknown ones). Opt-in: bodies of at least
+    // N8N_GZIP_MIN_BYTES are gzip-compressed; set it only if n8n or a proxy in front of it inflates them
+    private static final boolean N8N_VERSION_REFS = Boolean.parseBoolean(envOr("N8N_VERSION_REFS", "false"));
+    private static final int N8N_GZIP_MIN_BYTES = envInt("N8N_GZIP_MIN_BYTES", 0);
+    // Interactive generations and rewrites running at once, and how many may wait before new ones are refused
+    private static final int GENERATION_CONCURRENCY = envInt("GENERATION_CONCURRENCY", 16);
+    private static final int GENERATION_QUEUE = envInt("GENERATION_QUEUE", 100);
+    // On SIGTERM: how long accepted generations, publications and replies get to finish
+    private static final int SHUTDOWN_GRACE_SECONDS = envInt("SHUTDOWN_GRACE_SECONDS", 25);
+    // /batch: n8n calls running at once for all batches together, and topics per batch
+    private static final int BATCH_CONCURRENCY = envInt("BATCH_CONCURRENCY", 3);
+    private static final int BATCH_MAX = envInt("BATCH_MAX", 50);
+    private static final int BATCH_FILE_MAX_BYTES = 256 * 1024;
+    // Telegram allows about 100 buttons per keyboard; three per item
+    private static final int BATCH_ITEMS_PER_LIST = 25;
+    // Articles listed by /history and /search
+    private static final int ARCHIVE_LIST_MAX = 10;
+    // Disk space for cached article pictures under DATA_DIR/media
+    private static final int MEDIA_CACHE_MB = envInt("MEDIA_CACHE_MB", 256);
+    // Disk space for the texts of articles under review under DATA_DIR/versions
+    private static final int VERSIONS_MB = envInt("VERSIONS_MB", 64);
+    // Webhook mode when WEBHOOK_URL (the public URL Telegram posts to) is set, long polling otherwise
+    private static final String WEBHOOK_URL = System.getenv("WEBHOOK_URL");
+    private static final String WEBHOOK_HOST = envOr("WEBHOOK_HOST", "0.0.0.0");
+    private static final int WEBHOOK_PORT = envInt("WEBHOOK_PORT", 8443);
+    private static final String WEBHOOK_SECRET = System.getenv("WEBHOOK_SECRET");
+    private static final String WEBHOOK_KEYSTORE = System.getenv("WEBHOOK_KEYSTORE");
+    private static final String WEBHOOK_KEYSTORE_PASSWORD = System.getenv("WEBHOOK_KEYSTORE_PASSWORD");
+    private static final int WEBHOOK_QUEUE = envInt("WEBHOOK_QUEUE", 1000);
+    // Updates waiting in the dispatcher above which webhook deliveries get 503 and are redelivered later
+    private static final int WEBHOOK_BACKLOG = envInt("WEBHOOK_BACKLOG", 1000);
+
+    static {
+        Log.redact(BOT_TOKEN, BASEROW_TOKEN, IMGBB_API_KEY, WEBHOOK_SECRET, WEBHOOK_KEYSTORE_PASSWORD);
+    }
+
+    private static final int METRICS_PORT = envInt("METRICS_PORT", 0);
+    private static final String METRICS_HOST = envOr("METRICS_HOST", "127.0.0.1");
+    // Scale-out: ROUTER_PORT runs this process as the router in front of WORKERS (comma-separated URLs);
+    // WORKER_PORT runs it as a worker that takes updates from the router at ROUTER_URL instead of Telegram
+    private static final int ROUTER_PORT = envInt("ROUTER_PORT", 0);
+    private static final String ROUTER_HOST = envOr("ROUTER_HOST", "127.0.0.1");
+    private static final String ROUTER_URL = System.getenv("ROUTER_URL");
+    private static final String WORKERS = envOr("WORKERS", "");
+    private static final int WORKER_PORT = envInt("WORKER_PORT", 0);
+    private static final String WORKER_HOST = envOr("WORKER_HOST", "127.0.0.1");
+    private static final String WORKER_URL = envOr("WORKER_URL", "http://" + WORKER_HOST + ":" + WORKER_PORT);
     // =======================================
 
-    private enum ChannelType { TG, SITE }
-    private enum ActionType { GENERATE, REWRITE }
+    enum ChannelType { TG, SITE }
+    enum ActionType { GENERATE, REWRITE }
 
-    private static class UserState {
+    static class UserState {
         ChannelType channel;
         ActionType action;
         String topic;
         String description;
         boolean awaitingOriginal;
         boolean awaitingFeedback;
+        // Site document id, or the text if it couldn't be stored as a version
         String originalText;
+        // ArticleVersions id of the text to rewrite
+        String originalVersion;
         String zenDocumentId;
     }
 
-    private static class ArticleResult {
+    static class ArticleResult {
         String text, picture;
         String zenDocumentId;
+        // ArticleArchive id, 0 if not archived
+        long archiveId;
         ArticleResult(String t, String p) { text = t; picture = p; }
         ArticleResult(String docId) { zenDocumentId = docId; }
     }
 
-    private final Map<Long, UserState> states = new HashMap<>();
-    private final Map<Long, ArticleResult> lastResults = new HashMap<>();
-    private final Set<Long> greeted = new HashSet<>();
-    private final OkHttpClient http = new OkHttpClient.Builder()
-            .callTimeout(java.time.Duration.ofMinutes(2))
-            .readTimeout(java.time.Duration.ofMinutes(2))
-            .build();
-
-    // Persistent reply keyboard
-    private final ReplyKeyboardMarkup mainMenuKeyboard;
-    {
-        mainMenuKeyboard = new ReplyKeyboardMarkup();
-        mainMenuKeyboard.setResizeKeyboard(true);
-        mainMenuKeyboard.setOneTimeKeyboard(false);
-        KeyboardRow row = new KeyboardRow();
-        row.add(new KeyboardButton("Главное меню"));
-        List<KeyboardRow> rows = new ArrayList<>();
-        rows.add(row);
-        mainMenuKeyboard.setKeyboard(rows);
-    }
-
-    private String uploadImageToImgBB(String imageUrl) throws IOException {
-        // 1. Download image
-        Request downloadRequest = new Request.Builder().url(imageUrl).build();
-        byte[] imageBytes;
-        try (Response response = http.newCall(downloadRequest).execute()) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Failed to download image: " + response.code());
-            }
-            imageBytes = response.body().bytes();
-        }
+    private final Metrics metrics = new Metrics();
+    private final SessionStore sessions =
+            new SessionStore(java.time.Duration.ofMinutes(SESSION_TTL_MINUTES).toMillis(), SESSION_MAX);
+    private final GenerationCache generations =
+            new GenerationCache(java.time.Duration.ofMinutes(GEN_CACHE_TTL_MINUTES).toMillis(), GEN_CACHE_MAX);
+    private final SessionJournal journal;
+    private final PublishOutbox outbox;
+    private final UpdateDispatcher dispatcher = new UpdateDispatcher(UPDATE_WORKERS);
+    private final SendQueue sendQueue;
+    // One client per backend: its own pool, timeouts, concurrency cap and circuit breaker
+    private final HttpBackend n8n = new HttpBackend("n8n",
+            new HttpBackend.Settings(10_000, 120_000, 150_000, 32, 30_000).fromEnv("N8N_HTTP"), metrics);
+    private final HttpBackend imageDownload = new HttpBackend("image_download",
+            new HttpBackend.Settings(5_000, 20_000, 30_000, 8, 30_000).fromEnv("IMAGE_HTTP"), metrics);
+    private final HttpBackend imgbb = new HttpBackend("imgbb",
+            new HttpBackend.Settings(5_000, 30_000, 45_000, 4, 60_000).fromEnv("IMGBB_HTTP"), metrics);
+    private final HttpBackend baserow = new HttpBackend("baserow",
+            new HttpBackend.Settings(5_000, 15_000, 30_000, 4, 30_000).fromEnv("BASEROW_HTTP"), metrics);
+    private final N8nBalancer n8nEndpoints = new N8nBalancer(N8N_WEBHOOK_URL, n8n, metrics, "n8n",
+            N8N_HEDGE, N8N_HEDGE_BUDGET_PERCENT, N8N_EJECT_MS);
+    private WebhookServer webhook;
+    private final MediaCache media;
+    private final ArticleVersions versions;
+    private final ArticleArchive archive;
+    private final ImagePipeline images;
+    private final BatchGeneration batches = new BatchGeneration(BATCH_CONCURRENCY, BATCH_MAX,
+            java.time.Duration.ofMinutes(SESSION_TTL_MINUTES).toMillis(), SESSION_MAX);
+    private final GenerationQueue generationQueue = new GenerationQueue(GENERATION_CONCURRENCY, GENERATION_QUEUE);
+    private final Lifecycle lifecycle = new Lifecycle(SHUTDOWN_GRACE_SECONDS * 1000L);
 
-        // 2. Upload to ImgBB
-        RequestBody requestBody = new MultipartBody.Builder()
-                .setType(MultipartBody.FORM)
-                .addFormDataPart("key", IMGBB_API_KEY)
-                .addFormDataPart("image", "image.jpg",
-                        RequestBody.create(imageBytes, MediaType.parse("image/jpeg")))
-                .build();
+    public TelegramArticleBot() throws IOException {
+        this(botOptions(), Paths.get(DATA_DIR), TG_GLOBAL_PER_SEC, TG_CHAT_PER_SEC, TG_CHANNEL_PER_MIN);
+    }
 
-        Request uploadRequest = new Request.Builder()
-                .url(IMGBB_UPLOAD_URL)
-                .post(requestBody)
-                .build();
+    // Benchmarks run the bot against a scratch directory with the rate limits lifted
+    TelegramArticleBot(DefaultBotOptions options, Path dataDir, int tgGlobalPerSec, double tgChatPerSec,
+                       int tgChannelPerMin) throws IOException {
+        super(options);
+        sendQueue = new SendQueue(tgGlobalPerSec, tgChatPerSec, tgChannelPerMin, 8, 10_000, metrics);
 
-        try (Response response = http.newCall(uploadRequest).execute()) {
-            String jsonResponse = response.body().string();
-            JSONObject json = new JSONObject(jsonResponse);
+        // Restore sessions before any update can arrive
+        long t0 = System.nanoTime();
+        journal = SessionJournal.open(dataDir.resolve("sessions.journal"));
+        int restored = journal.restore(sessions);
+        sessions.attach(journal);
+        Log.info("Сессии восстановлены", "sessions", restored, "ms", (System.nanoTime() - t0) / 1e6);
 
-            if (!json.getBoolean("success")) {
-                throw new IOException("ImgBB API error: " + json.getJSONObject("error").getString("message"));
-            }
+        media = new MediaCache(dataDir.resolve("media"), imageDownload, MEDIA_CACHE_MB * 1024L * 1024L, 8);
+        t0 = System.nanoTime();
+        archive = new ArticleArchive(dataDir.resolve("articles.log"));
+        Log.info("Архив статей открыт", "articles", archive.size(), "ms", (System.nanoTime() - t0) / 1e6);
+
+        versions = new ArticleVersions(dataDir.resolve("versions"), VERSIONS_MB * 1024L * 1024L, sessions::versions);
+        images = new ImagePipeline(media, imgbb, IMGBB_UPLOAD_URL, IMGBB_API_KEY, 2);
+        outbox = new PublishOutbox(dataDir.resolve("publish.outbox"), baserow,
+                BASEROW_API_URL, BASEROW_BATCH_URL, BASEROW_TOKEN, BASEROW_IDEMPOTENCY_FIELD, images,
+                new PublishOutbox.Hooks() {
+                    @Override
+                    public CompletableFuture<?> postToChannel(PublishOutbox.Job job, int from, IntConsumer posted) {
+                        return sendArticle(CHANNEL_ID, job.text, job.picture, null, from, posted);
+                    }
 
-            return json.getJSONObject("data").getString("url");
+                    @Override
+                    public void finished(PublishOutbox.Job job, boolean ok, String error) {
+                        archive.published(job.id, ok);
+                        String where = job.kind == PublishOutbox.Kind.SITE ? "на сайт" : "в Telegram канал";
+                        sendText(job.chatId, ok ? "✅ Опубликовано " + where + "!" : "❌ Не удалось опубликовать " + where + ".");
+                    }
+                });
+
+        registerGauges();
+        if (METRICS_PORT > 0) {
+            metrics.serve(METRICS_HOST, METRICS_PORT);
+            Log.info("Метрики", "url", "http://" + METRICS_HOST + ":" + METRICS_PORT + "/metrics");
         }
     }
 
+    private void registerGauges() {
+        metrics.gauge("bot_sessions", "Sessions in memory", sessions::size);
+        metrics.gauge("bot_sessions_bytes", "Estimated heap held by sessions", sessions::estimatedBytes);
+        metrics.counter("bot_session_hits_total", "Session lookups that found a live session", sessions::hits);
+        metrics.counter("bot_session_misses_total", "Session lookups that found none or an expired one", sessions::misses);
+        metrics.counter("bot_session_evictions_total", "Sessions evicted by TTL or size", sessions::evictions);
+        metrics.gauge("bot_generations_in_flight", "n8n generations currently running", generations::inFlight);
+        metrics.gauge("bot_generation_cache_entries", "Cached generation results", generations::size);
+        metrics.counter("bot_generation_cache_hits_total", "Generations served from cache", generations::hits);
+        metrics.counter("bot_generation_coalesced_total", "Generations that joined one in flight",
+                generations::coalesced);
+        metrics.gauge("bot_update_chats_active", "Chats with queued or running updates", dispatcher::activeChats);
+        metrics.gauge("bot_update_workers_busy", "Update workers running a handler", dispatcher::busyWorkers);
+        metrics.gauge("bot_updates_queued", "Updates waiting for a worker or their chat's earlier updates",
+                dispatcher::queued);
+        metrics.gauge("bot_send_queue_depth", "Telegram calls waiting to be sent", sendQueue::depth);
+        metrics.counter("bot_send_retries_total", "Telegram calls retried", sendQueue::retried);
+        metrics.counter("bot_send_dropped_total", "Telegram calls given up on", sendQueue::dropped);
+        metrics.gauge("bot_publish_pending", "Publications waiting in the outbox", outbox::pending);
+        metrics.counter("bot_publish_failed_total", "Publications given up on", outbox::failed);
+        metrics.counter("bot_image_dedup_hits_total", "Pictures re-used without upload", images::dedupHits);
+        metrics.gauge("bot_media_cache_bytes", "Picture bytes cached on disk", media::bytes);
+        metrics.counter("bot_media_cache_hits_total", "Pictures served from the disk cache", media::hits);
+        metrics.counter("bot_media_downloads_total", "Pictures downloaded from their origin", media::downloads);
+        metrics.counter("bot_media_evictions_total", "Pictures evicted from the disk cache", media::evictions);
+        metrics.counter("bot_media_file_id_hits_total", "Pictures sent by Telegram file_id", media::fileIdHits);
+        metrics.gauge("bot_article_versions_bytes", "Article texts kept for rewrites on disk", versions::bytes);
+        metrics.counter("bot_rewrite_by_reference_total", "Rewrites sent without the article text",
+                versions::referenced);
+        metrics.counter("bot_rewrite_reference_misses_total", "Rewrites resent because n8n lacked the version",
+                versions::misses);
+        metrics.gauge("bot_archive_articles", "Articles in the archive", archive::size);
+        metrics.gauge("bot_archive_words", "Distinct words in the archive index", archive::words);
+        metrics.gauge("bot_archive_bytes", "Size of the article archive on disk", archive::sizeBytes);
+        metrics.gauge("bot_startup_ready_ms", "From JVM launch until updates were taken", lifecycle::readyMillis);
+        metrics.gauge("bot_startup_first_update_ms", "From JVM launch until the first update was handled",
+                lifecycle::firstUpdateMillis);
+        metrics.counter("bot_log_dropped_total", "Log events dropped because the log queue was full", Log::dropped);
+        metrics.gauge("bot_batch_items_pending", "Batch items queued or generating", batches::running);
+        metrics.gauge("bot_generation_queue_length", "Generations waiting for a slot", generationQueue::queued);
+        metrics.gauge("bot_generation_running", "Generations running", generationQueue::running);
+        metrics.counter("bot_generation_rejected_total", "Generations refused because the queue was full",
+                generationQueue::rejected);
+        metrics.counter("bot_input_dropped_total", "Messages ignored while the chat's generation ran",
+                generationQueue::dropped);
+        metrics.counter("bot_generation_cancelled_total", "Generations abandoned by a user leaving the dialog",
+                generationQueue::cancelled);
+    }
+
     private void resetUserState(long chatId) {
-        states.remove(chatId);
-        lastResults.remove(chatId);
-        greeted.remove(chatId);
+        sessions.reset(chatId);
     }
 
     @Override
     public void onUpdateReceived(Update upd) {
+        Long chatId = chatIdOf(upd);
+        if (chatId == null) return;
+        long received = System.nanoTime();
+        // Slow n8n calls must not block the polling thread or other chats
+        dispatcher.dispatch(chatId, () -> {
+            Metrics.Outcome outcome = Metrics.Outcome.FAILURE;
+            try {
+                handleUpdate(upd);
+                outcome = Metrics.Outcome.SUCCESS;
+            } finally {
+                sessions.commit(chatId);
+                // Includes the wait behind earlier updates of the same chat
+                metrics.record("update", received, outcome);
+                lifecycle.handled();
+            }
+        });
+    }
+
+    /** {@code /start} or the main menu button, which reset the dialog whatever it was doing. */
+    private static boolean leavesDialog(Update upd) {
+        if (!upd.hasMessage() || !upd.getMessage().hasText()) return false;
+        String txt = upd.getMessage().getText();
+        return "/start".equals(txt) || "Главное меню".equalsIgnoreCase(txt);
+    }
+
+    static Long chatIdOf(Update upd) {
+        if (upd.hasCallbackQuery() && upd.getCallbackQuery().getMessage() != null) {
+            return upd.getCallbackQuery().getMessage().getChatId();
+        }
+        if (upd.hasMessage()) return upd.getMessage().getChatId();
+        return null;
+    }
+
+    void handleUpdate(Update upd) {
+        Long busyChat = chatIdOf(upd);
+        if (busyChat != null && generationQueue.busy(busyChat)) {
+            if (leavesDialog(upd)) {
+                // Always allowed; the job's result would only land in the new dialog
+                generationQueue.cancel(busyChat);
+            } else {
+                // Repeated input would act on the state the running job is about to replace
+                if (generationQueue.dropInput(busyChat)) {
+                    sendText(busyChat, "⏳ Ещё работаю над статьёй, пришлю, как будет готово.");
+                }
+                return;
+            }
+        }
         if (upd.hasMessage() && upd.getMessage().hasText() && "/start".equals(upd.getMessage().getText())) {
             long chatId = upd.getMessage().getChatId();
             resetUserState(chatId);
@@ -130,42 +338,41 @@ public class TelegramArticleBot extends TelegramLongPollingBot {
         if (upd.hasCallbackQuery()) {
             try {
                 handleCallback(upd.getCallbackQuery());
-                DeleteMessage deleteMessage = new DeleteMessage(
-                        String.valueOf(upd.getCallbackQuery().getMessage().getChatId()),
-                        upd.getCallbackQuery().getMessage().getMessageId()
-                );
-                executeSilently(deleteMessage);
+                // Batch and archive lists stay for their other items
+                String data = upd.getCallbackQuery().getData();
+                if (!data.startsWith("B_") && !data.startsWith("H_")) {
+                    DeleteMessage deleteMessage = new DeleteMessage(
+                            String.valueOf(upd.getCallbackQuery().getMessage().getChatId()),
+                            upd.getCallbackQuery().getMessage().getMessageId()
+                    );
+                    send(deleteMessage);
+                }
             } catch(Exception e) {
-                e.printStackTrace();
+                Log.error("Ошибка обработки кнопки", e, "chat", upd.getCallbackQuery().getMessage().getChatId());
                 sendPlatformChoice(upd.getCallbackQuery().getMessage().getChatId());
             }
         } else if (upd.hasMessage() && upd.getMessage().hasText()) {
             handleText(upd.getMessage());
+        } else if (upd.hasMessage() && upd.getMessage().hasDocument()) {
+            handleDocument(upd.getMessage());
         }
     }
 
     private void handleCallback(CallbackQuery cb) throws Exception {
         long chat = cb.getMessage().getChatId();
-        int msgId = cb.getMessage().getMessageId();
         String data = cb.getData();
-        UserState st = states.get(chat);
-        ArticleResult ar = lastResults.get(chat);
+        UserState st = sessions.state(chat);
+        ArticleResult ar = sessions.result(chat);
 
         switch (data) {
             case "VIEW":
                 if (ar != null && ar.zenDocumentId != null) {
                     String url = GOOGLE_DOCS_URL_PREFIX + ar.zenDocumentId;
-                    InlineKeyboardButton back = new InlineKeyboardButton("🔙 Назад");
-                    back.setCallbackData("BACK");
-                    InlineKeyboardMarkup kb = new InlineKeyboardMarkup(
-                            Collections.singletonList(Collections.singletonList(back))
-                    );
-                    sendMessage(chat, "🔗 Ссылка на статью в Google Docs: " + url, kb);
+                    sendMessage(chat, "🔗 Ссылка на статью в Google Docs: " + url, Rendering.BACK);
                 }
                 return;
 
             case "BACK":
-                execute(new DeleteMessage(String.valueOf(chat), msgId));
                 if (ar != null) {
                     if (ar.zenDocumentId != null) sendZenArticleButtons(chat, ar);
                     else sendArticleWithButtons(chat, ar);
@@ -173,24 +380,21 @@ public class TelegramArticleBot extends TelegramLongPollingBot {
                 return;
 
             case "MAIN_MENU":
-                execute(new DeleteMessage(String.valueOf(chat), msgId));
                 resetUserState(chat);
                 sendPlatformChoice(chat);
                 return;
 
             case "PUBLISH_TG":
                 if (ar != null && ar.text != null) {
-                    sendToChannel(ar.text, ar.picture);
-                    sendText(chat, "✅ Опубликовано в Telegram канал!");
+                    publish(chat, PublishOutbox.Kind.CHANNEL, ar);
                 }
                 resetUserState(chat);
                 sendPlatformChoice(chat);
                 return;
 
             case "PUBLISH_ZEN":
-                if (ar != null && ar.text != null && ar.zenDocumentId != null) {
-                    saveToBaserow(ar.text, ar.picture);
-                    sendText(chat, "✅ Опубликовано на сайт!");
+                if (ar != null && ar.text != null && !ar.text.isEmpty() && ar.zenDocumentId != null) {
+                    publish(chat, PublishOutbox.Kind.SITE, ar);
                 }
                 resetUserState(chat);
                 sendPlatformChoice(chat);
@@ -202,20 +406,18 @@ public class TelegramArticleBot extends TelegramLongPollingBot {
                     sendPlatformChoice(chat);
                     return;
                 }
-                UserState newState = new UserState();
-                newState.channel = (ar.zenDocumentId != null) ? ChannelType.SITE : ChannelType.TG;
-                newState.action = ActionType.REWRITE;
-                newState.awaitingFeedback = true;
-                newState.originalText = (ar.zenDocumentId != null) ? ar.zenDocumentId : (ar.text != null ? ar.text : "");
-                states.put(chat, newState);
-                sendText(chat, "✏️ Что нужно изменить в статье?");
+                askRewrite(chat, ar);
                 return;
 
             default:
-                if (data.startsWith("CH_")) {
+                if (data.startsWith("B_")) {
+                    handleBatchCallback(chat, data);
+                } else if (data.startsWith("H_")) {
+                    openArchived(chat, data);
+                } else if (data.startsWith("CH_")) {
                     UserState s = new UserState();
                     s.channel = "CH_TG".equals(data) ? ChannelType.TG : ChannelType.SITE;
-                    states.put(chat, s);
+                    sessions.putState(chat, s);
                     sendActionMenu(chat, s.channel);
                 } else if (data.startsWith("ACT_")) {
                     if (st == null) {
@@ -237,41 +439,74 @@ public class TelegramArticleBot extends TelegramLongPollingBot {
     private void handleText(Message msg) {
         long chat = msg.getChatId();
         String txt = msg.getText();
-        UserState st = states.get(chat);
+        UserState st = sessions.state(chat);
 
         if ("Главное меню".equalsIgnoreCase(txt)) {
+            batches.takeAwaiting(chat);
             resetUserState(chat);
             sendPlatformChoice(chat);
             return;
         }
+        if (txt.startsWith("/batch")) {
+            handleBatchCommand(chat, txt);
+            return;
+        }
+        if (txt.equals("/history") || txt.startsWith("/history ")) {
+            sendArchiveList(chat, "🗂 Последние статьи:", archive.history(chat, ARCHIVE_LIST_MAX));
+            return;
+        }
+        if (txt.equals("/search") || txt.startsWith("/search ")) {
+            String query = txt.substring("/search".length()).trim();
+            if (query.isEmpty()) {
+                sendText(chat, "🔎 Укажите слова для поиска: /search слова");
+                return;
+            }
+            sendArchiveList(chat, "🔎 Найдено:", archive.search(chat, query, ARCHIVE_LIST_MAX));
+            return;
+        }
+        ChannelType batchChannel = batches.takeAwaiting(chat);
+        if (batchChannel != null) {
+            startBatch(chat, batchChannel, txt);
+            return;
+        }
         if (st == null) {
-            if (!greeted.contains(chat)) {
+            if (!sessions.isGreeted(chat)) {
                 sendPlatformChoice(chat);
-                greeted.add(chat);
+                sessions.markGreeted(chat);
             } else {
                 sendPlatformChoice(chat);
             }
             return;
         }
         if (st.awaitingOriginal) {
-            st.originalText = txt;
+            keepOriginal(st, txt, false);
             st.awaitingOriginal = false;
             st.awaitingFeedback = true;
             sendText(chat, "✏️ Укажите, что изменить:");
             return;
         }
         if (st.awaitingFeedback) {
-            sendText(chat, "⏳ Переписываю...");
-            ArticleResult ar = callRewrite(chat, st.originalText, txt);
-            if (ar == null) {
-                sendText(chat, "❌ Ошибка при рерайте.");
-                sendPlatformChoice(chat);
-            } else {
-                lastResults.put(chat, ar);
-                if (ar.zenDocumentId != null) sendZenArticleButtons(chat, ar);
-                else sendArticleWithButtons(chat, ar);
-            }
-            states.remove(chat);
+            ChannelType channel = st.channel;
+            String original = st.originalText;
+            String version = st.originalVersion;
+            String topic = st.topic != null ? st.topic : txt;
+            runGeneration(chat, () -> {
+                LiveMessage live = placeholder(chat, "⏳ Переписываю...");
+                ArticleResult ar = archived(chat, channel, topic,
+                        callRewrite(chat, channel, original, version, txt, progress(live)));
+                finish(chat, live);
+                return ar;
+            }, ar -> {
+                if (ar == null) {
+                    sendText(chat, "❌ Ошибка при рерайте.");
+                    sendPlatformChoice(chat);
+                } else {
+                    sessions.putResult(chat, ar);
+                    if (ar.zenDocumentId != null) sendZenArticleButtons(chat, ar);
+                    else sendArticleWithButtons(chat, ar);
+                }
+                sessions.clearState(chat);
+            });
             return;
         }
         if (st.action == ActionType.GENERATE) {
@@ -281,271 +516,847 @@ public class TelegramArticleBot extends TelegramLongPollingBot {
                 return;
             }
             if (st.description == null) {
-                st.description = txt;
-                sendText(chat, "⏳ Генерирую...");
-                ArticleResult ar = fetchFromN8n(chat, st);
-                if (ar == null) {
-                    sendText(chat, "❌ Ошибка генерации.");
-                    sendPlatformChoice(chat);
-                } else {
-                    lastResults.put(chat, ar);
-                    if (ar.zenDocumentId != null) sendZenArticleButtons(chat, ar);
-                    else sendArticleWithButtons(chat, ar);
-                }
+                ChannelType channel = st.channel;
+                String topic = st.topic;
+                boolean admitted = runGeneration(chat, () -> {
+                    LiveMessage live = placeholder(chat, "⏳ Генерирую...");
+                    ArticleResult ar = archived(chat, channel, topic,
+                            fetchFromN8n(chat, channel, topic, txt, progress(live)));
+                    finish(chat, live);
+                    return ar;
+                }, ar -> {
+                    if (ar == null) {
+                        sendText(chat, "❌ Ошибка генерации.");
+                        sendPlatformChoice(chat);
+                    } else {
+                        sessions.putResult(chat, ar);
+                        if (ar.zenDocumentId != null) sendZenArticleButtons(chat, ar);
+                        else sendArticleWithButtons(chat, ar);
+                    }
+                });
+                // Refused: the description can simply be sent again
+                if (admitted) st.description = txt;
+            }
+        }
+    }
+
+    /**
+     * Runs {@code work} (the n8n call) through the generation queue, off the
+     * chat's lane, then hands its result to {@code then} back on the lane.
+     * Returns false, having told the user, if the queue is full.
+     */
+    private boolean runGeneration(long chat, Supplier<ArticleResult> work,
+                                  Consumer<ArticleResult> then) {
+        int position = generationQueue.submit(chat, ticket -> {
+            ArticleResult result = null;
+            try {
+                result = work.get();
+            } catch (RuntimeException e) {
+                Log.error("Ошибка генерации", e, "chat", chat);
+            } finally {
+                ArticleResult ar = result;
+                dispatcher.dispatch(chat, () -> {
+                    try {
+                        // The user left the dialog meanwhile
+                        if (!ticket.cancelled()) then.accept(ar);
+                    } finally {
+                        generationQueue.done(chat, ticket);
+                        sessions.commit(chat);
+                    }
+                });
             }
+        });
+        if (position < 0) {
+            sendText(chat, "❌ Сейчас слишком много запросов: в очереди " + generationQueue.queued()
+                    + ". Попробуйте через минуту.");
+            return false;
+        }
+        if (position > 0) sendText(chat, "⏳ Вы в очереди на генерацию, позиция " + position + ".");
+        return true;
+    }
+
+    private void askRewrite(long chat, ArticleResult ar) {
+        UserState newState = new UserState();
+        newState.channel = (ar.zenDocumentId != null) ? ChannelType.SITE : ChannelType.TG;
+        newState.action = ActionType.REWRITE;
+        newState.awaitingFeedback = true;
+        // Rewrites are archived under the topic of the article they came from
+        ArticleArchive.Entry from = archive.entry(ar.archiveId);
+        if (from != null) newState.topic = from.topic;
+        if (ar.zenDocumentId != null) newState.originalText = ar.zenDocumentId;
+        else keepOriginal(newState, ar.text != null ? ar.text : "", true);
+        sessions.putState(chat, newState);
+        sendText(chat, "✏️ Что нужно изменить в статье?");
+    }
+
+    /** Stores the text to rewrite as a version; {@code fromN8n} if n8n wrote it and so already has it. */
+    private void keepOriginal(UserState st, String text, boolean fromN8n) {
+        try {
+            st.originalVersion = versions.put(text);
+            st.originalText = null;
+            if (fromN8n && N8N_VERSION_REFS) versions.markKnown(st.originalVersion);
+        } catch (IOException e) {
+            Log.warn("Не удалось сохранить версию статьи", "error", e.getMessage());
+            st.originalText = text;
+            st.originalVersion = null;
+        }
+    }
+
+    // ---- /history, /search ----
+
+    /**
+     * Records an n8n result in the archive; returns the archived copy, or
+     * {@code ar} itself if it was archived before (a cache hit) or on failure.
+     */
+    private ArticleResult archived(long chat, ChannelType channel, String topic, ArticleResult ar) {
+        if (ar == null) return null;
+        // The generation cache hands the same result to every hit and coalesced call; archive it once
+        synchronized (ar) {
+            if (ar.archiveId != 0) return ar;
+            try {
+                ArticleResult copy = archive.record(chat, channel, topic, ar);
+                ar.archiveId = copy.archiveId;
+                return copy;
+            } catch (IOException e) {
+                Log.warn("Не удалось сохранить статью в архив", "chat", chat, "error", e.getMessage());
+                return ar;
+            }
+        }
+    }
+
+    private void sendArchiveList(long chat, String title, List<ArticleArchive.Entry> entries) {
+        if (entries.isEmpty()) {
+            sendText(chat, "🗂 Ничего не найдено.");
+            return;
+        }
+        SimpleDateFormat date = new SimpleDateFormat("dd.MM HH:mm", Locale.ROOT);
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        for (ArticleArchive.Entry e : entries) {
+            String topic = e.topic == null ? "" : e.topic;
+            if (topic.length() > 40) topic = topic.substring(0, 39) + "…";
+            String label = statusIcon(e.status) + " " + date.format(new Date(e.created))
+                    + (e.channel == ChannelType.SITE ? " 🌐 " : " 📱 ") + topic;
+            InlineKeyboardButton open = new InlineKeyboardButton(label);
+            open.setCallbackData("H_" + e.id);
+            rows.add(Collections.singletonList(open));
+        }
+        SendMessage m = new SendMessage(String.valueOf(chat), title);
+        m.setReplyMarkup(new InlineKeyboardMarkup(rows));
+        send(m);
+    }
+
+    private static String statusIcon(ArticleArchive.Status status) {
+        switch (status) {
+            case QUEUED: return "⏳";
+            case PUBLISHED: return "✅";
+            case FAILED: return "❌";
+            default: return "📝";
+        }
+    }
+
+    /** {@code H_<id>} from an archive list: shows the article with the usual buttons. */
+    private void openArchived(long chat, String data) {
+        ArticleArchive.Entry e;
+        try {
+            e = archive.entry(Long.parseLong(data.substring(2)));
+        } catch (NumberFormatException ex) {
+            e = null;
+        }
+        if (e == null || e.chat != chat) {
+            sendText(chat, "❌ Статья не найдена.");
+            return;
+        }
+        ArticleResult ar;
+        try {
+            ar = archive.open(e);
+        } catch (IOException ex) {
+            Log.error("Не удалось прочитать статью из архива", ex, "chat", chat, "article", e.id);
+            sendText(chat, "❌ Не удалось прочитать статью из архива.");
+            return;
+        }
+        sessions.putResult(chat, ar);
+        if (ar.zenDocumentId != null) sendZenArticleButtons(chat, ar);
+        else sendArticleWithButtons(chat, ar);
+    }
+
+    // ---- /batch ----
+
+    /** {@code /batch [tg|site]}, with the list on the following lines or in the next message or file. */
+    private void handleBatchCommand(long chat, String txt) {
+        String rest = txt.replaceFirst("^/batch(@\\S+)?", "").trim();
+        String[] head = rest.split("\\s+", 2);
+        ChannelType channel = ChannelType.TG;
+        String word = head[0].toLowerCase(Locale.ROOT);
+        if (word.equals("site") || word.equals("сайт") || word.equals("tg") || word.equals("telegram")) {
+            channel = word.equals("site") || word.equals("сайт") ? ChannelType.SITE : ChannelType.TG;
+            rest = head.length > 1 ? head[1] : "";
+        }
+        if (rest.trim().isEmpty()) {
+            batches.await(chat, channel);
+            sendText(chat, "📋 Пришлите список статей: по одной в строке, «тема | описание». "
+                    + "Подойдёт и CSV «тема,описание»; тему с запятой возьмите в кавычки: "
+                    + "\"Кофе, чай и какао\",описание. "
+                    + "Можно файлом .txt или .csv (до " + BATCH_MAX + " тем).");
+            return;
+        }
+        startBatch(chat, channel, rest);
+    }
+
+    private void handleDocument(Message msg) {
+        long chat = msg.getChatId();
+        String caption = msg.getCaption();
+        ChannelType channel = batches.takeAwaiting(chat);
+        if (channel == null && caption != null && caption.startsWith("/batch")) {
+            channel = caption.toLowerCase(Locale.ROOT).matches("(?s)/batch\\S*\\s+(site|сайт).*")
+                    ? ChannelType.SITE : ChannelType.TG;
+        }
+        if (channel == null) return;
+        Document doc = msg.getDocument();
+        if (doc.getFileSize() != null && doc.getFileSize() > BATCH_FILE_MAX_BYTES) {
+            sendText(chat, "❌ Файл слишком большой, максимум " + BATCH_FILE_MAX_BYTES / 1024 + " КБ.");
+            return;
+        }
+        String text;
+        try (InputStream in = downloadFileAsStream(execute(new GetFile(doc.getFileId())))) {
+            text = new String(in.readNBytes(BATCH_FILE_MAX_BYTES), java.nio.charset.StandardCharsets.UTF_8);
+        } catch (IOException | TelegramApiException e) {
+            Log.error("Не удалось скачать файл пакета", e, "chat", chat);
+            sendText(chat, "❌ Не удалось скачать файл.");
+            return;
+        }
+        if (text.startsWith("\uFEFF")) text = text.substring(1);
+        startBatch(chat, channel, text);
+    }
+
+    private void startBatch(long chat, ChannelType channel, String list) {
+        if (batches.busy(chat)) {
+            sendText(chat, "⏳ Предыдущий пакет ещё генерируется.");
+            return;
+        }
+        List<BatchGeneration.Item> items = BatchGeneration.parse(list);
+        if (items.isEmpty()) {
+            sendText(chat, "❌ Не нашёл ни одной темы. Формат: «тема | описание», по одной в строке.");
+            return;
+        }
+        if (items.size() > batches.maxItems()) {
+            sendText(chat, "❌ Слишком много тем: " + items.size() + ", максимум " + batches.maxItems() + ".");
+            return;
+        }
+        SendMessage m = new SendMessage(String.valueOf(chat), batchStatus(items.size(), 0, 0));
+        LiveMessage status = new LiveMessage(send(m), (id, body) -> {
+            EditMessageText edit = new EditMessageText(body);
+            edit.setChatId(String.valueOf(chat));
+            edit.setMessageId(id);
+            return send(edit);
+        }, N8N_STREAM_EDIT_MS);
+        batches.start(chat, channel, items,
+                (c, ch, topic, description) -> archived(c, ch, topic,
+                        fetchFromN8n(c, ch, topic, description, delta -> { })),
+                new BatchGeneration.Listener() {
+                    @Override
+                    public void progress(BatchGeneration.Batch b) {
+                        status.set(batchStatus(b.items.size(), b.finished.get(), b.failed.get()));
+                    }
+
+                    @Override
+                    public void finished(BatchGeneration.Batch b) {
+                        // Back on the chat's lane, behind whatever the user did meanwhile
+                        dispatcher.dispatch(chat, () -> {
+                            finish(chat, status);
+                            sendBatchList(b);
+                        });
+                    }
+                });
+    }
+
+    private static String batchStatus(int total, int finished, int failed) {
+        return "⏳ Пакет: готово " + (finished - failed) + " из " + total
+                + (failed > 0 ? ", ошибок " + failed : "") + ", в работе " + (total - finished);
+    }
+
+    private void sendBatchList(BatchGeneration.Batch b) {
+        int ok = b.items.size() - b.failed.get();
+        String where = b.channel == ChannelType.SITE ? "сайта" : "Telegram";
+        for (int from = 0; from < b.items.size(); from += BATCH_ITEMS_PER_LIST) {
+            int to = Math.min(b.items.size(), from + BATCH_ITEMS_PER_LIST);
+            StringBuilder text = new StringBuilder();
+            if (from == 0) text.append("📋 Пакет для ").append(where).append(" готов: ").append(ok)
+                    .append(" из ").append(b.items.size()).append("\n");
+            List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                BatchGeneration.Item item = b.items.get(i);
+                String topic = item.topic.length() <= 60 ? item.topic : item.topic.substring(0, 59) + "…";
+                text.append("\n").append(i + 1).append(". ").append(item.result != null ? "✅ " : "❌ ").append(topic);
+                if (item.result == null) continue;
+                String ref = b.id + ":" + i;
+                rows.add(Arrays.asList(
+                        batchButton("👀 " + (i + 1), "B_VIEW:" + ref),
+                        batchButton("✍️ " + (i + 1), "B_RW:" + ref),
+                        batchButton("🚀 " + (i + 1), "B_PUB:" + ref)));
+            }
+            SendMessage m = new SendMessage(String.valueOf(b.chat), text.toString());
+            if (!rows.isEmpty()) m.setReplyMarkup(new InlineKeyboardMarkup(rows));
+            send(m);
+        }
+    }
+
+    private static InlineKeyboardButton batchButton(String label, String data) {
+        InlineKeyboardButton button = new InlineKeyboardButton(label);
+        button.setCallbackData(data);
+        return button;
+    }
+
+    /** {@code B_VIEW|B_RW|B_PUB:<batch>:<item>} from the batch list. */
+    private void handleBatchCallback(long chat, String data) {
+        String[] parts = data.split(":");
+        BatchGeneration.Item item = parts.length == 3
+                ? batches.item(chat, Integer.parseInt(parts[1]), Integer.parseInt(parts[2])) : null;
+        if (item == null || item.result == null) {
+            sendText(chat, "❌ Этот пакет устарел, запустите /batch заново.");
+            return;
+        }
+        ArticleResult ar = item.result;
+        switch (parts[0]) {
+            case "B_VIEW":
+                sessions.putResult(chat, ar);
+                if (ar.zenDocumentId != null) sendZenArticleButtons(chat, ar);
+                else sendArticleWithButtons(chat, ar);
+                return;
+            case "B_RW":
+                sessions.putResult(chat, ar);
+                askRewrite(chat, ar);
+                return;
+            case "B_PUB":
+                if (item.published) {
+                    sendText(chat, "ℹ️ Эта статья уже отправлена на публикацию.");
+                    return;
+                }
+                item.published = true;
+                publish(chat, ar.zenDocumentId != null ? PublishOutbox.Kind.SITE : PublishOutbox.Kind.CHANNEL, ar);
+                return;
+            default:
         }
     }
 
     private void sendPlatformChoice(long chat) {
-        InlineKeyboardButton tg = new InlineKeyboardButton("📱 Telegram");
-        tg.setCallbackData("CH_TG");
-        InlineKeyboardButton dz = new InlineKeyboardButton("🌐 Сайт");
-        dz.setCallbackData("CH_SITE");
-        InlineKeyboardMarkup kb = new InlineKeyboardMarkup(
-                Arrays.asList(
-                        Collections.singletonList(tg),
-                        Collections.singletonList(dz)
-                )
-        );
-        sendMessage(chat, "Выбери площадку:", kb);
+        sendMessage(chat, "Выбери площадку:", Rendering.PLATFORMS);
     }
 
     private void sendActionMenu(long chat, ChannelType ch) {
-        InlineKeyboardButton gen = new InlineKeyboardButton("📝 Генерировать");
-        gen.setCallbackData("ACT_GEN");
-        InlineKeyboardButton rew = new InlineKeyboardButton("✍️ Переписать");
-        rew.setCallbackData("ACT_REWRITE");
         String where = (ch == ChannelType.TG) ? "Telegram" : "Сайтом";
-        InlineKeyboardMarkup kb = new InlineKeyboardMarkup(
-                Arrays.asList(
-                        Collections.singletonList(gen),
-                        Collections.singletonList(rew)
-                )
-        );
-        sendMessage(chat, "Что делаем с " + where + "?", kb);
+        sendMessage(chat, "Что делаем с " + where + "?", Rendering.ACTIONS);
     }
 
     private void sendArticleWithButtons(long chat, ArticleResult ar) {
-        InlineKeyboardButton re = new InlineKeyboardButton("✍️ Переписать");
-        re.setCallbackData("REREWRITE");
-        InlineKeyboardButton pu = new InlineKeyboardButton("🚀 Запостить");
-        pu.setCallbackData("PUBLISH_TG");
-        InlineKeyboardMarkup kb = new InlineKeyboardMarkup(
-                Arrays.asList(
-                        Collections.singletonList(re),
-                        Collections.singletonList(pu)
-                )
-        );
-        if (ar.picture != null && !ar.picture.isEmpty()) {
-            SendPhoto ph = new SendPhoto();
-            ph.setChatId(String.valueOf(chat));
-            ph.setPhoto(new InputFile(ar.picture));
-            String full = ar.text;
-            ph.setCaption(full.length() <= 1024 ? full : full.substring(0, 1024));
-            ph.setReplyMarkup(kb);
-            safeSend(ph);
-            if (full.length() > 1024) sendText(chat, full.substring(1024));
-        } else {
-            SendMessage m = new SendMessage(String.valueOf(chat), ar.text);
-            m.setReplyMarkup(kb);
-            executeSilently(m);
-        }
+        sendArticle(String.valueOf(chat), ar.text, ar.picture, Rendering.ARTICLE);
     }
 
     private void sendZenArticleButtons(long chat, ArticleResult ar) {
-        InlineKeyboardButton view = new InlineKeyboardButton("👀 Посмотреть");
-        view.setUrl(GOOGLE_DOCS_URL_PREFIX + ar.zenDocumentId);
-        InlineKeyboardButton re = new InlineKeyboardButton("✍️ Переписать");
-        re.setCallbackData("REREWRITE");
-        InlineKeyboardButton pu = new InlineKeyboardButton("🚀 Запостить");
-        pu.setCallbackData("PUBLISH_ZEN");
-        InlineKeyboardMarkup kb = new InlineKeyboardMarkup(
-                Arrays.asList(
-                        Collections.singletonList(view),
-                        Arrays.asList(re, pu)
-                )
-        );
-        sendMessage(chat, "✅ Статья готова! Вы можете:", kb);
-    }
-
-    private ArticleResult fetchFromN8n(long chat, UserState st) {
-        String payload = String.format(Locale.ROOT,
-                "{\"chat_id\":%d,\"channel\":\"%s\",\"action\":\"%s\"," +
-                        "\"topic\":\"%s\",\"description\":\"%s\"}",
-                chat, st.channel.name().toLowerCase(),
-                st.action.name().toLowerCase(),
-                escape(st.topic), escape(st.description)
-        );
-        return callN8n(payload, st.channel);
-    }
-
-    private ArticleResult callRewrite(long chat, String orig, String fb) {
-        UserState st = states.get(chat);
-        if (st == null) {
-            sendText(chat, "❌ Ошибка состояния. Попробуйте заново.");
-            sendPlatformChoice(chat);
-            return null;
-        }
-        String payload = String.format(Locale.ROOT,
-                "{\"chat_id\":%d,\"channel\":\"%s\",\"action\":\"rewrite\"," +
-                        "\"original\":\"%s\",\"feedback\":\"%s\"}",
-                chat, st.channel.name().toLowerCase(),
-                escape(orig), escape(fb)
-        );
-        return callN8n(payload, st.channel);
-    }
-
-    private ArticleResult callN8n(String payload, ChannelType channel) {
-        System.out.println("→ n8n payload: " + payload);
-        RequestBody body = RequestBody.create(payload, MediaType.parse("application/json; charset=utf-8"));
-        Request req = new Request.Builder().url(N8N_WEBHOOK_URL).post(body).build();
-        try (Response resp = http.newCall(req).execute()) {
-            String s = resp.body() != null ? resp.body().string() : null;
-            System.out.println("← n8n response: " + s);
-            if (!resp.isSuccessful() || s == null) return null;
-
-            if (s.startsWith("[")) {
-                JSONArray arr = new JSONArray(s);
-                if (arr.length() > 0) {
-                    JSONObject j = arr.getJSONObject(0);
-                    if (channel == ChannelType.SITE) {
-                        if (j.has("output")) {
-                            JSONObject output = j.getJSONObject("output");
-                            String text = output.optString("text");
-                            String picture = output.optString("picture");
-                            String docId = j.optString("documentId");
-                            ArticleResult result = new ArticleResult(docId);
-                            result.text = text;
-                            result.picture = picture;
-                            return result;
-                        }
-                    }
-                }
+        sendMessage(chat, "✅ Статья готова! Вы можете:", Rendering.document(GOOGLE_DOCS_URL_PREFIX + ar.zenDocumentId));
+    }
+
+    /**
+     * Sends an article as the picture with the first part of the text as its
+     * caption, then the rest in messages; {@code kb} goes under the last one.
+     * The parts are queued as one unit, so nothing else for the chat lands
+     * between them. The future is the last message's; it fails with the first
+     * part that failed.
+     */
+    private CompletableFuture<Message> sendArticle(String chatId, String text, String pic, ReplyKeyboard kb) {
+        return sendArticle(chatId, text, pic, kb, 0, null);
+    }
+
+    /**
+     * Like {@link #sendArticle(String, String, String, ReplyKeyboard)} from
+     * part {@code from} on. With {@code posted} set, a failed part stops the
+     * ones after it and each delivered part is reported by the number of parts
+     * now in the chat, so a retry can pick up exactly where this left off.
+     */
+    private CompletableFuture<Message> sendArticle(String chatId, String text, String pic, ReplyKeyboard kb,
+                                                   int from, IntConsumer posted) {
+        boolean photo = pic != null && !pic.isEmpty();
+        List<String> parts = Rendering.split(text, photo ? Rendering.CAPTION_MAX : Rendering.MESSAGE_MAX,
+                Rendering.MESSAGE_MAX);
+        if (from >= parts.size()) return CompletableFuture.completedFuture(null);
+        AtomicInteger delivered = new AtomicInteger(from);
+        List<SendQueue.Call<Message>> calls = new ArrayList<>(parts.size() - from);
+        for (int i = from; i < parts.size(); i++) {
+            ReplyKeyboard markup = i == parts.size() - 1 ? kb : null;
+            SendQueue.Call<Message> call;
+            if (i == 0 && photo) {
+                call = photoOrText(chatId, pic, parts.get(0), markup);
             } else {
-                JSONObject j = new JSONObject(s);
-                if (channel == ChannelType.TG) {
-                    String text = j.optString("text");
-                    String picture = j.optString("picture");
-                    return new ArticleResult(text, picture);
-                }
+                SendMessage m = new SendMessage(chatId, parts.get(i));
+                m.setReplyMarkup(markup);
+                call = () -> execute(m);
             }
-            return null;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            if (posted == null) {
+                calls.add(call);
+                continue;
+            }
+            int part = i;
+            calls.add(() -> {
+                // The lane runs parts in order, so the previous one has settled by now
+                if (delivered.get() < part) throw new CancellationException("предыдущая часть не отправлена");
+                Message m = call.call();
+                posted.accept(delivered.incrementAndGet());
+                return m;
+            });
         }
+        List<CompletableFuture<Message>> sent = sendQueue.submitAll(chatId, isChannel(chatId), calls);
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).handle((v, e) -> {
+            for (CompletableFuture<Message> f : sent) {
+                if (f.isCompletedExceptionally()) return f;
+            }
+            return sent.get(sent.size() - 1);
+        }).thenCompose(f -> f);
     }
 
-    private void sendToChannel(String text, String pic) {
-        if (pic != null && !pic.isEmpty()) {
-            SendPhoto ph = new SendPhoto();
-            ph.setChatId(CHANNEL_ID);
-            ph.setPhoto(new InputFile(pic));
-            ph.setCaption(text);
-            safeSend(ph);
-        } else {
-            sendText(Long.parseLong(CHANNEL_ID), text);
+    /** The "in progress" message; with streaming it becomes a {@link LiveMessage}, otherwise null. */
+    private LiveMessage placeholder(long chat, String text) {
+        if (!N8N_STREAM) {
+            sendText(chat, text);
+            return null;
         }
+        SendMessage m = new SendMessage(String.valueOf(chat), text);
+        m.setReplyMarkup(Rendering.MAIN_MENU);
+        return new LiveMessage(send(m), (id, body) -> {
+            EditMessageText edit = new EditMessageText(body);
+            edit.setChatId(String.valueOf(chat));
+            edit.setMessageId(id);
+            return send(edit);
+        }, N8N_STREAM_EDIT_MS);
     }
 
-    private void saveToBaserow(String text, String imageUrl) {
-        try {
-            System.out.println("Начало сохранения в Baserow...");
+    private static Consumer<String> progress(LiveMessage live) {
+        return live == null ? delta -> { } : live::append;
+    }
 
-            if (text == null || text.isEmpty()) {
-                System.err.println("Ошибка: Пустой текст статьи");
-                return;
-            }
+    // The final view replaces the live message rather than editing it: it may be a photo with buttons
+    private void finish(long chat, LiveMessage live) {
+        if (live == null) return;
+        live.close();
+        live.placeholder().thenAccept(m -> send(new DeleteMessage(String.valueOf(chat), m.getMessageId())));
+    }
 
-            JSONObject payload = new JSONObject();
-            payload.put("content", text);
-            payload.put("date_created", Instant.now().toString());
-
-            System.out.println("Полученный URL картинки: " + imageUrl);
-
-            if (imageUrl != null && !imageUrl.isEmpty()) {
-                try {
-                    System.out.println("Загрузка изображения на ImgBB...");
-                    String permanentUrl = uploadImageToImgBB(imageUrl);
-                    System.out.println("Получен постоянный URL: " + permanentUrl);
-                    payload.put("image_url", permanentUrl);
-                } catch (IOException e) {
-                    System.err.println("Ошибка загрузки на ImgBB:");
-                    e.printStackTrace();
-                    payload.put("image_url", imageUrl); // Fallback - сохраняем оригинальный URL
-                }
-            } else {
-                System.out.println("Картинка отсутствует - пропускаем");
+    private ArticleResult fetchFromN8n(long chat, ChannelType channel, String topic, String description,
+                                       Consumer<String> progress) {
+        String key = GenerationCache.generateKey(channel, ActionType.GENERATE, topic, description);
+        return generations.get(key, () -> {
+            RequestBody body = N8nCodec.generate(chat, channel, ActionType.GENERATE, topic, description);
+            return callN8n(chat, body, channel, progress);
+        });
+    }
+
+    /** Rewrites {@code version} if set (the text comes from the version store), else {@code orig}. */
+    private ArticleResult callRewrite(long chat, ChannelType channel, String orig, String version, String fb,
+                                      Consumer<String> progress) {
+        String key = GenerationCache.rewriteKey(channel, version != null ? version : orig, fb);
+        return generations.get(key, () -> {
+            if (version == null) {
+                return callN8n(chat, N8nCodec.rewrite(chat, channel, orig, null, fb, N8N_GZIP_MIN_BYTES), channel, progress);
+            }
+            if (N8N_VERSION_REFS && versions.knownByN8n(version)) {
+                ArticleResult ar = callN8n(chat, N8nCodec.rewrite(chat, channel, null, version, fb, N8N_GZIP_MIN_BYTES),
+                        channel, progress, true);
+                if (ar != VERSION_UNKNOWN) return ar;
+                versions.forget(version);
+            }
+            String text;
+            try {
+                text = versions.text(version);
+            } catch (IOException e) {
+                Log.error("Не удалось прочитать версию статьи", e, "chat", chat, "version", version);
+                return null;
+            }
+            if (text == null) {
+                Log.warn("Версия статьи не найдена", "chat", chat, "version", version);
+                return null;
             }
+            ArticleResult ar = callN8n(chat, N8nCodec.rewrite(chat, channel, text, version, fb, N8N_GZIP_MIN_BYTES),
+                    channel, progress);
+            if (ar != null && N8N_VERSION_REFS) versions.markKnown(version);
+            return ar;
+        });
+    }
 
-            System.out.println("Отправляемые данные в Baserow:");
-            System.out.println(payload.toString(2));
-
-            RequestBody body = RequestBody.create(
-                    payload.toString(),
-                    MediaType.parse("application/json")
-            );
-
-            Request request = new Request.Builder()
-                    .url(BASEROW_API_URL)
-                    .header("Authorization", "Token " + BASEROW_TOKEN)
-                    .header("Content-Type", "application/json")
-                    .post(body)
-                    .build();
-
-            try (Response response = http.newCall(request).execute()) {
-                System.out.println("Ответ Baserow. Код: " + response.code());
-
-                if (!response.isSuccessful()) {
-                    System.err.println("Ошибка Baserow!");
-                    if (response.body() != null) {
-                        String errorBody = response.body().string();
-                        System.err.println("Тело ошибки: " + errorBody);
-                    }
-                } else {
-                    String responseBody = response.body() != null ? response.body().string() : "null";
-                    System.out.println("Успешный ответ: " + responseBody);
-                }
+    // callN8n's answer when n8n doesn't have the version a rewrite refers to
+    private static final ArticleResult VERSION_UNKNOWN = new ArticleResult(null, null);
+
+    private ArticleResult callN8n(long chat, RequestBody body, ChannelType channel, Consumer<String> progress) {
+        return callN8n(chat, body, channel, progress, false);
+    }
+
+    private ArticleResult callN8n(long chat, RequestBody body, ChannelType channel, Consumer<String> progress,
+                                  boolean byVersion) {
+        String accept = N8N_STREAM ? "application/x-ndjson, text/event-stream, application/json" : null;
+        // The call itself is logged by the n8n HttpBackend
+        try (Response resp = n8nEndpoints.post(chat, body, accept)) {
+            if (byVersion && resp.code() == 409) return VERSION_UNKNOWN;
+            if (!resp.isSuccessful() || resp.body() == null) return null;
+            // Pull only the needed fields straight from the socket
+            MediaType type = resp.body().contentType();
+            boolean streamed = type != null
+                    && ("x-ndjson".equals(type.subtype()) || "event-stream".equals(type.subtype()));
+            ArticleResult ar = streamed
+                    ? N8nCodec.readStream(resp.body().source(), channel, progress)
+                    : N8nCodec.readArticle(resp.body().source(), channel);
+            if (ar != null && ar.zenDocumentId != null && ar.picture != null && !ar.picture.isEmpty()) {
+                // Re-host while the user reviews the article, so publishing doesn't wait for it
+                images.prefetch(ar.picture);
             }
-        } catch (Exception e) {
-            System.err.println("Критическая ошибка:");
-            e.printStackTrace();
+            return ar;
+        } catch (IOException e) {
+            Log.warn("Ошибка вызова n8n", "chat", chat, "error", e);
+            return null;
+        }
+    }
+
+    // The outcome is reported to the chat by the outbox once the job is done
+    private void publish(long chat, PublishOutbox.Kind kind, ArticleResult ar) {
+        long job = outbox.newJobId();
+        // Before the job exists: a fast one would otherwise report its outcome to an archive not expecting it
+        if (ar.archiveId != 0) archive.queued(ar.archiveId, job);
+        try {
+            outbox.enqueue(job, kind, chat, ar.text, ar.picture);
+            sendText(chat, "⏳ Публикую, сообщу о результате.");
+        } catch (IOException e) {
+            if (ar.archiveId != 0) archive.published(job, false);
+            Log.error("Не удалось поставить публикацию в очередь", e, "chat", chat);
+            sendText(chat, "❌ Не удалось поставить публикацию в очередь.");
         }
     }
 
-    private static String escape(String s) {
-        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    private static DefaultBotOptions botOptions() {
+        DefaultBotOptions options = new DefaultBotOptions();
+        if (TELEGRAM_API_URL != null && !TELEGRAM_API_URL.isEmpty()) options.setBaseUrl(TELEGRAM_API_URL);
+        return options;
+    }
+
+    private static String envOr(String name, String def) {
+        String v = System.getenv(name);
+        return v == null || v.isEmpty() ? def : v;
+    }
+
+    static int envInt(String name, int def) {
+        String v = System.getenv(name);
+        if (v == null || v.isEmpty()) return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            Log.warn("Некорректное значение переменной", "name", name, "value", v, "default", def);
+            return def;
+        }
     }
 
     private void sendText(long chat, String text) {
         SendMessage m = new SendMessage(String.valueOf(chat), text);
-        m.setReplyMarkup(mainMenuKeyboard);
-        executeSilently(m);
+        m.setReplyMarkup(Rendering.MAIN_MENU);
+        send(m);
     }
 
-    private void sendMessage(long chat, String text, InlineKeyboardMarkup inlineKb) {
+    private void sendMessage(long chat, String text, ReplyKeyboard inlineKb) {
         SendMessage m = new SendMessage(String.valueOf(chat), text);
         m.setReplyMarkup(inlineKb);
-        executeSilently(m);
+        send(m);
     }
 
-    private void executeSilently(SendMessage m) {
-        try { execute(m); } catch (Exception ignore) {}
+    // All Telegram calls go through the rate-limited queue, in order per chat
+    private CompletableFuture<Message> send(SendMessage m) {
+        return sendQueue.submit(m.getChatId(), isChannel(m.getChatId()), () -> execute(m));
     }
 
-    private void executeSilently(DeleteMessage m) {
-        try { execute(m); } catch (Exception ignore) {}
+    private CompletableFuture<Boolean> send(DeleteMessage m) {
+        return sendQueue.submit(m.getChatId(), isChannel(m.getChatId()), () -> execute(m));
     }
 
-    private void safeSend(SendPhoto p) {
-        try { execute(p); } catch (Exception ignore) {}
+    private CompletableFuture<Serializable> send(EditMessageText m) {
+        return sendQueue.submit(m.getChatId(), isChannel(m.getChatId()), () -> execute(m));
+    }
+
+    /**
+     * The call that sends {@code caption} under the picture at {@code url}, or
+     * as a plain message if the picture can't be sent at all. Errors worth
+     * retrying are left to the queue, which then tries the picture again.
+     */
+    private SendQueue.Call<Message> photoOrText(String chatId, String url, String caption, ReplyKeyboard kb) {
+        return () -> {
+            SendPhoto ph = new SendPhoto();
+            ph.setChatId(chatId);
+            ph.setCaption(caption);
+            ph.setReplyMarkup(kb);
+            try {
+                return sendPhoto(ph, url);
+            } catch (TelegramApiException e) {
+                if (!SendQueue.permanent(e)) throw e;
+                Log.warn("Картинка не отправлена, статья уходит текстом", "chat", chatId, "error", e);
+                SendMessage m = new SendMessage(chatId, caption);
+                m.setReplyMarkup(kb);
+                return execute(m);
+            }
+        };
+    }
+
+    /**
+     * Sends {@code ph} with the picture at {@code url}, passed as its known
+     * file_id, as cached bytes, or as the URL for Telegram to fetch, in that
+     * order of preference. If Telegram rejects the id or can't fetch the URL,
+     * the picture is uploaded from the cache instead, once. Runs on a sender
+     * thread, which keeps the chat's lane for the whole exchange.
+     */
+    private Message sendPhoto(SendPhoto ph, String url) throws TelegramApiException {
+        String fileId = media.fileId(url);
+        MediaCache.Entry cached = fileId == null ? media.cached(url) : null;
+        if (fileId != null) {
+            ph.setPhoto(new InputFile(fileId));
+        } else if (cached != null) {
+            ph.setPhoto(new InputFile(cached.file.toFile(), "image.jpg"));
+        } else {
+            ph.setPhoto(new InputFile(url));
+        }
+        Message m;
+        try {
+            m = execute(ph);
+        } catch (TelegramApiException e) {
+            if (cached != null || !pictureRejected(e)) throw e;
+            if (fileId != null) media.forgetFileId(fileId);
+            MediaCache.Entry entry;
+            try {
+                entry = media.prefetch(url).get(60, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } catch (ExecutionException | TimeoutException de) {
+                Log.warn("Ошибка загрузки картинки", "url", url, "error", de);
+                throw e;
+            }
+            ph.setPhoto(new InputFile(entry.file.toFile(), "image.jpg"));
+            m = execute(ph);
+        }
+        List<PhotoSize> sizes = m.getPhoto();
+        // The last size is the largest; any of them stands for the photo
+        if (sizes != null && !sizes.isEmpty()) {
+            media.rememberFileId(url, sizes.get(sizes.size() - 1).getFileId());
+        }
+        return m;
+    }
+
+    private static boolean pictureRejected(TelegramApiException e) {
+        if (!(e instanceof TelegramApiRequestException)) return false;
+        String response = String.valueOf(((TelegramApiRequestException) e).getApiResponse()).toLowerCase(Locale.ROOT);
+        // "wrong file identifier/HTTP URL specified", "failed to get HTTP URL content", "wrong type of the web page content"
+        return response.contains("file") || response.contains("url") || response.contains("web page");
+    }
+
+    private static boolean isChannel(String chatId) {
+        return chatId.equals(CHANNEL_ID);
     }
 
     @Override public String getBotUsername() { return BOT_USERNAME; }
     @Override public String getBotToken() { return BOT_TOKEN; }
 
+    /** Serves the webhook and points Telegram at it; updates then take the same path as long polling. */
+    private static WebhookServer startWebhook(TelegramLongPollingBot api, Metrics metrics, Consumer<Update> sink,
+                                              IntSupplier backlog) throws IOException, TelegramApiException {
+        URI uri = URI.create(WEBHOOK_URL);
+        String path = uri.getPath() == null || uri.getPath().isEmpty() ? "/" : uri.getPath();
+        WebhookServer webhook = new WebhookServer(WEBHOOK_HOST, WEBHOOK_PORT, path, WEBHOOK_SECRET,
+                WEBHOOK_KEYSTORE != null ? Paths.get(WEBHOOK_KEYSTORE) : null, WEBHOOK_KEYSTORE_PASSWORD,
+                4, WEBHOOK_QUEUE, sink, backlog, WEBHOOK_BACKLOG);
+        webhook.start();
+        metrics.counter("bot_webhook_rejected_total",
+                "Webhook deliveries refused because the queue or the update backlog was full", webhook::rejected);
+
+        SetWebhook set = new SetWebhook(WEBHOOK_URL);
+        if (WEBHOOK_SECRET != null && !WEBHOOK_SECRET.isEmpty()) set.setSecretToken(WEBHOOK_SECRET);
+        set.setMaxConnections(40);
+        api.execute(set);
+        Log.info("Webhook", "url", WEBHOOK_URL, "port", webhook.port());
+        return webhook;
+    }
+
+    // ---- scale-out ----
+
+    /** Runs after the chat's generation and queued updates, so the session leaves in its final state. */
+    private byte[] takeSession(long chat) throws IOException {
+        try {
+            if (!generationQueue.awaitIdle(chat, 3, TimeUnit.MINUTES)) {
+                throw new IOException("Генерация в чате " + chat + " не завершилась");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Передача сессии прервана");
+        }
+        CompletableFuture<byte[]> taken = new CompletableFuture<>();
+        dispatcher.dispatch(chat, () -> {
+            try {
+                SessionStore.Session s = sessions.take(chat);
+                if (s != null) inlineOriginal(s.state);
+                taken.complete(s == null ? null : SessionJournal.encode(s));
+            } catch (RuntimeException e) {
+                taken.completeExceptionally(e);
+            }
+        });
+        try {
+            return taken.get(3, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Передача сессии прервана");
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("Не удалось передать сессию чата " + chat, e);
+        }
+    }
+
+    /** Puts the text of the version to rewrite back into {@code st} for another worker. */
+    private void inlineOriginal(UserState st) {
+        if (st == null || st.originalVersion == null) return;
+        try {
+            st.originalText = versions.text(st.originalVersion);
+        } catch (IOException e) {
+            Log.warn("Не удалось прочитать версию статьи", "version", st.originalVersion, "error", e.getMessage());
+        }
+    }
+
+    private PartitionWorker.Host partitionHost() {
+        return new PartitionWorker.Host() {
+            @Override public void onUpdate(Update update) { onUpdateReceived(update); }
+            @Override public byte[] takeSession(long chat) throws IOException {
+                return TelegramArticleBot.this.takeSession(chat);
+            }
+            @Override public void adoptSession(long chat, byte[] session) {
+                SessionStore.Session s = SessionJournal.decode(ByteBuffer.wrap(session));
+                // A handed-over session carries the text, since versions are local to each worker
+                if (s.state != null && s.state.originalVersion != null && s.state.originalText != null) {
+                    keepOriginal(s.state, s.state.originalText, false);
+                }
+                sessions.adopt(chat, s);
+            }
+            @Override public long[] chats() { return sessions.chats(); }
+        };
+    }
+
+    private static void runRouter() throws Exception {
+        List<String> workers = new ArrayList<>();
+        for (String w : WORKERS.split(",")) {
+            if (!w.trim().isEmpty()) workers.add(w.trim());
+        }
+        ChatRouter router = new ChatRouter(ROUTER_HOST, ROUTER_PORT, workers, UPDATE_WORKERS);
+        router.start();
+        Metrics metrics = new Metrics();
+        router.register(metrics);
+        if (METRICS_PORT > 0) metrics.serve(METRICS_HOST, METRICS_PORT);
+        TelegramLongPollingBot ingress = router.poller(botOptions(), BOT_TOKEN, BOT_USERNAME);
+        if (WEBHOOK_URL != null && !WEBHOOK_URL.isEmpty()) {
+            startWebhook(ingress, metrics, router::route, router::queued);
+        } else {
+            new TelegramBotsApi(DefaultBotSession.class).registerBot(ingress);
+        }
+        Log.info("Роутер запущен", "url", "http://" + ROUTER_HOST + ":" + ROUTER_PORT, "workers", workers.size());
+    }
+
+    /**
+     * On SIGTERM: stop {@code ingress}, let the generations and publications
+     * already accepted finish, send what they produced, then close the files.
+     * Publications left over at the deadline stay in the outbox for the next start.
+     */
+    private void stopOnShutdown(Lifecycle.Stage ingress) {
+        lifecycle.stage("ingress", ingress)
+                .stage("generations", timeout -> Lifecycle.await(() -> generationQueue.busyChats() == 0
+                        && batches.running() == 0 && dispatcher.activeChats() == 0, timeout))
+                .stage("publications", timeout -> outbox.drain(timeout, TimeUnit.MILLISECONDS))
+                .stage("telegram", timeout -> sendQueue.shutdown(timeout, TimeUnit.MILLISECONDS))
+                .stage("files", timeout -> {
+                    outbox.close();
+                    journal.close();
+                    archive.close();
+                    return true;
+                })
+                .install();
+    }
+
+    /** Builds the lazily created HTTP clients off the update path, so the first n8n call doesn't pay for it. */
+    private void warmUp() {
+        Thread t = new Thread(() -> {
+            for (HttpBackend b : new HttpBackend[]{n8n, imageDownload, imgbb, baserow}) b.client();
+        }, "warm-up");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Run by the {@code cds} build profile under {@code -XX:ArchiveClassesAtExit}:
+     * starts the bot in {@code DATA_DIR}, handles a /start update and an n8n
+     * answer, and exits, so the archive holds the classes a real start and its
+     * first updates load. The Bot API is pointed at a closed local port.
+     */
+    private static void cdsTraining() throws Exception {
+        DefaultBotOptions options = botOptions();
+        options.setBaseUrl("http://127.0.0.1:9/bot");
+        TelegramArticleBot bot = new TelegramArticleBot(options, Paths.get(DATA_DIR), TG_GLOBAL_PER_SEC,
+                TG_CHAT_PER_SEC, TG_CHANNEL_PER_MIN);
+        bot.warmUp();
+        Update upd = new com.fasterxml.jackson.databind.ObjectMapper().readValue(
+                "{\"update_id\":1,\"message\":{\"message_id\":1,\"date\":0,\"text\":\"/start\","
+                        + "\"chat\":{\"id\":1,\"type\":\"private\"},\"from\":{\"id\":1,\"is_bot\":false,"
+                        + "\"first_name\":\"cds\"}}}", Update.class);
+        bot.onUpdateReceived(upd);
+        N8nCodec.generate(1, ChannelType.TG, ActionType.GENERATE, "topic", "description").writeTo(new okio.Buffer());
+        N8nCodec.readArticle(new okio.Buffer().writeUtf8("{\"text\":\"text\",\"picture\":\"\"}"), ChannelType.TG);
+        // Until the reply has been tried, which loads the sending path
+        Lifecycle.await(() -> bot.sendQueue.sent() + bot.sendQueue.retried() + bot.sendQueue.dropped() > 0, 10_000);
+        Log.info("CDS: обучающий запуск завершён");
+        System.exit(0);
+    }
+
     public static void main(String[] args) throws Exception {
-        new TelegramBotsApi(DefaultBotSession.class).registerBot(new TelegramArticleBot());
-        System.out.println("Bot started");
+        // Loading the trust store takes a good part of startup; the Bot API client needs it soon
+        Thread tls = new Thread(() -> {
+            try {
+                javax.net.ssl.SSLContext.getDefault();
+            } catch (java.security.NoSuchAlgorithmException e) {
+                Log.warn("TLS недоступен", "error", e);
+            }
+        }, "tls-warm-up");
+        tls.setDaemon(true);
+        tls.start();
+        if (args.length > 0 && "--cds-training".equals(args[0])) {
+            cdsTraining();
+            return;
+        }
+        if (ROUTER_PORT > 0) {
+            runRouter();
+            return;
+        }
+        TelegramArticleBot bot = new TelegramArticleBot();
+        if (WORKER_PORT > 0) {
+            // Updates come from the router; leaving hands every session over once its generation is done
+            PartitionWorker worker = new PartitionWorker(WORKER_HOST, WORKER_PORT, WORKER_URL, ROUTER_URL,
+                    bot.partitionHost());
+            worker.start();
+            bot.stopOnShutdown(worker::leave);
+            Log.info("Воркер запущен", "worker", WORKER_URL, "router", ROUTER_URL);
+        } else if (WEBHOOK_URL != null && !WEBHOOK_URL.isEmpty()) {
+            WebhookServer webhook = startWebhook(bot, bot.metrics, bot::onUpdateReceived, bot.dispatcher::queued);
+            bot.webhook = webhook;
+            bot.stopOnShutdown(timeout -> {
+                // Telegram redelivers what this refuses to the next instance
+                webhook.stop(1);
+                return true;
+            });
+        } else {
+            BotSession session = new TelegramBotsApi(DefaultBotSession.class).registerBot(bot);
+            bot.stopOnShutdown(timeout -> {
+                // Updates fetched but not confirmed yet are fetched again by the next instance.
+                // stop() closes the poller's HTTP client, which waits out the current long poll;
+                // the session stops taking updates at once, so that wait isn't worth the deadline.
+                Thread stop = new Thread(session::stop, "session-stop");
+                stop.setDaemon(true);
+                stop.start();
+                stop.join(Math.min(timeout, 1000));
+                return true;
+            });
+        }
+        bot.lifecycle.ready();
+        bot.warmUp();
     }
 }
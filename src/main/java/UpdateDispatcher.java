@@ -0,0 +1,109 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs updates on a bounded worker pool: different chats are handled
+ * concurrently, updates of the same chat strictly one after another
+ * in arrival order.
+ */
+final class UpdateDispatcher {
+
+    private final ThreadPoolExecutor workers;
+    private final ConcurrentHashMap<Long, ChatLane> lanes = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    UpdateDispatcher(int threads) {
+        AtomicInteger seq = new AtomicInteger();
+        ThreadFactory tf = r -> {
+            Thread t = new Thread(r, "update-worker-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        // The work queue holds at most one entry per active chat
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), tf);
+    }
+
+    void dispatch(long chatId, Runnable task) {
+        lanes.compute(chatId, (id, lane) -> {
+            if (lane == null) lane = new ChatLane(id);
+            lane.pending.add(task);
+            queued.incrementAndGet();
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                workers.execute(lane);
+            }
+            return lane;
+        });
+    }
+
+    /** Number of chats that currently have queued or running updates. */
+    int activeChats() {
+        return lanes.size();
+    }
+
+    /** Number of updates waiting for their chat's earlier updates or a free worker. */
+    int queued() {
+        return queued.get();
+    }
+
+    int busyWorkers() {
+        return workers.getActiveCount();
+    }
+
+    ExecutorService executor() {
+        return workers;
+    }
+
+    void shutdown() {
+        workers.shutdown();
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    private final class ChatLane implements Runnable {
+        final long chatId;
+        // Guarded by the map's compute lock for this key
+        final Queue<Runnable> pending = new ArrayDeque<>();
+        boolean scheduled;
+
+        ChatLane(long chatId) { this.chatId = chatId; }
+
+        @Override
+        public void run() {
+            Runnable task = next();
+            if (task != null) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    Log.error("Ошибка обработки update", e);
+                }
+            }
+            // Requeue instead of looping so one busy chat can't hog a worker
+            lanes.compute(chatId, (id, lane) -> {
+                if (lane.pending.isEmpty()) return null;
+                workers.execute(lane);
+                return lane;
+            });
+        }
+
+        private Runnable next() {
+            Runnable[] out = new Runnable[1];
+            lanes.computeIfPresent(chatId, (id, lane) -> {
+                out[0] = lane.pending.poll();
+                if (out[0] != null) queued.decrementAndGet();
+                return lane;
+            });
+            return out[0];
+        }
+    }
+}
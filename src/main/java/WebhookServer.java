@@ -0,0 +1,160 @@
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Receives updates pushed by Telegram (webhook mode) instead of polling for them.
+ *
+ * Each request is parsed, handed to the same path as long polling
+ * ({@code onUpdateReceived}, which only queues the update for its chat) and
+ * answered with 200 straight away, so Telegram never waits for n8n. Requests
+ * are served by a small pool with a bounded queue; when it is full the
+ * connection is dropped and Telegram redelivers the update later. The same
+ * happens through a 503 once more than {@code maxBacklog} updates wait in the
+ * dispatcher, since accepting them would only grow that queue without bound.
+ */
+final class WebhookServer {
+
+    private static final ObjectMapper JSON = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+    private final String path;
+    private final byte[] secret;
+    private final Consumer<Update> sink;
+    private final IntSupplier backlog;
+    private final int maxBacklog;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param keyStore PKCS#12 key store for HTTPS, or null for plain HTTP behind a TLS-terminating proxy
+     * @param secret   expected {@code X-Telegram-Bot-Api-Secret-Token}, or null to accept any request
+     * @param backlog  updates accepted but not handled yet; deliveries are refused above {@code maxBacklog}
+     */
+    WebhookServer(String host, int port, String path, String secret, Path keyStore, String keyStorePassword,
+                  int threads, int queueCapacity, Consumer<Update> sink, IntSupplier backlog, int maxBacklog)
+            throws IOException {
+        this.path = path;
+        this.secret = secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+        this.sink = sink;
+        this.backlog = backlog;
+        this.maxBacklog = maxBacklog;
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (keyStore != null) {
+            HttpsServer https = HttpsServer.create(address, 0);
+            https.setHttpsConfigurator(new HttpsConfigurator(sslContext(keyStore, keyStorePassword)));
+            server = https;
+        } else {
+            server = HttpServer.create(address, 0);
+        }
+        AtomicInteger seq = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "webhook-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, (r, pool) -> {
+                    // The HTTP server closes the connection; Telegram retries the delivery
+                    rejected.increment();
+                    throw new RejectedExecutionException("webhook queue full");
+                });
+        server.setExecutor(executor);
+        server.createContext(path, this::handle);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    long received() { return received.sum(); }
+    long rejected() { return rejected.sum(); }
+    int queued() { return executor.getQueue().size(); }
+
+    /** Stops accepting deliveries, letting requests in progress finish for up to {@code seconds}. */
+    void stop(int seconds) {
+        server.stop(seconds);
+        executor.shutdown();
+    }
+
+    private void handle(HttpExchange e) throws IOException {
+        try (InputStream in = e.getRequestBody()) {
+            if (!"POST".equals(e.getRequestMethod()) || !path.equals(e.getRequestURI().getPath())) {
+                e.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (secret != null) {
+                String token = e.getRequestHeaders().getFirst("X-Telegram-Bot-Api-Secret-Token");
+                if (token == null || !MessageDigest.isEqual(secret, token.getBytes(StandardCharsets.UTF_8))) {
+                    e.sendResponseHeaders(401, -1);
+                    return;
+                }
+            }
+            if (backlog.getAsInt() >= maxBacklog) {
+                // Not read yet, so nothing is lost: Telegram redelivers it once the backlog drains
+                rejected.increment();
+                e.sendResponseHeaders(503, -1);
+                return;
+            }
+            Update update;
+            try {
+                update = JSON.readValue(in, Update.class);
+            } catch (IOException bad) {
+                // Not retryable; acknowledging keeps Telegram from redelivering it forever
+                Log.warn("Webhook: не удалось разобрать update", "error", bad.getMessage());
+                e.sendResponseHeaders(200, -1);
+                return;
+            }
+            received.increment();
+            sink.accept(update);
+            e.sendResponseHeaders(200, -1);
+        } finally {
+            e.close();
+        }
+    }
+
+    private static SSLContext sslContext(Path keyStore, String password) throws IOException {
+        char[] pass = password == null ? new char[0] : password.toCharArray();
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(in, pass);
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, pass);
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(kmf.getKeyManagers(), null, null);
+            return ctx;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Не удалось загрузить ключи для HTTPS из " + keyStore, e);
+        }
+    }
+}